@@ -0,0 +1,131 @@
+package com.listener;
+
+import com.listener.filesystem.TestFileSystem;
+import com.listener.storable.SQLiteStorable;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a poll of a {@link TestFileSystem} of the given size, once for the comparison with the
+ * storable alone and once for the whole of {@link FileSystemListen#listen_once()} sending to a
+ * {@link MockProducer} that acknowledges every record straight away.
+ * <p>
+ * The storable starts with every object of the file system in it. When timing the whole poll the given
+ * number of new objects are added before each poll, so each poll sends those and writes them to the storable,
+ * and they are taken out of the file system again afterwards so its size stays the same.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class FileSystemListenBenchmark {
+
+    /**
+     * A listen on a file system whose objects are all in the storable.
+     */
+    @State(Scope.Benchmark)
+    public static class Listening {
+        @Param({"10000", "100000"})
+        public int objects;
+
+        @Param({"1000"})
+        public int pageSize;
+
+        private TestFileSystem fileSystem;
+        private SQLiteStorable storable;
+        private MockProducer<String, byte[]> kafkaProducer;
+        private FileSystemListen listen;
+        private long objectsAdded;
+
+        @Setup(Level.Trial)
+        public void createListen() {
+            Properties properties = new Properties();
+            properties.setProperty("bucketName", "benchmark");
+            properties.setProperty("InMemory", "true");
+
+            fileSystem = new TestFileSystem();
+            fileSystem.setPageSize(pageSize);
+            storable = new SQLiteStorable(properties);
+            for (objectsAdded = 0; objectsAdded < objects; objectsAdded++) {
+                fileSystem.addFile(objectKey(objectsAdded));
+            }
+            storable.putKeys(fileSystem.list());
+
+            kafkaProducer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+            listen = new FileSystemListen(fileSystem, Duration.ofSeconds(20), properties, storable, kafkaProducer);
+        }
+
+        @TearDown(Level.Trial)
+        public void closeStorable() throws IOException {
+            storable.close();
+        }
+    }
+
+    /**
+     * The objects that are new to each poll of {@link #listenOnce(Listening, NewObjects)}.
+     */
+    @State(Scope.Thread)
+    public static class NewObjects {
+        @Param({"0", "1000"})
+        public int newObjectsPerPoll;
+
+        private final List<String> added = new ArrayList<>();
+        private Listening listening;
+
+        @Setup(Level.Invocation)
+        public void addNewObjects(Listening listening) {
+            this.listening = listening;
+            for (int i = 0; i < newObjectsPerPoll; i++) {
+                String key = objectKey(listening.objectsAdded++);
+                listening.fileSystem.addFile(key);
+                added.add(key);
+            }
+            // The mock keeps every record sent, this stops the history growing between polls
+            listening.kafkaProducer.clear();
+        }
+
+        @TearDown(Level.Invocation)
+        public void removeNewObjects() {
+            added.forEach(listening.fileSystem::removeFile);
+            added.clear();
+        }
+    }
+
+    private static String objectKey(long object) {
+        return "bucket/prefix-" + (object % 100) + "/object-" + object;
+    }
+
+    @Benchmark
+    public void classifyAgainstStorable(Listening listening, Blackhole blackhole) {
+        listening.fileSystem.listObjectPages((page) ->
+                blackhole.consume(listening.listen.classifyAgainstStorable(page)));
+    }
+
+    @Benchmark
+    public long listenOnce(Listening listening, NewObjects newObjects) {
+        return listening.listen.listen_once();
+    }
+}
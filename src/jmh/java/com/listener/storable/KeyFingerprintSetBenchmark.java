@@ -0,0 +1,62 @@
+package com.listener.storable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures holding every key of a listing to drop those listed twice, as a {@link KeyFingerprintSet} of
+ * fingerprints and as a {@link HashSet} of the key strings. Each key is a new string sharing the chars of the
+ * one made up front, so its hash code isn't cached from an earlier invocation as it wouldn't be in a listing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class KeyFingerprintSetBenchmark {
+    @Param({"100000", "1000000"})
+    public int keys;
+
+    private String[] listedKeys;
+
+    @Setup(Level.Trial)
+    public void listKeys() {
+        listedKeys = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            listedKeys[i] = "bucket/prefix-" + (i % 100) + "/object-" + i;
+        }
+    }
+
+    @Benchmark
+    public int fingerprintSet() {
+        KeyFingerprintSet listed = new KeyFingerprintSet(keys);
+        for (String key : listedKeys) {
+            listed.add(new String(key));
+        }
+        return listed.size();
+    }
+
+    @Benchmark
+    public int stringHashSet() {
+        Set<String> listed = new HashSet<>(keys * 4 / 3 + 1);
+        for (String key : listedKeys) {
+            listed.add(new String(key));
+        }
+        return listed.size();
+    }
+}
@@ -0,0 +1,105 @@
+package com.listener.storable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lookups and writes of a {@link MappedIndexStorable} holding the given number of keys, to compare
+ * with the {@link SQLiteStorableBenchmark}. The keys are compacted into the index once for each key count,
+ * the writes append to the log and compact as they run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class MappedIndexStorableBenchmark {
+    private final static int LOOKUP_KEYS = 1024;
+    private final static int FILL_BATCH_SIZE = 50000;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int rows;
+
+    private File indexFile;
+    private MappedIndexStorable storable;
+    private String[] storedKeys;
+    private String[] unstoredKeys;
+    private int lookup;
+    private long written;
+
+    @Setup(Level.Trial)
+    public void fillStorable() throws IOException {
+        indexFile = Files.createTempFile("storable-benchmark", ".idx").toFile();
+        Files.delete(indexFile.toPath());
+        Properties properties = new Properties();
+        properties.setProperty("DataBaseLocation", indexFile.getAbsolutePath());
+        storable = new MappedIndexStorable(properties);
+
+        List<String> batch = new ArrayList<>(FILL_BATCH_SIZE);
+        for (int row = 0; row < rows; row++) {
+            batch.add(key(row));
+            if (batch.size() == FILL_BATCH_SIZE) {
+                storable.putKeys(batch);
+                batch.clear();
+            }
+        }
+        storable.putKeys(batch);
+        storable.compact();
+
+        // The keys looked up are made up front so the lookups don't measure building them
+        Random random = new Random(42);
+        storedKeys = new String[LOOKUP_KEYS];
+        unstoredKeys = new String[LOOKUP_KEYS];
+        for (int i = 0; i < LOOKUP_KEYS; i++) {
+            storedKeys[i] = key(random.nextInt(rows));
+            unstoredKeys[i] = key(rows + random.nextInt(rows));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void closeStorable() throws IOException {
+        storable.close();
+        Files.deleteIfExists(indexFile.toPath());
+        Files.deleteIfExists(new File(indexFile.getPath() + ".log").toPath());
+    }
+
+    private static String key(int row) {
+        return "bucket/prefix-" + (row % 100) + "/object-" + row;
+    }
+
+    @Benchmark
+    public boolean keyAlreadyReadStored() {
+        return storable.keyAlreadyRead(storedKeys[lookup++ & (LOOKUP_KEYS - 1)]);
+    }
+
+    @Benchmark
+    public boolean keyAlreadyReadUnstored() {
+        return storable.keyAlreadyRead(unstoredKeys[lookup++ & (LOOKUP_KEYS - 1)]);
+    }
+
+    @Benchmark
+    public boolean putKey() {
+        return storable.putKey("bucket/written/object-" + written++);
+    }
+}
@@ -0,0 +1,89 @@
+package com.listener.storable;
+
+import com.listener.filesystem.ObjectPage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures classifying a listed page of 10000 objects against a {@link SQLiteStorable} on disk,
+ * on its single connection and over a pool of read connections. Half of the page is stored.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class SQLiteStorableDiffBenchmark {
+    private final static int PAGE_SIZE = 10000;
+    private final static int ROWS = 1000000;
+    private final static int FILL_BATCH_SIZE = 50000;
+
+    @Param({"0", "2", "4"})
+    public int readConnections;
+
+    private File databaseFile;
+    private SQLiteStorable storable;
+    private ObjectPage page;
+
+    @Setup(Level.Trial)
+    public void fillStorable() throws IOException {
+        databaseFile = Files.createTempFile("diff-benchmark", ".db").toFile();
+        Properties properties = new Properties();
+        properties.setProperty("DataBaseLocation", databaseFile.getAbsolutePath());
+        properties.setProperty("SQLiteReadConnections", Integer.toString(readConnections));
+        storable = new SQLiteStorable(properties);
+
+        List<StoredObject> batch = new ArrayList<>(FILL_BATCH_SIZE);
+        for (int row = 0; row < ROWS; row++) {
+            batch.add(new StoredObject(key(row), row, "etag-" + row, 0));
+            if (batch.size() == FILL_BATCH_SIZE) {
+                storable.putObjects(batch);
+                batch.clear();
+            }
+        }
+        storable.putObjects(batch);
+
+        page = new ObjectPage(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            int row = ROWS - PAGE_SIZE / 2 + i;
+            page.add(key(row), row, "etag-" + row, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void closeStorable() throws IOException {
+        storable.close();
+        Files.deleteIfExists(databaseFile.toPath());
+        Files.deleteIfExists(new File(databaseFile.getPath() + "-wal").toPath());
+        Files.deleteIfExists(new File(databaseFile.getPath() + "-shm").toPath());
+    }
+
+    private static String key(int row) {
+        return "bucket/prefix-" + (row % 100) + "/object-" + row;
+    }
+
+    @Benchmark
+    public ObjectChange[] classify() {
+        return storable.classify(page);
+    }
+}
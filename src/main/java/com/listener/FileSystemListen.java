@@ -1,19 +1,39 @@
 package com.listener;
 
+import com.listener.cluster.ClusterLeases;
 import com.listener.filesystem.FileSystem;
+import com.listener.filesystem.ObjectPage;
+import com.listener.kafka.KafkaSendStage;
+import com.listener.kafka.RecordBuilder;
+import com.listener.metrics.Counter;
+import com.listener.metrics.Histogram;
+import com.listener.metrics.MetricsRegistry;
+import com.listener.storable.KeyFingerprintSet;
+import com.listener.storable.ObjectChange;
 import com.listener.storable.Storable;
+import com.listener.storable.StorableRetention;
+import com.listener.storable.StorableWriteBehind;
+import com.listener.storable.StoredObject;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
-import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.AuthorizationException;
+import org.apache.kafka.common.errors.OutOfOrderSequenceException;
+import org.apache.kafka.common.errors.ProducerFencedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
-
-import static java.lang.Thread.sleep;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
 
 /**
  * FileSystemListen will listen_forever to a provided S3 bucket and return information
@@ -23,19 +43,78 @@ import static java.lang.Thread.sleep;
  */
 public class FileSystemListen {
     private static final Logger logger = LoggerFactory.getLogger(FileSystemListen.class.getName());
-    private static boolean runBool;
+    // The list state recording how far the bootstrap of the storable got
+    static final String BOOTSTRAP_STATE = "Bootstrap";
+    static final long BOOTSTRAP_STARTED = 1;
+    static final long BOOTSTRAP_COMPLETE = 2;
     private final Properties S3ListenProperties;
     private final Duration timeBetweenPolls;
-    private final Producer<String, String> kafkaProducer;
+    private final Producer<String, byte[]> kafkaProducer;
+    private final KafkaSendStage<String, byte[]> sendStage;
+    private final RecordBuilder recordBuilder;
+    private final ClusterLeases clusterLeases;
+    private final String listenTopic;
     private final Storable storageForLocationsPreviouslyLocated;
+    private final StorableWriteBehind storableWriteBehind;
+    private final long storableFlushTimeoutMillis;
     private final String bucketName;
     private final FileSystem fileSystem;
+    private final boolean deleteDetection;
+    private final boolean listingDeduplication;
+    // Null unless the storable is pruned, see StorableRetention
+    private final StorableRetention retention;
+    private int lastPollFilesListed;
+    // Set until the storable has been seeded by a bootstrap, the polls bootstrap rather than send events
+    private volatile boolean bootstrapPending;
+    private final int bootstrapBatchSize;
+    private final String deleteTopic;
+    private final int sweepBatchSize;
+    private final boolean transactional;
+    private final int transactionMaxRecords;
+    private boolean transactionsInitialised;
+    private boolean transactionOpen;
+    private int recordsInTransaction;
+    // Set when a send or a write to the storable of this poll was given up, so its keys are listed again
+    private volatile boolean pollIncomplete;
+    // The objects sent in the open transaction, they are written to the storable once it commits
+    private final List<StoredObject> transactionObjects = Collections.synchronizedList(new ArrayList<>());
+    private volatile PollScheduler pollScheduler;
+
+    private final Histogram pollSeconds;
+    private final Histogram listPhaseSeconds;
+    private final Histogram diffPhaseSeconds;
+    private final Histogram sendPhaseSeconds;
+    private final Histogram storePhaseSeconds;
+    private final Histogram sweepPhaseSeconds;
+    private final Counter filesListedTotal;
+    private final Counter filesListedTwiceTotal;
+    private final Counter filesNotInStorableTotal;
+    private final Counter filesModifiedTotal;
+    private final Counter filesDeletedTotal;
+    private final Histogram eventLagSeconds;
+    private final Counter bootstrapKeysTotal;
+    private volatile double bootstrapKeysPerSecond;
 
     /**
      * @param fileSystem                           An implementation of filesystem that will be polled for file locations
      * @param timeBetweenPolls                     A duration between pings for the s3bucket
      * @param S3ListenProperties                   A properties that will eventually determine the objects behaviour
-     *                                             currently, it only obtains the "bucketName" from this.
+     *                                             currently, it obtains the "bucketName", the
+     *                                             {@link KafkaSendStage} and the {@link StorableWriteBehind}
+     *                                             configuration from this. Deletions are detected when
+     *                                             "DeleteDetection" is true, they are sent to "DeleteTopic"
+     *                                             in batches of "SweepBatchSize". Each poll is sent in
+     *                                             Kafka transactions when "KafkaTransactional" is true,
+     *                                             of up to "KafkaTransactionMaxRecords" records each.
+     *                                             A key listed twice in one poll, such as under overlapping
+     *                                             shard prefixes, is only handled once when
+     *                                             "ListingDeduplication" is true.
+     *                                             The storable is pruned by the {@link StorableRetention}
+     *                                             while polling when it is configured.
+     *                                             When "Bootstrap" is true the storable is first seeded
+     *                                             without sending any events, see {@link #bootstrap()}.
+     *                                             The records are built by the {@link RecordBuilder}
+     *                                             configured by the same properties.
      * @param storageForLocationsPreviouslyLocated An object that implements the {@link Storable} interface, this will
      *                                             be used to store the file locations processed.
      * @param kafkaProducer                        A {@link KafkaProducer} that will be used to store the files
@@ -44,109 +123,720 @@ public class FileSystemListen {
                             Duration timeBetweenPolls,
                             Properties S3ListenProperties,
                             Storable storageForLocationsPreviouslyLocated,
-                            Producer<String, String> kafkaProducer) {
+                            Producer<String, byte[]> kafkaProducer) {
+        this(fileSystem, timeBetweenPolls, S3ListenProperties, storageForLocationsPreviouslyLocated, kafkaProducer,
+                null);
+    }
+
+    /**
+     * Listens as one of many instances, only polling while this instance holds the lease of the bucket.
+     *
+     * @param fileSystem                           An implementation of filesystem that will be polled for file locations
+     * @param timeBetweenPolls                     A duration between pings for the s3bucket
+     * @param S3ListenProperties                   A properties that will eventually determine the objects behaviour
+     * @param storageForLocationsPreviouslyLocated An object that implements the {@link Storable} interface
+     * @param kafkaProducer                        A {@link KafkaProducer} that will be used to store the files
+     * @param clusterLeases                        The leases of the instances sharing the bucket, null to always poll
+     */
+    public FileSystemListen(FileSystem fileSystem,
+                            Duration timeBetweenPolls,
+                            Properties S3ListenProperties,
+                            Storable storageForLocationsPreviouslyLocated,
+                            Producer<String, byte[]> kafkaProducer,
+                            ClusterLeases clusterLeases) {
 
         this.fileSystem = fileSystem;
         this.timeBetweenPolls = timeBetweenPolls;
         this.S3ListenProperties = S3ListenProperties;
 
         this.kafkaProducer = kafkaProducer;
+        this.clusterLeases = clusterLeases;
+        this.sendStage = new KafkaSendStage<>(kafkaProducer, S3ListenProperties);
         this.storageForLocationsPreviouslyLocated = storageForLocationsPreviouslyLocated;
+        this.storableWriteBehind = new StorableWriteBehind(storageForLocationsPreviouslyLocated, S3ListenProperties);
+        this.storableFlushTimeoutMillis = Long.parseLong(
+                S3ListenProperties.getProperty("StorableFlushTimeoutMillis", "60000"));
 
         this.bucketName = S3ListenProperties.getProperty("bucketName");
+        this.deleteDetection = S3ListenProperties.getProperty("DeleteDetection", "false").equals("true");
+        this.listingDeduplication = S3ListenProperties.getProperty("ListingDeduplication", "false").equals("true");
+        this.retention = StorableRetention.fromProperties(storageForLocationsPreviouslyLocated, S3ListenProperties);
+        this.listenTopic = bucketName + "ListenTopic";
+        this.deleteTopic = S3ListenProperties.getProperty("DeleteTopic", bucketName + "DeleteTopic");
+        this.sweepBatchSize = Math.max(1, Integer.parseInt(S3ListenProperties.getProperty("SweepBatchSize", "1000")));
+        this.transactional = S3ListenProperties.getProperty("KafkaTransactional", "false").equals("true");
+        this.transactionMaxRecords = Integer.parseInt(
+                S3ListenProperties.getProperty("KafkaTransactionMaxRecords", "100000"));
+        this.recordBuilder = RecordBuilder.fromProperties(S3ListenProperties);
+        this.bootstrapBatchSize = Math.max(1, Integer.parseInt(
+                S3ListenProperties.getProperty("BootstrapBatchSize", "50000")));
+        this.bootstrapPending = S3ListenProperties.getProperty("Bootstrap", "false").equals("true")
+                && bootstrapNeeded();
 
         logger.info("The bucket name has been set to: " + bucketName);
-        runBool = true;
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        String bucket = String.valueOf(bucketName);
+        this.pollSeconds = metrics.histogram("s3listen_poll_seconds",
+                "Time taken by each poll", Histogram.LATENCY_SECONDS, "bucket", bucket);
+        this.listPhaseSeconds = phaseHistogram(metrics, bucket, "list");
+        this.diffPhaseSeconds = phaseHistogram(metrics, bucket, "diff");
+        this.sendPhaseSeconds = phaseHistogram(metrics, bucket, "send");
+        this.storePhaseSeconds = phaseHistogram(metrics, bucket, "store");
+        this.sweepPhaseSeconds = phaseHistogram(metrics, bucket, "sweep");
+        this.filesListedTotal = metrics.counter("s3listen_files_listed_total",
+                "Files listed by the polls", "bucket", bucket);
+        this.filesListedTwiceTotal = metrics.counter("s3listen_files_listed_twice_total",
+                "Files listed again within the same poll, which weren't compared or sent again", "bucket", bucket);
+        this.filesNotInStorableTotal = metrics.counter("s3listen_files_not_in_storable_total",
+                "Files listed that weren't in the storable", "bucket", bucket);
+        this.filesModifiedTotal = metrics.counter("s3listen_files_modified_total",
+                "Files listed with a different ETag or size to the storable", "bucket", bucket);
+        this.filesDeletedTotal = metrics.counter("s3listen_files_deleted_total",
+                "Files in the storable that a complete listing didn't list", "bucket", bucket);
+        this.eventLagSeconds = metrics.histogram("s3listen_event_lag_seconds",
+                "Time from the last modified time of an object until kafka acknowledged its event",
+                Histogram.LATENCY_SECONDS, "bucket", bucket);
+        this.bootstrapKeysTotal = metrics.counter("s3listen_bootstrap_keys_total",
+                "Keys written to the storable by the bootstrap, without sending an event", "bucket", bucket);
+        metrics.gauge("s3listen_bootstrap_keys_per_second", "Keys written a second by the running or last bootstrap",
+                () -> bootstrapKeysPerSecond, "bucket", bucket);
+    }
+
+    /**
+     * @return false if the storable has already been bootstrapped, or can't record whether it has been
+     */
+    private boolean bootstrapNeeded() {
+        long state = storageForLocationsPreviouslyLocated.getListState(BOOTSTRAP_STATE);
+        if (state < 0) {
+            logger.warn("The storable of {} can't record whether it has been bootstrapped, " +
+                    "its keys are sent as events instead", bucketName);
+            return false;
+        }
+        if (state == BOOTSTRAP_COMPLETE) {
+            logger.info("The storable of {} has already been bootstrapped", bucketName);
+            return false;
+        }
+        return true;
+    }
+
+    private static Histogram phaseHistogram(MetricsRegistry metrics, String bucket, String phase) {
+        return metrics.histogram("s3listen_poll_phase_seconds",
+                "Time spent in each phase of a poll: listing the file system, comparing it with the storable, " +
+                        "sending to kafka, waiting for the storable writes and sweeping out deleted files",
+                Histogram.LATENCY_SECONDS, "bucket", bucket, "phase", phase);
     }
 
     /**
-     * Listens to the file system in an infinite loop.
+     * Listens to the file system, polling it every timeBetweenPolls until {@link #stop()} is called.
+     * This blocks until the listening has stopped.
      */
     public void listen_forever() {
-        runBool = true;
-        while (runBool) {
-            listen_once();
-            try {
-                sleep(this.timeBetweenPolls.toMillis());
-            } catch (InterruptedException e) {
-                logger.debug("An interrupt occurred: {}", e.getMessage());
+        PollScheduler scheduler = new PollScheduler(bucketName, this::listen_once, timeBetweenPolls,
+                S3ListenProperties);
+        pollScheduler = scheduler;
+        scheduler.start();
+        if (retention != null)
+            retention.start();
+        try {
+            while (!scheduler.awaitStop(Duration.ofMinutes(1))) {
+                logger.trace("Still listening to {}", fileSystem.getIdentifier());
             }
+        } catch (InterruptedException e) {
+            logger.debug("An interrupt occurred: {}", e.getMessage());
+            scheduler.stop();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts polling the file system every timeBetweenPolls on a shared executor, this returns straight away.
+     *
+     * @param executor the executor the polls are run on
+     * @return the scheduler running the polls
+     */
+    public PollScheduler listen_on(ScheduledExecutorService executor) {
+        PollScheduler scheduler = new PollScheduler(bucketName, this::listen_once, timeBetweenPolls,
+                S3ListenProperties, executor);
+        pollScheduler = scheduler;
+        scheduler.start();
+        if (retention != null)
+            retention.start();
+        return scheduler;
+    }
+
+    /**
+     * Stops any more polls from being scheduled, a poll already running is left to finish.
+     */
+    public void stop() {
+        PollScheduler scheduler = pollScheduler;
+        if (scheduler != null)
+            scheduler.stop();
+    }
+
+    /**
+     * Closes the storable and what writes to it, and hands the bucket to another instance straight away rather
+     * than once its lease expires. The producer is left open as it can be shared, see {@link ListenerLifecycle}.
+     */
+    public void close() {
+        if (clusterLeases != null)
+            clusterLeases.release(bucketName);
+        if (retention != null)
+            retention.close();
+        storableWriteBehind.close();
+        try {
+            storageForLocationsPreviouslyLocated.close();
+        } catch (IOException exc) {
+            logger.warn("The storable of {} couldn't be closed: {}", bucketName, exc.getMessage());
         }
     }
 
+    /**
+     * @return the retention pruning the storable, or null if it isn't pruned
+     */
+    public StorableRetention getRetention() {
+        return retention;
+    }
+
+    public PollScheduler getPollScheduler() {
+        return pollScheduler;
+    }
+
+    /**
+     * @return true until the storable has been seeded by a bootstrap
+     */
+    public boolean isBootstrapPending() {
+        return bootstrapPending;
+    }
+
     /**
      * Performs a single poll of the filesystem.
+     *
+     * @return the number of files that weren't in the storable, were modified or were deleted
      */
-    public void listen_once() {
+    public long listen_once() {
+        if (clusterLeases != null && !clusterLeases.owns(bucketName)) {
+            logger.debug("{} isn't polled as another instance holds its lease", bucketName);
+            return 0;
+        }
+        if (bootstrapPending)
+            return bootstrap();
 
+        logger.trace("A poll of the filesystem {} is beginning", fileSystem.getIdentifier());
+        long pollStart = System.nanoTime();
+        // The keys acknowledged since the last poll need to be in the storable before it is compared.
+        flushPendingStorableWrites();
+        long storeNanos = System.nanoTime() - pollStart;
+        long keysFailedBefore = storableWriteBehind.getKeysFailed();
+        pollIncomplete = false;
+        if (transactional && !beginTransaction())
+            return 0;
+        sendStage.beginPoll();
+        long[] filesListed = {0};
+        long[] filesNotInStorable = {0};
+        long[] filesModified = {0};
+        long[] diffNanos = {0};
+        long[] sendNanos = {0};
+        // The keys listed are stamped with a new generation, those left on an older one afterwards were deleted.
+        boolean tracksGenerations = deleteDetection || (retention != null && retention.tracksGenerations());
+        long generation = tracksGenerations ? storageForLocationsPreviouslyLocated.beginGeneration() : -1;
+        boolean[] allMarked = {generation >= 0};
+        // The keys listed this poll, as fingerprints so a key listed again is dropped without holding its string.
+        KeyFingerprintSet listedKeys = listingDeduplication ?
+                new KeyFingerprintSet(lastPollFilesListed + lastPollFilesListed / 8) : null;
+        if (tracksGenerations && generation < 0)
+            logger.warn("The storable doesn't keep generations, deletions can't be detected");
 
-            // Adds a shutdown hook for this thread.
-            final Thread mainThread = Thread.currentThread();
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                logger.info("The shutdown hook has been triggered");
-                try {
-                    // Stops anymore runs from occurring, gives a five second cooldown.
-                    runBool = false;
+        // Each page of the listing is compared with the storable and sent
+        // before the next page is handled, so only one page is held at a time.
+        long listingStart = System.nanoTime();
+        try {
+            fileSystem.listObjectPages((listedPage) -> {
+                filesListed[0] += listedPage.size();
 
-                    // Closes all connections
-                    storageForLocationsPreviouslyLocated.close();
-                    kafkaProducer.close();
-                    logger.info("All shutdown actions have been completed successfully.");
+                // Compares the called list with the read list
+                long diffStart = System.nanoTime();
+                ObjectPage currentS3Files = listedKeys == null ? listedPage : withoutRepeatedKeys(listedPage, listedKeys);
+                ObjectChange[] changes = classifyAgainstStorable(currentS3Files);
+                if (allMarked[0] && !storageForLocationsPreviouslyLocated.markSeen(currentS3Files.keys(), generation))
+                    allMarked[0] = false;
+                long sendStart = System.nanoTime();
+                diffNanos[0] += sendStart - diffStart;
+                int newFiles = 0;
+                int modifiedFiles = 0;
+                for (ObjectChange change : changes) {
+                    if (change == ObjectChange.NEW)
+                        newFiles++;
+                    else if (change == ObjectChange.MODIFIED)
+                        modifiedFiles++;
+                }
+                filesNotInStorable[0] += newFiles;
+                filesModified[0] += modifiedFiles;
+                logger.debug("A page of {} files had {} files not in the storable and {} modified",
+                        currentS3Files.size(), newFiles, modifiedFiles);
 
-                    mainThread.join(5000);
+                sendToKafka(currentS3Files, changes);
+                sendNanos[0] += System.nanoTime() - sendStart;
+                // A full transaction is committed and another begun, if either fails
+                // the rest of the poll is given up as its sends couldn't be committed.
+                if (transactional && transactionMaxRecords > 0 && recordsInTransaction >= transactionMaxRecords
+                        && !(commitTransaction() && beginTransaction()))
+                    throw new IllegalStateException("The kafka transaction of " + bucketName + " has failed");
+            });
+        } catch (RuntimeException exc) {
+            if (transactional)
+                abortTransaction();
+            throw exc;
+        }
+        // The time in the page consumer is taken off so the listing is only the time spent waiting on pages.
+        long listNanos = System.nanoTime() - listingStart - diffNanos[0] - sendNanos[0];
+        lastPollFilesListed = (int) Math.min(Integer.MAX_VALUE / 2, filesListed[0]);
+        logger.info("The number of files listed is: {}", filesListed[0]);
+        logger.info("The number of files not in the storable: {}", filesNotInStorable[0]);
+        logger.info("The number of files modified: {}", filesModified[0]);
+        long endPollStart = System.nanoTime();
+        sendStage.endPoll();
+        long flushStart = System.nanoTime();
+        sendNanos[0] += flushStart - endPollStart;
+        boolean committed = !transactional || commitTransaction();
+        Map<String, String> watermarks = fileSystem.lastListingWatermarks();
+        // Kafka is only waited on for the watermarks, a producer that isn't flushed each poll isn't otherwise
+        boolean acknowledged = committed && (transactional || watermarks.isEmpty() || sendStage.awaitPollAcknowledged());
+        boolean stored = flushPendingStorableWrites() && storableWriteBehind.getKeysFailed() == keysFailedBefore;
+        if (!watermarks.isEmpty())
+            saveWatermarks(watermarks, acknowledged && stored && !pollIncomplete);
+        long sweepStart = System.nanoTime();
+        storeNanos += sweepStart - flushStart;
+        long filesDeleted = 0;
+        if (allMarked[0]) {
+            if (fileSystem.lastListingWasComplete()) {
+                if (deleteDetection)
+                    filesDeleted = sweepDeleted(generation);
+                if (retention != null)
+                    retention.listingCompleted(generation);
+            } else
+                logger.debug("The listing only listed the keys after the watermarks, deletions aren't swept");
+        } else if (generation >= 0) {
+            logger.warn("Not every key listed could be marked as seen, deletions aren't swept this poll");
+        }
+        long pollEnd = System.nanoTime();
+        if (deleteDetection && generation >= 0)
+            sweepPhaseSeconds.observeNanos(pollEnd - sweepStart);
+
+        listPhaseSeconds.observeNanos(listNanos);
+        diffPhaseSeconds.observeNanos(diffNanos[0]);
+        sendPhaseSeconds.observeNanos(sendNanos[0]);
+        storePhaseSeconds.observeNanos(storeNanos);
+        pollSeconds.observeNanos(pollEnd - pollStart);
+        filesListedTotal.inc(filesListed[0]);
+        filesNotInStorableTotal.inc(filesNotInStorable[0]);
+        filesModifiedTotal.inc(filesModified[0]);
+        filesDeletedTotal.inc(filesDeleted);
+        logger.debug("The poll took {} ms: list {} ms, diff {} ms, send {} ms, store {} ms",
+                (pollEnd - pollStart) / 1000000, listNanos / 1000000, diffNanos[0] / 1000000,
+                sendNanos[0] / 1000000, storeNanos / 1000000);
+
+        return filesNotInStorable[0] + filesModified[0] + filesDeleted;
+    }
 
-                } catch (InterruptedException | IOException exc) {
-                    logger.warn("An exception has occured during shutdown: \n" + exc.getMessage());
+    /**
+     * Saves the watermarks the listing reached once every key it listed has been sent and stored. A poll that
+     * didn't send or store all of them leaves the watermarks where they were, so its keys are listed again
+     * rather than being left until the next full listing.
+     *
+     * @param watermarks the last key listed, by prefix
+     * @param handled    true if every key listed was sent and stored
+     */
+    private void saveWatermarks(Map<String, String> watermarks, boolean handled) {
+        if (!handled) {
+            logger.warn("Not every key listed in the poll of {} was sent and stored, the watermarks of {} prefixes " +
+                    "are left so the keys are listed again", bucketName, watermarks.size());
+            return;
+        }
+        watermarks.forEach(storageForLocationsPreviouslyLocated::putWatermark);
+    }
+
+    /**
+     * Seeds the storable with every object of the bucket without sending any events, so listening to a bucket
+     * that already holds many objects doesn't send each of them to kafka. The objects listed are written to
+     * the storable "BootstrapBatchSize" at a time, default 50000, each batch in a single transaction.
+     * <p>
+     * The bootstrap is recorded as started in the storable before the listing, and as complete once a complete
+     * listing has been written, the polls then send events as usual. A bootstrap that was stopped or failed
+     * resumes from the next poll, or the next start, comparing each page with the storable so only the objects
+     * not yet written, or since changed, are written again.
+     *
+     * @return 0, as no events are sent
+     */
+    long bootstrap() {
+        long state = storageForLocationsPreviouslyLocated.getListState(BOOTSTRAP_STATE);
+        boolean resuming = state == BOOTSTRAP_STARTED;
+        if (!resuming && !storageForLocationsPreviouslyLocated.putListState(BOOTSTRAP_STATE, BOOTSTRAP_STARTED))
+            throw new IllegalStateException("The bootstrap of " + bucketName + " couldn't be recorded as started");
+        logger.info("{} the bootstrap of {}, the objects listed are stored without sending events",
+                resuming ? "Resuming" : "Starting", bucketName);
+
+        long start = System.nanoTime();
+        long[] filesListed = {0};
+        long[] filesLoaded = {0};
+        List<StoredObject> batch = new ArrayList<>(bootstrapBatchSize);
+        fileSystem.listObjectPages((page) -> {
+            PollScheduler scheduler = pollScheduler;
+            if (scheduler != null && !scheduler.isRunning())
+                throw new IllegalStateException("The bootstrap of " + bucketName + " was stopped after "
+                        + filesLoaded[0] + " objects, it resumes when the listening is next started");
+            filesListed[0] += page.size();
+            // A resumed bootstrap skips the objects already written, a new one has nothing to compare with
+            ObjectChange[] changes = resuming ? classifyAgainstStorable(page) : null;
+            for (int i = 0; i < page.size(); i++) {
+                if (changes == null || changes[i] != ObjectChange.UNCHANGED)
+                    batch.add(StoredObject.of(page, i));
+            }
+            if (batch.size() >= bootstrapBatchSize)
+                filesLoaded[0] += loadBootstrapBatch(batch, filesLoaded[0], start);
+        });
+        filesLoaded[0] += loadBootstrapBatch(batch, filesLoaded[0], start);
+        saveWatermarks(fileSystem.lastListingWatermarks(), true);
+        lastPollFilesListed = (int) Math.min(Integer.MAX_VALUE / 2, filesListed[0]);
+        filesListedTotal.inc(filesListed[0]);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (!fileSystem.lastListingWasComplete()) {
+            logger.info("The bootstrap of {} stored {} objects from a listing that wasn't complete, " +
+                    "it carries on with the next poll", bucketName, filesLoaded[0]);
+            return 0;
+        }
+        if (!storageForLocationsPreviouslyLocated.putListState(BOOTSTRAP_STATE, BOOTSTRAP_COMPLETE))
+            throw new IllegalStateException("The bootstrap of " + bucketName + " couldn't be recorded as complete");
+        bootstrapPending = false;
+        logger.info("The bootstrap of {} stored {} of the {} objects listed in {} seconds, {} objects a second",
+                bucketName, filesLoaded[0], filesListed[0], String.format("%.3f", seconds),
+                String.format("%.0f", bootstrapKeysPerSecond));
+        return 0;
+    }
+
+    /**
+     * Writes a batch of the bootstrap to the storable and clears it.
+     *
+     * @param batch       the objects listed that aren't in the storable
+     * @param filesLoaded the objects written by the bootstrap before the batch
+     * @param start       when the bootstrap started, from {@link System#nanoTime()}
+     * @return the number of objects written
+     */
+    private int loadBootstrapBatch(List<StoredObject> batch, long filesLoaded, long start) {
+        if (batch.isEmpty())
+            return 0;
+        if (!storageForLocationsPreviouslyLocated.putObjects(batch))
+            throw new IllegalStateException("A batch of the bootstrap of " + bucketName + " couldn't be stored, " +
+                    "it resumes with the next poll");
+        int loaded = batch.size();
+        batch.clear();
+        bootstrapKeysTotal.inc(loaded);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        bootstrapKeysPerSecond = (filesLoaded + loaded) / Math.max(seconds, 1e-9);
+        logger.info("The bootstrap of {} has stored {} objects, {} objects a second",
+                bucketName, filesLoaded + loaded, String.format("%.0f", bootstrapKeysPerSecond));
+        return loaded;
+    }
+
+    /**
+     * Sends a deletion event for each object of the storable that wasn't listed in the generation, a batch
+     * at a time. The storable finds them in key order carrying on from the last key of the previous batch,
+     * so the storable is read once rather than held in memory. Each batch is removed from the storable
+     * once kafka has acknowledged it, or its transaction has committed, an object whose event failed
+     * is left to be swept by the next poll.
+     *
+     * @param generation the generation the complete listing was stamped with
+     * @return the number of deletion events acknowledged
+     */
+    private long sweepDeleted(long generation) {
+        long deleted = 0;
+        String afterKey = "";
+        List<StoredObject> unmarked;
+        do {
+            unmarked = storageForLocationsPreviouslyLocated.findUnmarked(generation, afterKey, sweepBatchSize);
+            if (unmarked.isEmpty() || (transactional && !beginTransaction()))
+                break;
+            List<StoredObject> acknowledged = Collections.synchronizedList(new ArrayList<>(unmarked.size()));
+            Map<List<String>, List<StoredObject>> batches = new LinkedHashMap<>();
+            for (StoredObject deletedObject : unmarked) {
+                sendEvent(deleteTopic, "deleted", deletedObject, batches, acknowledged::add, false);
+            }
+            sendBatches(deleteTopic, batches, acknowledged::add, false);
+            if (transactional ? commitTransaction() : flushProducer()) {
+                synchronized (acknowledged) {
+                    if (!acknowledged.isEmpty() && storageForLocationsPreviouslyLocated.removeObjects(acknowledged))
+                        deleted += acknowledged.size();
                 }
-            }));
+            }
+            afterKey = unmarked.get(unmarked.size() - 1).getKey();
+        } while (unmarked.size() == sweepBatchSize);
+        logger.info("The number of files deleted: {}", deleted);
+        return deleted;
+    }
 
-        logger.trace("A poll of the filesystem {} is beginning", fileSystem.getIdentifier());
-        // Calls list
-        Set<String> currentS3Files = fileSystem.list();
-        logger.info("The number of files listed is: {}", currentS3Files.size());
-
-        // Compares the called list with the read list
-        Set<String> differenceBetween = queryTheDifferenceFromStorable(currentS3Files);
-        logger.info("The number of files not in the storable: {}", differenceBetween.size());
-
-        // Takes any of the difference, cycles through it
-        // Sends any of the differences to the kafka topic setup.
-        differenceBetween.forEach((fileKeyInBucketNotRecordedPreviously) -> kafkaProducer.send(
-                new ProducerRecord<>(bucketName + "ListenTopic",
-                        fileKeyInBucketNotRecordedPreviously),
+    private boolean flushProducer() {
+        kafkaProducer.flush();
+        return true;
+    }
+
+    /**
+     * Begins a kafka transaction, initialising the producer's transactions the first time.
+     * A producer that has been fenced or can't continue for another reason stops the listening.
+     *
+     * @return true if the transaction was begun
+     */
+    private boolean beginTransaction() {
+        try {
+            if (!transactionsInitialised) {
+                kafkaProducer.initTransactions();
+                transactionsInitialised = true;
+            }
+            kafkaProducer.beginTransaction();
+            transactionOpen = true;
+            recordsInTransaction = 0;
+            return true;
+        } catch (ProducerFencedException | OutOfOrderSequenceException | AuthorizationException exc) {
+            stopAfterFatalTransactionError(exc);
+            return false;
+        } catch (KafkaException exc) {
+            logger.warn("A kafka transaction couldn't be begun for {}: {}", bucketName, exc.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Commits the open transaction, which waits for every record sent in it, then writes the objects sent in
+     * it to the storable in one batch. If the transaction can't be committed it is aborted and its objects are
+     * left out of the storable, so they are sent again by the next poll.
+     * A crash between the commit and the write to the storable also sends them again.
+     *
+     * @return true if the transaction was committed
+     */
+    private boolean commitTransaction() {
+        if (!transactionOpen)
+            return false;
+        transactionOpen = false;
+        try {
+            kafkaProducer.commitTransaction();
+        } catch (ProducerFencedException | OutOfOrderSequenceException | AuthorizationException exc) {
+            transactionObjects.clear();
+            stopAfterFatalTransactionError(exc);
+            return false;
+        } catch (KafkaException exc) {
+            logger.warn("The kafka transaction of {} couldn't be committed, its {} records will be sent again: {}",
+                    bucketName, recordsInTransaction, exc.getMessage());
+            transactionOpen = true;
+            abortTransaction();
+            return false;
+        }
+
+        List<StoredObject> committed;
+        synchronized (transactionObjects) {
+            committed = new ArrayList<>(transactionObjects);
+            transactionObjects.clear();
+        }
+        if (!committed.isEmpty() && !storageForLocationsPreviouslyLocated.putObjects(committed)) {
+            pollIncomplete = true;
+            logger.warn("The {} objects of a committed transaction couldn't be written to the storable, " +
+                    "they will be sent again", committed.size());
+        }
+        return true;
+    }
+
+    /**
+     * Aborts the open transaction, the objects sent in it aren't written to the storable.
+     */
+    private void abortTransaction() {
+        transactionObjects.clear();
+        if (!transactionOpen)
+            return;
+        transactionOpen = false;
+        try {
+            kafkaProducer.abortTransaction();
+        } catch (ProducerFencedException | OutOfOrderSequenceException | AuthorizationException exc) {
+            stopAfterFatalTransactionError(exc);
+        } catch (KafkaException exc) {
+            logger.warn("The kafka transaction of {} couldn't be aborted: {}", bucketName, exc.getMessage());
+        }
+    }
+
+    private void stopAfterFatalTransactionError(KafkaException exc) {
+        logger.error("The kafka producer of {} can't send any more transactions, the listening is being stopped: {}",
+                bucketName, exc.getMessage());
+        stop();
+    }
+
+    /**
+     * Drops the keys of the page already listed this poll.
+     *
+     * @param page       the objects listed
+     * @param listedKeys the keys listed before the page, the keys of the page are added to it
+     * @return the page, or the objects of it that weren't listed before
+     */
+    private ObjectPage withoutRepeatedKeys(ObjectPage page, KeyFingerprintSet listedKeys) {
+        int[] firstListed = new int[page.size()];
+        int count = 0;
+        for (int i = 0; i < page.size(); i++) {
+            if (listedKeys.add(page.keyAt(i)))
+                firstListed[count++] = i;
+            else
+                logger.warn("The key {} was already listed in this poll of {}.", page.keyAt(i), bucketName);
+        }
+        if (count == page.size())
+            return page;
+        filesListedTwiceTotal.inc(page.size() - count);
+        return page.select(firstListed, count);
+    }
+
+    /**
+     * Sends each new and modified object of the page to the kafka topic setup, each object is written to the
+     * storable once kafka has acknowledged it. This blocks while the in flight window is full.
+     * Objects stored without metadata aren't sent, their metadata is written straight to the storable.
+     *
+     * @param page    the objects listed
+     * @param changes how each object of the page compares with the storable
+     */
+    private void sendToKafka(ObjectPage page, ObjectChange[] changes) {
+        Map<List<String>, List<StoredObject>> batches = new LinkedHashMap<>();
+        for (int i = 0; i < changes.length; i++) {
+            if (changes[i] == ObjectChange.METADATA_MISSING) {
+                if (transactional || storableWriteBehind.reserve(1))
+                    writeToStorage(StoredObject.of(page, i));
+                else
+                    pollIncomplete = true;
+                continue;
+            }
+            if (!changes[i].isEvent())
+                continue;
+            sendEvent(listenTopic, changes[i] == ObjectChange.MODIFIED ? "modified" : "created",
+                    StoredObject.of(page, i), batches, this::onEventAcknowledged, true);
+        }
+        sendBatches(listenTopic, batches, this::onEventAcknowledged, true);
+    }
+
+    private void onEventAcknowledged(StoredObject fileInBucketNotRecordedPreviously) {
+        recordEventLag(fileInBucketNotRecordedPreviously);
+        writeToStorage(fileInBucketNotRecordedPreviously);
+    }
+
+
+    /**
+     * Sends the event straight away, or when records hold more than one object adds it to the batch of its
+     * record key and event type, sending the batch once it is full.
+     *
+     * @param topic          the topic the event is sent to
+     * @param eventType      the type of the event
+     * @param object         the object the event is for
+     * @param batches        the batches not yet sent, by event type and record key
+     * @param onAcknowledged called for each object of a record once kafka has acknowledged it
+     * @param storesObjects  true if onAcknowledged writes the objects to the storable
+     */
+    private void sendEvent(String topic, String eventType, StoredObject object,
+                           Map<List<String>, List<StoredObject>> batches, Consumer<StoredObject> onAcknowledged,
+                           boolean storesObjects) {
+        String recordKey = recordBuilder.recordKey(object.getKey());
+        if (recordBuilder.getBatchSize() == 1) {
+            sendRecord(topic, recordKey, eventType, Collections.singletonList(object), onAcknowledged, storesObjects);
+            return;
+        }
+        List<String> batchKey = Arrays.asList(eventType, recordKey);
+        List<StoredObject> batch = batches.computeIfAbsent(batchKey, (key) -> new ArrayList<>());
+        batch.add(object);
+        if (batch.size() >= recordBuilder.getBatchSize()) {
+            batches.remove(batchKey);
+            sendRecord(topic, recordKey, eventType, batch, onAcknowledged, storesObjects);
+        }
+    }
+
+    /**
+     * Sends the batches that aren't full, so no events are held past the page or sweep batch they came from.
+     */
+    private void sendBatches(String topic, Map<List<String>, List<StoredObject>> batches,
+                             Consumer<StoredObject> onAcknowledged, boolean storesObjects) {
+        batches.forEach((batchKey, batch) ->
+                sendRecord(topic, batchKey.get(1), batchKey.get(0), batch, onAcknowledged, storesObjects));
+        batches.clear();
+    }
+
+    /**
+     * Sends a record of the objects. When the objects are written to the storable once acknowledged, outside of
+     * a transaction, room for them in the {@link StorableWriteBehind} is reserved first, so the callback only
+     * queues them and a full queue holds back the sends rather than the producer's network thread.
+     */
+    private void sendRecord(String topic, String recordKey, String eventType, List<StoredObject> objects,
+                            Consumer<StoredObject> onAcknowledged, boolean storesObjects) {
+        int writeSlots = storesObjects && !transactional ? objects.size() : 0;
+        if (writeSlots > 0 && !storableWriteBehind.reserve(writeSlots)) {
+            pollIncomplete = true;
+            logger.warn("A record of {} {} objects wasn't sent as no room was left to store them, File location: {}",
+                    objects.size(), eventType, objects.get(0).getKey());
+            return;
+        }
+        recordsInTransaction++;
+        boolean sent = sendStage.send(recordBuilder.build(topic, recordKey, eventType, objects),
                 // CallBack, only runs when the send has been performed
                 (metadata, exceptionNullIfNone) -> {
-                    if (exceptionNullIfNone == null)
-                        writeKeyToStorage(fileKeyInBucketNotRecordedPreviously);
-                    else logger.warn("A key has failed to be sent to kafka, " +
-                                    "File location: {}\nException", fileKeyInBucketNotRecordedPreviously,
-                            exceptionNullIfNone.getMessage());
-                }));
+                    if (exceptionNullIfNone == null) {
+                        objects.forEach(onAcknowledged);
+                        return;
+                    }
+                    storableWriteBehind.release(writeSlots);
+                    logger.warn("A record of {} {} objects has failed to be sent to kafka, " +
+                                    "File location: {}\nException {}", objects.size(), eventType,
+                            objects.get(0).getKey(), exceptionNullIfNone.getMessage());
+                });
+        if (!sent)
+            storableWriteBehind.release(writeSlots);
+    }
 
-        logger.debug("Going to sleep for: " + timeBetweenPolls.toString());
-        // Sleep for the intended period of time
+    private void recordEventLag(StoredObject object) {
+        if (object.getLastModified() != ObjectPage.UNKNOWN_LAST_MODIFIED)
+            eventLagSeconds.observe(Math.max(0, System.currentTimeMillis() - object.getLastModified()) / 1000.0);
+    }
 
+    /**
+     * Compares a page of the listing with the storable, the storable may answer from a cache
+     * before querying its backing.
+     *
+     * @param currentS3Files a page of the S3 objects that are in the bucket
+     * @return how each object compares with the storable, at the same index as the object
+     */
+    ObjectChange[] classifyAgainstStorable(ObjectPage currentS3Files) {
+        logger.trace("classifyAgainstStorable");
+        return storageForLocationsPreviouslyLocated.classify(currentS3Files);
+    }
+
+    /**
+     * Queues the object to be written to the storable, this runs on the producer's thread
+     * so the write itself is left to the {@link StorableWriteBehind}, in a slot reserved before the send,
+     * or in transactional mode to the commit of the transaction.
+     *
+     * @param fileInBucketNotRecordedPreviously the object to be stored in the storable
+     */
+    private void writeToStorage(StoredObject fileInBucketNotRecordedPreviously) {
+        if (transactional)
+            transactionObjects.add(fileInBucketNotRecordedPreviously);
+        else
+            storableWriteBehind.submit(fileInBucketNotRecordedPreviously);
     }
 
     /**
-     * Uses the cache to query the difference between the S3Bucket now and before
-     * Will query the cache backing if it doesn't contain the file in the cache
+     * Waits for the keys acknowledged by kafka so far to be written to the storable.
      *
-     * @param currentS3Files the S3 objects that is in the bucket
-     * @return the S3Key files that have been read before
+     * @return true if they were all written before the timeout
      */
-    private Set<String> queryTheDifferenceFromStorable(Set<String> currentS3Files) {
-        logger.trace("queryTheDifferenceFromStorable");
-        currentS3Files.removeIf(storageForLocationsPreviouslyLocated::keyAlreadyRead);
-        return currentS3Files;
+    public boolean flushPendingStorableWrites() {
+        return flushPendingStorableWrites(storableFlushTimeoutMillis);
     }
 
     /**
-     * Writes the key to the storable
+     * Waits for the keys acknowledged by kafka so far to be written to the storable.
      *
-     * @param fileKeyInBucketNotRecordedPreviously A string of the file location to be stored in the storable
+     * @param timeoutMillis the longest time to wait
+     * @return true if they were all written before the timeout
      */
-    private void writeKeyToStorage(String fileKeyInBucketNotRecordedPreviously) {
-        storageForLocationsPreviouslyLocated.putKey(fileKeyInBucketNotRecordedPreviously);
+    public boolean flushPendingStorableWrites(long timeoutMillis) {
+        return storableWriteBehind.flush(timeoutMillis);
     }
 }
@@ -0,0 +1,260 @@
+package com.listener;
+
+import com.listener.metrics.MetricsRegistry;
+import org.apache.kafka.clients.producer.Producer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts and stops the listeners of a process and the resources they share, with one shutdown hook for all of them.
+ * <p>
+ * The listeners are started on a shared pool of polling threads. A shutdown goes through three phases:
+ * <ol>
+ * <li>stop: no more polls are scheduled</li>
+ * <li>drain: the running polls are waited on, then the records still in flight are flushed to kafka and
+ * the keys they acknowledged are written to the storables, all within "ShutdownDrainSeconds"</li>
+ * <li>close: the producer is closed, then each listener's storable, then the other resources in the
+ * order they were added</li>
+ * </ol>
+ * A shutdown only runs once, whether from the hook or called directly. The time each phase and the startup
+ * took is logged and kept in the s3listen_lifecycle_seconds gauge of the default {@link MetricsRegistry}.
+ */
+public class ListenerLifecycle {
+    private final static Logger logger = LoggerFactory.getLogger(ListenerLifecycle.class.getName());
+
+    private final Duration drainTimeout;
+    private final long createdNanos = System.nanoTime();
+    private final List<FileSystemListen> listeners = new ArrayList<>();
+    private final Map<String, Closeable> resources = new LinkedHashMap<>();
+    private final List<PollScheduler> schedulers = new ArrayList<>();
+    private Producer<?, ?> kafkaProducer;
+    private ScheduledExecutorService executor;
+    private Thread shutdownHook;
+    private boolean shutDown;
+
+    private volatile double startupSeconds;
+    private volatile double drainSeconds;
+    private volatile double shutdownSeconds;
+
+    /**
+     * The startup is timed from when this is created.
+     *
+     * @param properties the properties containing "ShutdownDrainSeconds", default 30
+     */
+    public ListenerLifecycle(Properties properties) {
+        this.drainTimeout = Duration.ofSeconds(Long.parseLong(properties.getProperty("ShutdownDrainSeconds", "30")));
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        String help = "Time taken to start the listeners, to drain them and to shut them down in full";
+        metrics.gauge("s3listen_lifecycle_seconds", help, () -> startupSeconds, "phase", "startup");
+        metrics.gauge("s3listen_lifecycle_seconds", help, () -> drainSeconds, "phase", "drain");
+        metrics.gauge("s3listen_lifecycle_seconds", help, () -> shutdownSeconds, "phase", "shutdown");
+    }
+
+    /**
+     * @param kafkaProducer the producer shared by the listeners, it is flushed while draining and then closed
+     */
+    public synchronized void manageProducer(Producer<?, ?> kafkaProducer) {
+        this.kafkaProducer = kafkaProducer;
+    }
+
+    /**
+     * @param listener a listener to start, drain and close
+     */
+    public synchronized void manage(FileSystemListen listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param name     the name of the resource for the logs
+     * @param resource a resource closed after the listeners
+     */
+    public synchronized void manage(String name, Closeable resource) {
+        resources.put(name, resource);
+    }
+
+    /**
+     * Adds the single shutdown hook that shuts the listeners down, this can be called more than once.
+     */
+    public synchronized void installShutdownHook() {
+        if (shutdownHook != null)
+            return;
+        shutdownHook = new Thread(() -> {
+            logger.info("The shutdown hook has been triggered");
+            shutdown();
+        }, "listener-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Starts polling every listener on a shared pool of threads, this returns straight away.
+     *
+     * @param threads the number of polling threads
+     */
+    public synchronized void start(int threads) {
+        if (executor != null || shutDown)
+            return;
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newScheduledThreadPool(Math.max(1, threads), (runnable) ->
+                new Thread(runnable, "listener-poller-" + threadNumber.incrementAndGet()));
+        listeners.forEach((listener) -> schedulers.add(listener.listen_on(executor)));
+        startupSeconds = secondsSince(createdNanos);
+        logger.info("{} listeners were started on {} threads, the startup took {} seconds",
+                listeners.size(), threads, String.format("%.3f", startupSeconds));
+    }
+
+    /**
+     * Blocks until every listener has stopped polling, such as after {@link #stop()} or a fatal error.
+     */
+    public void awaitStopped() {
+        List<PollScheduler> started;
+        synchronized (this) {
+            started = new ArrayList<>(schedulers);
+        }
+        try {
+            for (PollScheduler scheduler : started) {
+                while (!scheduler.awaitStop(Duration.ofMinutes(1))) {
+                    logger.trace("Still listening with {} listeners", started.size());
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.debug("An interrupt occurred: {}", e.getMessage());
+            stop();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops scheduling polls of every listener, polls already running are left to finish.
+     */
+    public synchronized void stop() {
+        listeners.forEach(FileSystemListen::stop);
+    }
+
+    /**
+     * Stops the listeners, drains what they have in flight and closes them and the resources they share.
+     * Only the first call has any effect.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (shutDown)
+                return;
+            shutDown = true;
+        }
+        long shutdownStart = System.nanoTime();
+        stop();
+
+        long drainStart = System.nanoTime();
+        boolean drained = drain(drainStart + drainTimeout.toNanos());
+        drainSeconds = secondsSince(drainStart);
+        if (drained)
+            logger.info("The listeners were drained in {} seconds", String.format("%.3f", drainSeconds));
+        else
+            logger.warn("The listeners weren't drained within {} seconds, what was left is being cut short",
+                    drainTimeout.getSeconds());
+
+        close(shutdownStart + drainTimeout.toNanos());
+        removeShutdownHook();
+        shutdownSeconds = secondsSince(shutdownStart);
+        logger.info("The shutdown took {} seconds", String.format("%.3f", shutdownSeconds));
+    }
+
+    /**
+     * Waits for the running polls, the records in flight and the storable writes, until the deadline.
+     *
+     * @param deadline the deadline as a {@link System#nanoTime()}
+     * @return true if everything was drained before the deadline
+     */
+    private boolean drain(long deadline) {
+        try {
+            for (PollScheduler scheduler : schedulers) {
+                if (!scheduler.awaitStop(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())))) {
+                    logger.warn("A running poll didn't finish before the drain timeout");
+                    return false;
+                }
+            }
+            // The producer's flush has no timeout of its own, so it is waited on from here
+            if (kafkaProducer != null) {
+                ExecutorService flusher = Executors.newSingleThreadExecutor();
+                try {
+                    Future<?> flush = flusher.submit(kafkaProducer::flush);
+                    flush.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException | ExecutionException exc) {
+                    logger.warn("The records in flight couldn't be flushed to kafka: {}", exc.toString());
+                    return false;
+                } finally {
+                    flusher.shutdownNow();
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        boolean written = true;
+        for (FileSystemListen listener : listeners) {
+            written &= listener.flushPendingStorableWrites(
+                    Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        }
+        return written;
+    }
+
+    /**
+     * Closes the producer, the polling threads, the listeners and then the other resources.
+     *
+     * @param deadline the deadline for the producer to send what it still holds, as a {@link System#nanoTime()}
+     */
+    private void close(long deadline) {
+        if (kafkaProducer != null) {
+            try {
+                // Closing the producer runs the callbacks of what it still holds, queueing their keys to be written
+                kafkaProducer.close(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (RuntimeException exc) {
+                logger.warn("The kafka producer couldn't be closed: {}", exc.getMessage());
+            }
+        }
+        if (executor != null)
+            executor.shutdown();
+        listeners.forEach(FileSystemListen::close);
+        resources.forEach((name, resource) -> {
+            try {
+                resource.close();
+            } catch (IOException | RuntimeException exc) {
+                logger.warn("The {} couldn't be closed: {}", name, exc.getMessage());
+            }
+        });
+    }
+
+    private synchronized void removeShutdownHook() {
+        if (shutdownHook == null || Thread.currentThread() == shutdownHook)
+            return;
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException exc) {
+            // The JVM is already shutting down
+        }
+    }
+
+    private static double secondsSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    public synchronized List<PollScheduler> getSchedulers() {
+        return new ArrayList<>(schedulers);
+    }
+}
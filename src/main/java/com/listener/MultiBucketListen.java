@@ -0,0 +1,177 @@
+package com.listener;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.listener.cluster.ClusterLeases;
+import com.listener.filesystem.S3FileSystem;
+import com.listener.storable.Storable;
+import org.apache.kafka.clients.producer.Producer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+
+/**
+ * Listens to many buckets in one process, each with its own {@link FileSystemListen}.
+ * <p>
+ * The buckets share one S3 client, one Kafka producer and a bounded pool of polling threads. Each
+ * bucket keeps its own storable, its own in flight window and its own poll schedule, and as a bucket's
+ * polls never overlap a slow bucket holds at most one of the polling threads.
+ * It is set from the properties:
+ * <ul>
+ * <li>buckets: a comma separated list of the buckets to listen to</li>
+ * <li>ListenerThreads: the number of polling threads shared by the buckets, by default the smaller of
+ * the number of buckets and the number of processors</li>
+ * <li>bucket.&lt;name&gt;.&lt;property&gt;: overrides any other property for a single bucket</li>
+ * </ul>
+ * When the buckets are split between many instances by {@link ClusterLeases}, each bucket is only polled
+ * while this instance holds its lease.
+ * Unless a bucket overrides it, its DataBaseLocation is the shared one with the bucket name added
+ * before the extension, so every bucket has a database of its own.
+ */
+public class MultiBucketListen {
+    private final static Logger logger = LoggerFactory.getLogger(MultiBucketListen.class.getName());
+
+    private final Map<String, FileSystemListen> listeners = new LinkedHashMap<>();
+    private final ListenerLifecycle lifecycle;
+    private final int threads;
+
+    /**
+     * @param amazonS3         the S3 client shared by the buckets
+     * @param kafkaProducer    the producer shared by the buckets
+     * @param properties       the properties holding the list of buckets and the settings they share
+     * @param timeBetweenPolls the time between the start of each poll of a bucket
+     * @param storableFactory  creates the storable of a bucket from its properties
+     */
+    public MultiBucketListen(AmazonS3 amazonS3,
+                             Producer<String, byte[]> kafkaProducer,
+                             Properties properties,
+                             Duration timeBetweenPolls,
+                             Function<Properties, Storable> storableFactory) {
+        this(amazonS3, kafkaProducer, properties, timeBetweenPolls, storableFactory, null);
+    }
+
+    /**
+     * @param amazonS3         the S3 client shared by the buckets
+     * @param kafkaProducer    the producer shared by the buckets
+     * @param properties       the properties holding the list of buckets and the settings they share
+     * @param timeBetweenPolls the time between the start of each poll of a bucket
+     * @param storableFactory  creates the storable of a bucket from its properties
+     * @param clusterLeases    splits the buckets between the instances, null to poll every bucket
+     */
+    public MultiBucketListen(AmazonS3 amazonS3,
+                             Producer<String, byte[]> kafkaProducer,
+                             Properties properties,
+                             Duration timeBetweenPolls,
+                             Function<Properties, Storable> storableFactory,
+                             ClusterLeases clusterLeases) {
+        this.lifecycle = new ListenerLifecycle(properties);
+        lifecycle.manageProducer(kafkaProducer);
+        for (Properties bucketProperties : bucketProperties(properties)) {
+            String bucketName = bucketProperties.getProperty("bucketName");
+            Storable storable = storableFactory.apply(bucketProperties);
+            S3FileSystem fileSystem = new S3FileSystem(amazonS3, bucketProperties, storable);
+            lifecycle.manage("file system of " + bucketName, fileSystem);
+            listeners.put(bucketName, new FileSystemListen(
+                    fileSystem,
+                    timeBetweenPolls,
+                    bucketProperties,
+                    storable,
+                    kafkaProducer,
+                    clusterLeases));
+        }
+        if (listeners.isEmpty())
+            throw new IllegalArgumentException("No buckets have been given to listen to");
+        listeners.values().forEach(lifecycle::manage);
+        if (clusterLeases != null)
+            lifecycle.manage("cluster leases", clusterLeases);
+
+        this.threads = Integer.parseInt(properties.getProperty("ListenerThreads",
+                Integer.toString(Math.min(listeners.size(), Runtime.getRuntime().availableProcessors()))));
+        logger.info("Listening to {} buckets on {} threads: {}", listeners.size(), threads, listeners.keySet());
+    }
+
+    /**
+     * Splits the properties into the properties of each bucket in the "buckets" list.
+     *
+     * @param properties the properties holding the list of buckets and the settings they share
+     * @return a copy of the properties for each bucket, with its bucketName and overrides set
+     */
+    public static List<Properties> bucketProperties(Properties properties) {
+        List<Properties> bucketProperties = new ArrayList<>();
+        for (String bucketName : properties.getProperty("buckets", "").split(",")) {
+            bucketName = bucketName.trim();
+            if (bucketName.isEmpty())
+                continue;
+            Properties bucket = new Properties();
+            String overridePrefix = "bucket." + bucketName + ".";
+            for (String name : properties.stringPropertyNames()) {
+                if (!name.startsWith("bucket."))
+                    bucket.setProperty(name, properties.getProperty(name));
+            }
+            bucket.remove("buckets");
+            bucket.setProperty("bucketName", bucketName);
+            String sharedLocation = properties.getProperty("DataBaseLocation");
+            if (sharedLocation != null)
+                bucket.setProperty("DataBaseLocation", databaseLocationFor(sharedLocation, bucketName));
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith(overridePrefix))
+                    bucket.setProperty(name.substring(overridePrefix.length()), properties.getProperty(name));
+            }
+            bucketProperties.add(bucket);
+        }
+        return bucketProperties;
+    }
+
+    private static String databaseLocationFor(String sharedLocation, String bucketName) {
+        int extensionAt = sharedLocation.lastIndexOf('.');
+        int fileNameAt = Math.max(sharedLocation.lastIndexOf('/'), sharedLocation.lastIndexOf('\\'));
+        if (extensionAt <= fileNameAt)
+            return sharedLocation + "-" + bucketName;
+        return sharedLocation.substring(0, extensionAt) + "-" + bucketName + sharedLocation.substring(extensionAt);
+    }
+
+    /**
+     * Starts polling every bucket on the shared threads, this returns straight away.
+     */
+    public void start() {
+        lifecycle.start(threads);
+    }
+
+    /**
+     * Polls every bucket until {@link #stop()} is called, this blocks until they have all stopped.
+     */
+    public void listen_forever() {
+        start();
+        lifecycle.awaitStopped();
+    }
+
+    /**
+     * Stops scheduling polls of every bucket, polls already running are left to finish.
+     */
+    public void stop() {
+        lifecycle.stop();
+    }
+
+    /**
+     * Stops the polling, drains what is in flight, then closes the shared threads, the producer,
+     * each bucket's storable and releases the leases held.
+     */
+    public void close() {
+        lifecycle.shutdown();
+    }
+
+    public ListenerLifecycle getLifecycle() {
+        return lifecycle;
+    }
+
+    public Map<String, FileSystemListen> getListeners() {
+        return Collections.unmodifiableMap(listeners);
+    }
+}
@@ -0,0 +1,220 @@
+package com.listener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Runs a poll at a fixed rate on a {@link ScheduledExecutorService}.
+ * <p>
+ * The period is measured from the start of one poll to the start of the next, so the time spent
+ * listing doesn't push the polls back. A poll never runs while the previous one is still running,
+ * when a poll runs past its next start the missed ticks are either skipped or coalesced into a
+ * single poll run straight away. With adaptive intervals the period is halved after a poll that
+ * found new keys and grown by half after a poll that found none, within the bounds given.
+ * It is set from the properties:
+ * <ul>
+ * <li>PollOverrun: "skip" (default) to wait for the next tick, or "coalesce" to poll again at once</li>
+ * <li>PollAdaptive: "true" to adapt the interval to the keys found, default false</li>
+ * <li>PollMinIntervalMillis, PollMaxIntervalMillis: the bounds of an adaptive interval,
+ * by default a tenth of and six times the interval</li>
+ * </ul>
+ */
+public class PollScheduler {
+    private final static Logger logger = LoggerFactory.getLogger(PollScheduler.class.getName());
+
+    private final LongSupplier poll;
+    private final ScheduledExecutorService executor;
+    private final boolean ownsExecutor;
+    private final String name;
+    private final long baseIntervalNanos;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    private final boolean adaptive;
+    private final boolean coalesceOverruns;
+
+    private final AtomicLong pollsCompleted = new AtomicLong();
+    private final AtomicLong ticksSkipped = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean running;
+    private boolean polling;
+    private volatile long currentIntervalNanos;
+    private ScheduledFuture<?> nextPoll;
+
+    /**
+     * Creates a scheduler with its own single thread, which is shut down when the scheduler stops.
+     *
+     * @param name       a name for the polls, used in the logs and the thread name
+     * @param poll       runs a single poll and gives back the number of new keys it found
+     * @param interval   the time between the start of each poll
+     * @param properties the properties containing the scheduling configuration
+     */
+    public PollScheduler(String name, LongSupplier poll, Duration interval, Properties properties) {
+        this(name, poll, interval, properties, Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "poll-scheduler-" + name);
+            thread.setDaemon(false);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * Creates a scheduler that runs its polls on a shared executor, the executor is left running when it stops.
+     *
+     * @param name       a name for the polls, used in the logs
+     * @param poll       runs a single poll and gives back the number of new keys it found
+     * @param interval   the time between the start of each poll
+     * @param properties the properties containing the scheduling configuration
+     * @param executor   the executor the polls are run on
+     */
+    public PollScheduler(String name, LongSupplier poll, Duration interval, Properties properties,
+                         ScheduledExecutorService executor) {
+        this(name, poll, interval, properties, executor, false);
+    }
+
+    private PollScheduler(String name, LongSupplier poll, Duration interval, Properties properties,
+                          ScheduledExecutorService executor, boolean ownsExecutor) {
+        this.name = name;
+        this.poll = poll;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.baseIntervalNanos = interval.toNanos();
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties.getProperty(
+                "PollMinIntervalMillis", Long.toString(interval.toMillis() / 10))));
+        this.maxIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties.getProperty(
+                "PollMaxIntervalMillis", Long.toString(interval.toMillis() * 6))));
+        this.adaptive = properties.getProperty("PollAdaptive", "false").equals("true");
+        String overrun = properties.getProperty("PollOverrun", "skip");
+        if (!overrun.equals("skip") && !overrun.equals("coalesce"))
+            throw new IllegalArgumentException("Unknown PollOverrun: " + overrun);
+        this.coalesceOverruns = overrun.equals("coalesce");
+        this.currentIntervalNanos = baseIntervalNanos;
+    }
+
+    /**
+     * Starts polling straight away.
+     */
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        logger.info("Polling {} every {} ms{}", name, TimeUnit.NANOSECONDS.toMillis(baseIntervalNanos),
+                adaptive ? " adaptively" : "");
+        nextPoll = executor.schedule(this::runPoll, 0, TimeUnit.NANOSECONDS);
+    }
+
+    private void runPoll() {
+        synchronized (this) {
+            if (!running)
+                return;
+            polling = true;
+        }
+        long startedAt = System.nanoTime();
+        long newKeys = 0;
+        try {
+            newKeys = poll.getAsLong();
+        } catch (RuntimeException exc) {
+            logger.warn("The poll of {} has failed: {}", name, exc.getMessage(), exc);
+        } catch (Error err) {
+            // The listener can't be trusted to poll again, so the scheduler stops and waiters are released
+            logger.error("The poll of {} has failed, stopping polling: {}", name, err.toString(), err);
+            synchronized (this) {
+                running = false;
+            }
+            throw err;
+        } finally {
+            pollsCompleted.incrementAndGet();
+            long pollNanos = System.nanoTime() - startedAt;
+            if (adaptive)
+                adaptInterval(newKeys);
+            scheduleNext(startedAt, pollNanos);
+        }
+    }
+
+    private void adaptInterval(long newKeys) {
+        long interval = newKeys > 0 ? currentIntervalNanos / 2 : currentIntervalNanos + currentIntervalNanos / 2;
+        currentIntervalNanos = Math.max(minIntervalNanos, Math.min(maxIntervalNanos, interval));
+    }
+
+    private synchronized void scheduleNext(long startedAt, long pollNanos) {
+        polling = false;
+        if (!running) {
+            finish();
+            return;
+        }
+        long interval = Math.max(1, currentIntervalNanos);
+        long delay = startedAt + interval - System.nanoTime();
+        if (delay < 0) {
+            long missedTicks = -delay / interval + 1;
+            if (coalesceOverruns) {
+                logger.info("The poll of {} took {} ms and ran over {} ticks, polling again now",
+                        name, TimeUnit.NANOSECONDS.toMillis(pollNanos), missedTicks);
+                delay = 0;
+            } else {
+                ticksSkipped.addAndGet(missedTicks);
+                logger.info("The poll of {} took {} ms, skipping {} ticks",
+                        name, TimeUnit.NANOSECONDS.toMillis(pollNanos), missedTicks);
+                delay += missedTicks * interval;
+            }
+        }
+        logger.debug("The next poll of {} is in {} ms", name, TimeUnit.NANOSECONDS.toMillis(delay));
+        nextPoll = executor.schedule(this::runPoll, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops scheduling polls, a poll already running is left to finish.
+     */
+    public synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        // A poll that is running finishes the stop once it is done.
+        if (!polling) {
+            if (nextPoll != null)
+                nextPoll.cancel(false);
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (ownsExecutor)
+            executor.shutdown();
+        logger.info("Polling of {} has stopped after {} polls", name, pollsCompleted.get());
+        stopped.countDown();
+    }
+
+    /**
+     * Waits for the scheduler to stop and any running poll to finish.
+     *
+     * @param timeout the longest time to wait
+     * @return true if the scheduler stopped in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitStop(Duration timeout) throws InterruptedException {
+        return stopped.await(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getPollsCompleted() {
+        return pollsCompleted.get();
+    }
+
+    public long getTicksSkipped() {
+        return ticksSkipped.get();
+    }
+
+    public Duration getCurrentInterval() {
+        return Duration.ofNanos(currentIntervalNanos);
+    }
+}
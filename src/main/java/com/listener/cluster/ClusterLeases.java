@@ -0,0 +1,129 @@
+package com.listener.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Splits the units of work, the buckets, between the listener instances sharing a {@link Coordinator}.
+ * <p>
+ * Every instance is configured with the same units and asks before each poll of a unit whether it owns it.
+ * An instance takes up to its fair share of the units, the number of units divided by the number of live
+ * instances rounded up, renewing the lease of each unit it owns on every poll. When more instances join an
+ * instance over its share releases units as it polls them, and when an instance dies its leases expire and
+ * are taken by the others, so the listing is spread across the instances and survives any of them failing.
+ * <p>
+ * The lease needs to outlast a poll, as a poll isn't stopped when its lease expires.
+ * It is set from the properties:
+ * <ul>
+ * <li>Clustered: "true" to split the units between the instances, default false</li>
+ * <li>ClusterLeaseSeconds: how long a lease lasts without being renewed, default 60</li>
+ * <li>the {@link Coordinator} configuration</li>
+ * </ul>
+ */
+public class ClusterLeases implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(ClusterLeases.class.getName());
+
+    private final Coordinator coordinator;
+    private final List<String> units;
+    private final Duration lease;
+    private final Set<String> held = new LinkedHashSet<>();
+    private long lastHeartbeatMillis;
+
+    /**
+     * @param coordinator the store shared by the instances
+     * @param units       the units every instance is configured with
+     * @param lease       how long a lease lasts without being renewed
+     */
+    public ClusterLeases(Coordinator coordinator, Collection<String> units, Duration lease) {
+        this.coordinator = coordinator;
+        this.units = new ArrayList<>(units);
+        this.lease = lease;
+    }
+
+    /**
+     * @param properties the properties containing the cluster configuration
+     * @param units      the units every instance is configured with
+     * @return the leases, or null when "Clustered" isn't set
+     * @throws IOException if the coordinator's shared store can't be reached
+     */
+    public static ClusterLeases fromProperties(Properties properties, Collection<String> units) throws IOException {
+        if (!properties.getProperty("Clustered", "false").equals("true"))
+            return null;
+        return new ClusterLeases(Coordinator.fromProperties(properties), units,
+                Duration.ofSeconds(Long.parseLong(properties.getProperty("ClusterLeaseSeconds", "60"))));
+    }
+
+    /**
+     * Decides whether this instance polls the unit now, acquiring, renewing or releasing its lease.
+     *
+     * @param unit the unit about to be polled
+     * @return true if this instance holds the lease of the unit
+     */
+    public synchronized boolean owns(String unit) {
+        long now = System.currentTimeMillis();
+        // The membership is renewed well within its lease so a slow poll doesn't drop it
+        if (now - lastHeartbeatMillis >= lease.toMillis() / 3 && coordinator.heartbeat(lease))
+            lastHeartbeatMillis = now;
+        int liveInstances = coordinator.liveInstances();
+        int fairShare = (units.size() + liveInstances - 1) / liveInstances;
+
+        if (held.contains(unit)) {
+            if (held.size() > fairShare) {
+                coordinator.release(unit);
+                held.remove(unit);
+                logger.info("{} has released {} as it holds more than its share of {} units between {} instances",
+                        coordinator.getInstanceId(), unit, units.size(), liveInstances);
+                return false;
+            }
+            if (coordinator.tryAcquire(unit, lease))
+                return true;
+            held.remove(unit);
+            logger.warn("{} has lost the lease of {} to {}", coordinator.getInstanceId(), unit,
+                    coordinator.getOwner(unit));
+            return false;
+        }
+        if (held.size() >= fairShare || !coordinator.tryAcquire(unit, lease))
+            return false;
+        held.add(unit);
+        logger.info("{} has acquired the lease of {}", coordinator.getInstanceId(), unit);
+        return true;
+    }
+
+    /**
+     * Releases the lease of the unit if it is held, such as when its listener stops.
+     *
+     * @param unit the unit of work
+     */
+    public synchronized void release(String unit) {
+        if (held.remove(unit))
+            coordinator.release(unit);
+    }
+
+    public synchronized Set<String> getHeld() {
+        return new LinkedHashSet<>(held);
+    }
+
+    public Coordinator getCoordinator() {
+        return coordinator;
+    }
+
+    /**
+     * Releases every lease held and ends the membership of this instance.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        held.forEach(coordinator::release);
+        held.clear();
+        coordinator.close();
+    }
+}
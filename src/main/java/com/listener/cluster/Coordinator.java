@@ -0,0 +1,89 @@
+package com.listener.cluster;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * The shared store listener instances coordinate through. Each unit of work, a bucket, is owned by at
+ * most one instance at a time through a lease that the owner renews before it expires. When an owner
+ * stops renewing its leases, such as when it dies, another instance acquires them once they expire.
+ * <p>
+ * Instances also renew a membership lease so each can tell how many instances are sharing the units.
+ */
+public interface Coordinator extends Closeable {
+    /**
+     * @return the identifier of this instance, unique among the instances sharing the store
+     */
+    String getInstanceId();
+
+    /**
+     * Acquires the lease of the unit if it is free, expired or already held by this instance,
+     * renewing it until the lease duration from now.
+     *
+     * @param unit  the unit of work
+     * @param lease how long the lease lasts without being renewed
+     * @return true if this instance now holds the lease
+     */
+    boolean tryAcquire(String unit, Duration lease);
+
+    /**
+     * Gives up the lease of the unit if this instance holds it, so another instance can acquire it straight away.
+     *
+     * @param unit the unit of work
+     * @return true if the lease was held and has been released
+     */
+    boolean release(String unit);
+
+    /**
+     * @param unit the unit of work
+     * @return the instance holding an unexpired lease of the unit, or null if it is free
+     */
+    String getOwner(String unit);
+
+    /**
+     * Renews the membership lease of this instance.
+     *
+     * @param lease how long the membership lasts without being renewed
+     * @return true if the membership was renewed
+     */
+    boolean heartbeat(Duration lease);
+
+    /**
+     * @return the number of instances with an unexpired membership, at least 1
+     */
+    int liveInstances();
+
+    /**
+     * Ends the membership of this instance, the leases it holds are left to be released or to expire.
+     */
+    @Override
+    void close() throws IOException;
+
+    /**
+     * Creates the coordinator named by "ClusterCoordinator", only "file" is provided: a
+     * {@link FileLockCoordinator} in "ClusterDirectory". The instance is identified by "ClusterInstanceId",
+     * by default the process name with a random suffix.
+     *
+     * @param properties the properties containing the coordinator configuration
+     * @return the coordinator
+     * @throws IOException if the shared store can't be reached
+     */
+    static Coordinator fromProperties(Properties properties) throws IOException {
+        String instanceId = properties.getProperty("ClusterInstanceId", "");
+        if (instanceId.isEmpty())
+            instanceId = ManagementFactory.getRuntimeMXBean().getName() + "-"
+                    + UUID.randomUUID().toString().substring(0, 8);
+        String coordinator = properties.getProperty("ClusterCoordinator", "file");
+        if (!coordinator.equals("file"))
+            throw new IllegalArgumentException("Unknown ClusterCoordinator: " + coordinator);
+        String directory = properties.getProperty("ClusterDirectory", "");
+        if (directory.isEmpty())
+            throw new IllegalArgumentException("A ClusterDirectory shared by the instances is needed");
+        return new FileLockCoordinator(Paths.get(directory), instanceId);
+    }
+}
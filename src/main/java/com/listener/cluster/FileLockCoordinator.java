@@ -0,0 +1,173 @@
+package com.listener.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link Coordinator} keeping its leases as files in a directory shared by the instances, such as a
+ * local directory for instances on one host or a network file system that supports file locks.
+ * <p>
+ * Each unit has a lease file holding its owner and the time its lease expires, and each instance has a
+ * membership file under "members" holding the time its membership expires. A file is only read and
+ * rewritten while its lock is held, so two instances can't both take a free lease. Lease expiry is
+ * compared against the clock of each instance, so their clocks need to agree to well within a lease.
+ */
+public class FileLockCoordinator implements Coordinator {
+    private final static Logger logger = LoggerFactory.getLogger(FileLockCoordinator.class.getName());
+    // File locks are held by the whole process, so instances in one process also lock each file in memory
+    private final static ConcurrentHashMap<Path, Object> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path leaseDirectory;
+    private final Path memberDirectory;
+    private final String instanceId;
+
+    /**
+     * @param directory  the directory shared by the instances, it is created if it doesn't exist
+     * @param instanceId the identifier of this instance
+     * @throws IOException if the directory can't be created
+     */
+    public FileLockCoordinator(Path directory, String instanceId) throws IOException {
+        if (instanceId.contains("\n"))
+            throw new IllegalArgumentException("The instance id can't hold a line break");
+        this.leaseDirectory = Files.createDirectories(directory.resolve("leases")).toAbsolutePath().normalize();
+        this.memberDirectory = Files.createDirectories(directory.resolve("members")).toAbsolutePath().normalize();
+        this.instanceId = instanceId;
+    }
+
+    @Override
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    @Override
+    public boolean tryAcquire(String unit, Duration lease) {
+        return update(leaseFile(unit), (owner, expiresAt, now) ->
+                owner == null || owner.equals(instanceId) || expiresAt <= now ? now + lease.toMillis() : -1);
+    }
+
+    @Override
+    public boolean release(String unit) {
+        return update(leaseFile(unit), (owner, expiresAt, now) -> instanceId.equals(owner) ? 0 : -1);
+    }
+
+    @Override
+    public String getOwner(String unit) {
+        String[] owner = new String[1];
+        update(leaseFile(unit), (currentOwner, expiresAt, now) -> {
+            if (expiresAt > now)
+                owner[0] = currentOwner;
+            return -1;
+        });
+        return owner[0];
+    }
+
+    @Override
+    public boolean heartbeat(Duration lease) {
+        return update(memberDirectory.resolve(fileName(instanceId)),
+                (owner, expiresAt, now) -> now + lease.toMillis());
+    }
+
+    @Override
+    public int liveInstances() {
+        int live = 0;
+        try (DirectoryStream<Path> members = Files.newDirectoryStream(memberDirectory)) {
+            for (Path member : members) {
+                boolean[] alive = new boolean[1];
+                update(member, (owner, expiresAt, now) -> {
+                    alive[0] = expiresAt > now;
+                    return -1;
+                });
+                if (alive[0])
+                    live++;
+            }
+        } catch (IOException exc) {
+            logger.warn("The members in {} couldn't be listed: {}", memberDirectory, exc.getMessage());
+        }
+        return Math.max(1, live);
+    }
+
+    @Override
+    public void close() {
+        update(memberDirectory.resolve(fileName(instanceId)), (owner, expiresAt, now) -> 0);
+    }
+
+    private Path leaseFile(String unit) {
+        return leaseDirectory.resolve(fileName(unit));
+    }
+
+    private static String fileName(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8");
+        } catch (UnsupportedEncodingException exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    /**
+     * Decides the new expiry of a lease file from what it holds.
+     */
+    private interface LeaseUpdate {
+        /**
+         * @param owner     the owner in the file, null when it is empty
+         * @param expiresAt the time the lease expires in milliseconds since the epoch, 0 when it is empty
+         * @param now       the current time in milliseconds since the epoch
+         * @return the new expiry with this instance as the owner, 0 to empty the file or -1 to leave it as it is
+         */
+        long expiry(String owner, long expiresAt, long now);
+    }
+
+    /**
+     * Reads and rewrites the file while holding its lock.
+     *
+     * @param file   the lease or membership file
+     * @param update decides what the file is rewritten with
+     * @return true if the file was rewritten
+     */
+    private boolean update(Path file, LeaseUpdate update) {
+        synchronized (PROCESS_LOCKS.computeIfAbsent(file, (path) -> new Object())) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    ByteBuffer contents = ByteBuffer.allocate((int) channel.size());
+                    while (contents.hasRemaining() && channel.read(contents) >= 0) {
+                        // Reads the whole file
+                    }
+                    String[] lines = new String(contents.array(), 0, contents.position(), StandardCharsets.UTF_8)
+                            .split("\n");
+                    String owner = lines.length >= 2 ? lines[0] : null;
+                    long expiresAt = lines.length >= 2 ? Long.parseLong(lines[1].trim()) : 0;
+
+                    long newExpiry = update.expiry(owner, expiresAt, System.currentTimeMillis());
+                    if (newExpiry < 0)
+                        return false;
+                    channel.truncate(0);
+                    if (newExpiry > 0)
+                        channel.write(ByteBuffer.wrap((instanceId + "\n" + newExpiry + "\n")
+                                .getBytes(StandardCharsets.UTF_8)), 0);
+                    channel.force(false);
+                    return true;
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException | NumberFormatException exc) {
+                logger.warn("The lease file {} couldn't be updated: {}", file, exc.getMessage());
+                return false;
+            }
+        }
+    }
+}
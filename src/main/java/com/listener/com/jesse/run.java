@@ -1,9 +1,19 @@
 package com.listener.com.jesse;
 
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.listener.FileSystemListen;
+import com.listener.ListenerLifecycle;
+import com.listener.MultiBucketListen;
+import com.listener.cluster.ClusterLeases;
 import com.listener.filesystem.S3FileSystem;
+import com.listener.metrics.MetricsRegistry;
+import com.listener.metrics.MetricsReporter;
+import com.listener.storable.CachingStorable;
+import com.listener.storable.MappedIndexStorable;
 import com.listener.storable.SQLiteStorable;
+import com.listener.storable.Storable;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,7 +21,9 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.Duration;
+import java.util.Collections;
 import java.util.Properties;
+import java.util.stream.Collectors;
 
 import static java.lang.System.exit;
 
@@ -34,6 +46,14 @@ public class run {
         }
     }
 
+    private static Storable createStorable(Properties properties) {
+        Storable storable = properties.getProperty("StorableType", "sqlite").equals("mapped") ?
+                new MappedIndexStorable(properties) : new SQLiteStorable(properties);
+        if (properties.getProperty("CacheEnabled", "false").equals("true"))
+            storable = new CachingStorable(storable, properties);
+        return storable;
+    }
+
     public static void main(String[] args) {
         Properties propertiesToWrite = null;
         try {
@@ -51,14 +71,80 @@ public class run {
         Properties kafkaProducerProperties = loadProperties("kafkaProducer.properties");
 
         assert generalConfig != null;
+        // Times the startup of a single bucket, a list of buckets has a lifecycle of its own
+        ListenerLifecycle lifecycle = new ListenerLifecycle(generalConfig);
+
+        try {
+            // Left running for the life of the process
+            new MetricsReporter(MetricsRegistry.getDefault(), generalConfig);
+        } catch (IOException e) {
+            logger.warn("The metrics endpoint couldn't be started: " + e.getMessage());
+        }
+
+        boolean transactional = generalConfig.getProperty("KafkaTransactional", "false").equals("true");
+        boolean multiBucket = !generalConfig.getProperty("buckets", "").trim().isEmpty();
+        if (transactional) {
+            // A producer has one transaction open at a time, so it can't be shared by the buckets
+            if (multiBucket) {
+                logger.error("KafkaTransactional can't be used with a list of buckets, run a process for each bucket");
+                exit(1);
+            }
+            if (kafkaProducerProperties.getProperty("transactional.id") == null)
+                kafkaProducerProperties.setProperty("transactional.id",
+                        "s3listen-" + generalConfig.getProperty("bucketName"));
+        }
+
+        KafkaProducer<String, byte[]> kafkaProducer =
+                new KafkaProducer<>(kafkaProducerProperties, new StringSerializer(), new ByteArraySerializer());
+
+        // The buckets are split between every instance configured with the same ClusterDirectory
+        ClusterLeases clusterLeases = null;
+        try {
+            clusterLeases = ClusterLeases.fromProperties(generalConfig, multiBucket ?
+                    MultiBucketListen.bucketProperties(generalConfig).stream()
+                            .map((bucket) -> bucket.getProperty("bucketName"))
+                            .collect(Collectors.toList()) :
+                    Collections.singletonList(generalConfig.getProperty("bucketName")));
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error("The cluster coordinator couldn't be created: " + e.getMessage());
+            exit(1);
+        }
+
+        if (multiBucket) {
+            // Listens to every bucket in the list from this process
+            MultiBucketListen multiBucketListen = new MultiBucketListen(AmazonS3ClientBuilder.defaultClient(),
+                    kafkaProducer,
+                    generalConfig,
+                    Duration.ofSeconds(20),
+                    run::createStorable,
+                    clusterLeases);
+            multiBucketListen.getLifecycle().installShutdownHook();
+            multiBucketListen.listen_forever();
+            // The listening only stops by itself after a fatal error, what was sent is still drained
+            multiBucketListen.close();
+            return;
+        }
+
+        Storable storable = createStorable(generalConfig);
+        S3FileSystem fileSystem = new S3FileSystem(AmazonS3ClientBuilder.defaultClient(), generalConfig, storable);
 
         FileSystemListen fileListener = new FileSystemListen(
-                new S3FileSystem(generalConfig.getProperty("bucketName")),
+                fileSystem,
                 Duration.ofSeconds(20),
                 generalConfig,
-                new SQLiteStorable(generalConfig),
-                new KafkaProducer<>(kafkaProducerProperties, new StringSerializer(), new StringSerializer()));
+                storable,
+                kafkaProducer,
+                clusterLeases);
 
-        fileListener.listen_forever();
+        lifecycle.manageProducer(kafkaProducer);
+        lifecycle.manage(fileListener);
+        lifecycle.manage("file system", fileSystem);
+        if (clusterLeases != null)
+            lifecycle.manage("cluster leases", clusterLeases);
+        lifecycle.installShutdownHook();
+        lifecycle.start(1);
+        lifecycle.awaitStopped();
+        // The listening only stops by itself after a fatal error, what was sent is still drained
+        lifecycle.shutdown();
     }
 }
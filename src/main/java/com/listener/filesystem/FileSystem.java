@@ -1,6 +1,10 @@
 package com.listener.filesystem;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public interface FileSystem {
     /**
@@ -10,5 +14,46 @@ public interface FileSystem {
      */
     Set<String> list();
 
+    /**
+     * Lists the objects a page at a time, so the caller only holds one page of locations at once.
+     * The default implementation passes the whole of {@link #list()} as a single page.
+     *
+     * @param pageConsumer called with each page of locations in string format, in listing order
+     */
+    default void listInPages(Consumer<Collection<String>> pageConsumer) {
+        pageConsumer.accept(list());
+    }
+
+    /**
+     * Lists the objects a page at a time with whatever metadata the file system has for them.
+     * The default implementation passes on the pages of {@link #listInPages(Consumer)} with no metadata.
+     *
+     * @param pageConsumer called with each page of objects, in listing order
+     */
+    default void listObjectPages(Consumer<ObjectPage> pageConsumer) {
+        listInPages((keys) -> pageConsumer.accept(ObjectPage.ofKeys(keys)));
+    }
+
+    /**
+     * Whether the last listing listed every object, so an object it didn't list has been deleted.
+     * The default implementation always lists every object.
+     *
+     * @return true if the last listing listed every object
+     */
+    default boolean lastListingWasComplete() {
+        return true;
+    }
+
+    /**
+     * The watermarks reached by the last listing, the last key it listed under each prefix. These are left to the
+     * caller to save in the storable once every key listed has been handled, so the next listing starts after them.
+     * The default implementation doesn't list from watermarks.
+     *
+     * @return the last key listed, by prefix
+     */
+    default Map<String, String> lastListingWatermarks() {
+        return Collections.emptyMap();
+    }
+
     String getIdentifier();
 }
@@ -0,0 +1,135 @@
+package com.listener.filesystem;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A page of listed objects with their metadata.
+ * <p>
+ * The page is held as parallel arrays rather than an object per listed key, so a page costs its
+ * keys and ETags plus two longs per object whatever its size. Metadata a file system doesn't have
+ * is left unknown: a size of {@link #UNKNOWN_SIZE}, a null ETag and a last modified of
+ * {@link #UNKNOWN_LAST_MODIFIED}.
+ */
+public final class ObjectPage {
+    public final static long UNKNOWN_SIZE = -1;
+    public final static long UNKNOWN_LAST_MODIFIED = 0;
+
+    private String[] keys;
+    private long[] sizes;
+    private String[] eTags;
+    private long[] lastModified;
+    private int size;
+
+    /**
+     * @param capacity the number of objects expected in the page, the page grows past this if needed
+     */
+    public ObjectPage(int capacity) {
+        capacity = Math.max(1, capacity);
+        this.keys = new String[capacity];
+        this.sizes = new long[capacity];
+        this.eTags = new String[capacity];
+        this.lastModified = new long[capacity];
+    }
+
+    /**
+     * Creates a page of keys whose metadata isn't known.
+     *
+     * @param keys the keys of the page
+     * @return the page
+     */
+    public static ObjectPage ofKeys(Collection<String> keys) {
+        ObjectPage page = new ObjectPage(keys.size());
+        for (String key : keys) {
+            page.add(key, UNKNOWN_SIZE, null, UNKNOWN_LAST_MODIFIED);
+        }
+        return page;
+    }
+
+    /**
+     * Adds an object to the end of the page.
+     *
+     * @param key          the key of the object
+     * @param size         the size in bytes, or {@link #UNKNOWN_SIZE}
+     * @param eTag         the ETag, or null if it isn't known
+     * @param lastModified the last modified time in milliseconds since the epoch, or {@link #UNKNOWN_LAST_MODIFIED}
+     */
+    public void add(String key, long size, String eTag, long lastModified) {
+        if (this.size == keys.length)
+            grow();
+        keys[this.size] = key;
+        sizes[this.size] = size;
+        eTags[this.size] = eTag;
+        this.lastModified[this.size] = lastModified;
+        this.size++;
+    }
+
+    private void grow() {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        eTags = Arrays.copyOf(eTags, capacity);
+        lastModified = Arrays.copyOf(lastModified, capacity);
+    }
+
+    /**
+     * Creates a page of some of the objects of this page.
+     *
+     * @param indexes the indexes of the objects in this page
+     * @param count   the number of indexes to use
+     * @return a page of the objects at the indexes, in the order given
+     */
+    public ObjectPage select(int[] indexes, int count) {
+        ObjectPage selected = new ObjectPage(count);
+        for (int i = 0; i < count; i++) {
+            int index = indexes[i];
+            selected.add(keys[index], sizes[index], eTags[index], lastModified[index]);
+        }
+        return selected;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public String keyAt(int index) {
+        return keys[index];
+    }
+
+    public long sizeAt(int index) {
+        return sizes[index];
+    }
+
+    public String eTagAt(int index) {
+        return eTags[index];
+    }
+
+    public long lastModifiedAt(int index) {
+        return lastModified[index];
+    }
+
+    /**
+     * @return the keys of the page as a list backed by the page, no copy is made
+     */
+    public List<String> keys() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                if (index >= size)
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+                return keys[index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -6,18 +6,93 @@ import com.amazonaws.services.s3.model.ListObjectsV2Request;
 import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.listener.FileSystemListen;
+import com.listener.metrics.Counter;
+import com.listener.metrics.Histogram;
+import com.listener.metrics.MetricsRegistry;
+import com.listener.storable.Storable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
-public class S3FileSystem implements FileSystem {
+/**
+ * A {@link FileSystem} listing an S3 bucket.
+ * <p>
+ * The bucket can be listed as a single sequential chain of requests, or sharded into prefixes
+ * that are each listed on their own worker thread. The sharding is set from the properties:
+ * <ul>
+ * <li>S3ShardPrefixes: a comma separated list of prefixes to list, keys outside of these aren't listed</li>
+ * <li>S3ShardDelimiter: when no prefixes are given, the prefixes are discovered from the common
+ * prefixes of the bucket root using this delimiter</li>
+ * <li>S3ListingParallelism: the number of prefixes listed at once, default 1</li>
+ * </ul>
+ * <p>
+ * For buckets whose keys are written in increasing order, such as time ordered prefixes, the
+ * listing can be made incremental. The last key listed under each prefix is kept in a {@link Storable}
+ * as a watermark and the next listing starts after it. The watermarks a listing reaches are handed to the
+ * caller by {@link #lastListingWatermarks()}, to be saved once the keys listed have been handled.
+ * As keys written out of order are missed by this, the whole of each prefix is listed again every so often:
+ * <ul>
+ * <li>S3IncrementalListing: "true" to list from the watermarks, default false</li>
+ * <li>S3FullListingEvery: a full listing is done once in this many polls, default 30,
+ * the first poll is always a full listing</li>
+ * </ul>
+ * When the bucket isn't sharded, the request for each page is sent as soon as the continuation token of the
+ * page before it has arrived, on a prefetch thread, while the pages already listed are passed on by the
+ * thread listing. A sharded listing already overlaps the requests of its prefixes so isn't prefetched.
+ * <ul>
+ * <li>S3ListingPrefetchPages: the most pages listed ahead of the one being passed on, default 2,
+ * 0 to request each page only once the one before it has been passed on</li>
+ * </ul>
+ * Each ListObjectsV2 page and the time taken to get it are recorded in the default {@link MetricsRegistry}.
+ * <p>
+ * The listing and prefetch threads are started on the first listing that needs them and are stopped by
+ * {@link #close()}, the S3 client is left open as it can be shared.
+ */
+public class S3FileSystem implements FileSystem, Closeable {
     private final Logger logger = LoggerFactory.getLogger(FileSystemListen.class.getName());
-    private final AmazonS3 s3 = AmazonS3ClientBuilder.defaultClient();
+    public final static int DEFAULT_PREFETCH_PAGES = 2;
+    // Passed on by the prefetch thread once the last page of a listing has been queued
+    private final static ObjectPage END_OF_LISTING = new ObjectPage(0);
+    private final AmazonS3 s3;
     private final String bucketToList;
     private final int maxNumberToListInOneGo;
+    private final List<String> shardPrefixes;
+    private final String shardDelimiter;
+    private final int listingParallelism;
+    private final Storable watermarkStorable;
+    private final int fullListingEvery;
+    private final int prefetchPages;
+    private int pollsSinceFullListing = 0;
+    private volatile boolean lastListingFull = true;
+    // The last key listed under each prefix by the last listing, kept for the caller to save as watermarks
+    private final Map<String, String> listedWatermarks = new ConcurrentHashMap<>();
+    private ExecutorService listingExecutor;
+    private ExecutorService prefetchExecutor;
+    private boolean closed;
+    private final Counter pagesListed;
+    private final Counter objectsListed;
+    private final Histogram listRequestSeconds;
 
     /**
      * @param bucketToList The bucket resource to list.
@@ -34,8 +109,98 @@ public class S3FileSystem implements FileSystem {
      * @param maxNumberToListInOneGo
      */
     public S3FileSystem(String bucketToList, int maxNumberToListInOneGo) {
+        this(AmazonS3ClientBuilder.defaultClient(), bucketToList, maxNumberToListInOneGo,
+                Collections.emptyList(), null, 1);
+    }
+
+    /**
+     * Creates the file system from the properties, the bucket is taken from "bucketName" and
+     * the number of keys in one list request from "S3MaxKeysPerList".
+     *
+     * @param s3         the client used to list the bucket, this can be shared between file systems
+     * @param properties the properties containing the bucket and the sharding configuration
+     */
+    public S3FileSystem(AmazonS3 s3, Properties properties) {
+        this(s3, properties, null);
+    }
+
+    /**
+     * Creates the file system from the properties, listing incrementally from the watermarks in the storable
+     * when "S3IncrementalListing" is set.
+     *
+     * @param s3                the client used to list the bucket, this can be shared between file systems
+     * @param properties        the properties containing the bucket, sharding and incremental configuration
+     * @param watermarkStorable the storable the watermarks are kept in, null to always list in full
+     */
+    public S3FileSystem(AmazonS3 s3, Properties properties, Storable watermarkStorable) {
+        this(s3,
+                properties.getProperty("bucketName"),
+                Integer.parseInt(properties.getProperty("S3MaxKeysPerList", "10000")),
+                parsePrefixes(properties.getProperty("S3ShardPrefixes", "")),
+                properties.getProperty("S3ShardDelimiter"),
+                Integer.parseInt(properties.getProperty("S3ListingParallelism", "1")),
+                properties.getProperty("S3IncrementalListing", "false").equals("true") ? watermarkStorable : null,
+                Integer.parseInt(properties.getProperty("S3FullListingEvery", "30")),
+                Integer.parseInt(properties.getProperty("S3ListingPrefetchPages",
+                        Integer.toString(DEFAULT_PREFETCH_PAGES))));
+    }
+
+    /**
+     * @param s3                     the client used to list the bucket
+     * @param bucketToList           the bucket resource to list
+     * @param maxNumberToListInOneGo the max number of keys in one list request
+     * @param shardPrefixes          the prefixes to list, an empty list lists the whole bucket
+     * @param shardDelimiter         the delimiter used to discover prefixes when none are given, null for none
+     * @param listingParallelism     the number of prefixes listed at once
+     */
+    public S3FileSystem(AmazonS3 s3, String bucketToList, int maxNumberToListInOneGo,
+                        List<String> shardPrefixes, String shardDelimiter, int listingParallelism) {
+        this(s3, bucketToList, maxNumberToListInOneGo, shardPrefixes, shardDelimiter, listingParallelism, null, 1,
+                DEFAULT_PREFETCH_PAGES);
+    }
+
+    private S3FileSystem(AmazonS3 s3, String bucketToList, int maxNumberToListInOneGo,
+                         List<String> shardPrefixes, String shardDelimiter, int listingParallelism,
+                         Storable watermarkStorable, int fullListingEvery, int prefetchPages) {
+        this.s3 = s3;
         this.bucketToList = bucketToList;
         this.maxNumberToListInOneGo = maxNumberToListInOneGo;
+        this.shardPrefixes = shardPrefixes;
+        this.shardDelimiter = shardDelimiter == null || shardDelimiter.isEmpty() ? null : shardDelimiter;
+        this.listingParallelism = Math.max(1, listingParallelism);
+        this.watermarkStorable = watermarkStorable;
+        this.fullListingEvery = Math.max(1, fullListingEvery);
+        this.prefetchPages = Math.max(0, prefetchPages);
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.pagesListed = metrics.counter("s3listen_list_pages_total",
+                "ListObjectsV2 pages listed", "bucket", bucketToList);
+        this.objectsListed = metrics.counter("s3listen_list_objects_total",
+                "Objects in the ListObjectsV2 pages listed", "bucket", bucketToList);
+        this.listRequestSeconds = metrics.histogram("s3listen_list_request_seconds",
+                "Time taken by each ListObjectsV2 request", Histogram.LATENCY_SECONDS, "bucket", bucketToList);
+    }
+
+    /**
+     * Lists a single page, recording the request in the metrics.
+     *
+     * @param request the request for the page
+     * @return the page listed
+     */
+    private ListObjectsV2Result listPage(ListObjectsV2Request request) {
+        long start = System.nanoTime();
+        ListObjectsV2Result page = s3.listObjectsV2(request);
+        listRequestSeconds.observeNanos(System.nanoTime() - start);
+        pagesListed.inc();
+        objectsListed.inc(page.getObjectSummaries().size());
+        return page;
+    }
+
+    private static List<String> parsePrefixes(String prefixes) {
+        return Arrays.stream(prefixes.split(","))
+                .map(String::trim)
+                .filter((prefix) -> !prefix.isEmpty())
+                .collect(Collectors.toList());
     }
 
     /**
@@ -44,40 +209,313 @@ public class S3FileSystem implements FileSystem {
      */
     @Override
     public Set<String> list() {
-        logger.debug("Listing S3 bucket: {}", bucketToList);
-        ListObjectsV2Request bucketRequest = new ListObjectsV2Request().withBucketName(bucketToList)
+        Set<String> setOfKeys = new HashSet<>();
+        listInPages((page) -> page.forEach((key) -> {
+            if (!setOfKeys.add(key))
+                logger.warn("The key {} was already included in the S3FileSystem.", key);
+        }));
+        return setOfKeys;
+    }
+
+    /**
+     * Lists the objects contained in the S3 bucket, passing on the keys of each page of up to
+     * maxNumberToListInOneGo objects as soon as it is returned.
+     *
+     * @param pageConsumer called with the keys of each page in string format
+     */
+    @Override
+    public void listInPages(Consumer<Collection<String>> pageConsumer) {
+        listObjectPages((page) -> pageConsumer.accept(page.keys()));
+    }
+
+    /**
+     * Lists the objects contained in the S3 bucket with their size, ETag and last modified time,
+     * passing on each page of up to maxNumberToListInOneGo objects as soon as it is returned.
+     * When sharded the pages of different prefixes are interleaved, but the consumer is
+     * never called by more than one thread at a time.
+     *
+     * @param pageConsumer called with each page of objects
+     */
+    @Override
+    public void listObjectPages(Consumer<ObjectPage> pageConsumer) {
+        boolean fullListing = isFullListing();
+        lastListingFull = fullListing;
+        listedWatermarks.clear();
+        if (!isSharded()) {
+            logger.debug("Listing S3 bucket: {}", bucketToList);
+            listPrefix(null, fullListing, prefetchPages > 0, pageConsumer);
+            return;
+        }
+
+        Consumer<ObjectPage> serialisedConsumer = (page) -> {
+            synchronized (pageConsumer) {
+                pageConsumer.accept(page);
+            }
+        };
+        List<String> prefixes = shardPrefixes.isEmpty() ? discoverPrefixes(serialisedConsumer) : shardPrefixes;
+        logger.debug("Listing S3 bucket: {} as {} prefixes on {} threads",
+                bucketToList, prefixes.size(), listingParallelism);
+        listPrefixesInParallel(prefixes, fullListing, serialisedConsumer);
+    }
+
+    /**
+     * Decides whether this poll lists every key or only those after the watermarks.
+     *
+     * @return true if every key is to be listed
+     */
+    private synchronized boolean isFullListing() {
+        if (watermarkStorable == null)
+            return true;
+        boolean fullListing = pollsSinceFullListing % fullListingEvery == 0;
+        pollsSinceFullListing++;
+        if (fullListing)
+            logger.info("A full listing of {} is being done to reconcile the incremental listings", bucketToList);
+        return fullListing;
+    }
+
+    /**
+     * An incremental listing only lists the keys after the watermarks, so it is only complete
+     * when it is one of the full listings.
+     *
+     * @return true if the last listing listed every key
+     */
+    @Override
+    public boolean lastListingWasComplete() {
+        return lastListingFull;
+    }
+
+    /**
+     * @return the last key listed under each prefix the last listing finished, empty unless listing incrementally
+     */
+    @Override
+    public Map<String, String> lastListingWatermarks() {
+        return Collections.unmodifiableMap(listedWatermarks);
+    }
+
+    private boolean isSharded() {
+        return !shardPrefixes.isEmpty() || shardDelimiter != null;
+    }
+
+    /**
+     * Lists the root of the bucket with the delimiter, the objects at the root are passed on
+     * as they aren't under any of the prefixes found.
+     *
+     * @param pageConsumer called with the keys of the objects at the root of the bucket
+     * @return the common prefixes at the root of the bucket
+     */
+    private List<String> discoverPrefixes(Consumer<ObjectPage> pageConsumer) {
+        ListObjectsV2Request rootRequest = new ListObjectsV2Request().withBucketName(bucketToList)
+                .withDelimiter(shardDelimiter)
                 .withMaxKeys(this.maxNumberToListInOneGo);
-        ListObjectsV2Result listResults = s3.listObjectsV2(bucketRequest);
+        List<String> prefixes = new ArrayList<>();
+        ListObjectsV2Result listResults;
+        do {
+            listResults = listPage(rootRequest);
+            prefixes.addAll(listResults.getCommonPrefixes());
+            if (!listResults.getObjectSummaries().isEmpty())
+                pageConsumer.accept(pageOf(listResults.getObjectSummaries()));
+            rootRequest.setContinuationToken(listResults.getNextContinuationToken());
+        } while (listResults.isTruncated());
+        logger.debug("{} prefixes were discovered in {} using the delimiter {}",
+                prefixes.size(), bucketToList, shardDelimiter);
+        return prefixes;
+    }
 
-        // Obtain the list of objects
-        List<S3ObjectSummary> listResultSummaries = listResults.getObjectSummaries();
+    /**
+     * Lists each prefix on the listing executor and waits for all of them to finish.
+     *
+     * @param prefixes     the prefixes to list
+     * @param fullListing  false to list only the keys after the watermark of each prefix
+     * @param pageConsumer called with each page, this must be safe to call from the worker threads
+     */
+    private void listPrefixesInParallel(List<String> prefixes, boolean fullListing,
+                                        Consumer<ObjectPage> pageConsumer) {
+        ExecutorService executor = getListingExecutor();
+        List<Future<?>> listings = new ArrayList<>(prefixes.size());
+        for (String prefix : prefixes) {
+            listings.add(executor.submit(() -> listPrefix(prefix, fullListing, false, pageConsumer)));
+        }
 
-        // Create the first hashset
-        Set<String> setOfKeys = new HashSet<>(listResultSummaries.size());
-        // Adds the key of each object to the set
-        for (S3ObjectSummary summaries : listResultSummaries) {
-            setOfKeys.add(summaries.getKey());
+        RuntimeException failure = null;
+        for (Future<?> listing : listings) {
+            try {
+                listing.get();
+            } catch (ExecutionException exc) {
+                logger.warn("Listing a prefix of {} has failed: {}", bucketToList, exc.getCause().getMessage());
+                if (failure == null)
+                    failure = exc.getCause() instanceof RuntimeException ?
+                            (RuntimeException) exc.getCause() : new RuntimeException(exc.getCause());
+            } catch (InterruptedException exc) {
+                listings.forEach((remaining) -> remaining.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("The listing of " + bucketToList + " was interrupted", exc);
+            }
         }
+        // A partial listing is still passed on, but the poll is failed as it would be unsharded.
+        if (failure != null)
+            throw failure;
+    }
 
+    private synchronized ExecutorService getListingExecutor() {
+        if (closed)
+            throw new IllegalStateException("The file system of " + bucketToList + " has been closed");
+        if (listingExecutor == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            listingExecutor = Executors.newFixedThreadPool(listingParallelism, (runnable) -> {
+                Thread thread = new Thread(runnable, "s3-listing-" + bucketToList + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return listingExecutor;
+    }
 
-        // Check if the results were truncated
-        while (listResults.isTruncated()) {
-            logger.info("The s3FileSystem is continuing to the next {} keys", listResults.getMaxKeys());
-            String nextContinuationToken = listResults.getNextContinuationToken();
-            logger.debug("Next continuation token for S3 is: {}", nextContinuationToken);
-            bucketRequest.setContinuationToken(nextContinuationToken);
-
-            // Loop: Obtain next results
-            listResults = s3.listObjectsV2(bucketRequest);
-            listResultSummaries = listResults.getObjectSummaries();
-            listResultSummaries.forEach((summary) -> {
-                if (setOfKeys.contains(summary.getKey()))
-                    logger.warn("The key {} was already included in the S3FileSystem.", summary.getKey());
-                setOfKeys.add(summary.getKey());
+    /**
+     * Lists all the keys under the prefix as a chain of requests.
+     * When listing incrementally the chain starts after the watermark of the prefix, and the last key
+     * listed is kept for {@link #lastListingWatermarks()} once every page has been passed on.
+     *
+     * @param prefix       the prefix to list, null for the whole bucket
+     * @param fullListing  false to list only the keys after the watermark of the prefix
+     * @param prefetch     true to request the pages on a prefetch thread, ahead of the pages being passed on
+     * @param pageConsumer called with the keys of each page
+     */
+    private void listPrefix(String prefix, boolean fullListing, boolean prefetch, Consumer<ObjectPage> pageConsumer) {
+        String watermarkPrefix = prefix == null ? "" : prefix;
+        ListObjectsV2Request bucketRequest = new ListObjectsV2Request().withBucketName(bucketToList)
+                .withPrefix(prefix)
+                .withMaxKeys(this.maxNumberToListInOneGo);
+        if (!fullListing) {
+            String watermark = watermarkStorable.getWatermark(watermarkPrefix);
+            logger.debug("Listing the prefix \"{}\" of {} after {}", watermarkPrefix, bucketToList, watermark);
+            bucketRequest.setStartAfter(watermark);
+        }
+
+        String[] lastKey = new String[1];
+        Consumer<ObjectPage> lastKeyConsumer = (page) -> {
+            if (!page.isEmpty())
+                lastKey[0] = page.keyAt(page.size() - 1);
+            pageConsumer.accept(page);
+        };
+        if (prefetch)
+            listChainPrefetched(bucketRequest, lastKeyConsumer);
+        else
+            listChain(bucketRequest, lastKeyConsumer);
+
+        // S3 lists keys in order, so the last key listed is the highest under the prefix.
+        if (watermarkStorable != null && lastKey[0] != null)
+            listedWatermarks.put(watermarkPrefix, lastKey[0]);
+    }
+
+    /**
+     * Requests each page of the chain once the page before it has been passed on.
+     *
+     * @param bucketRequest the request for the first page, its continuation token is moved along the chain
+     * @param pageConsumer  called with each page
+     */
+    private void listChain(ListObjectsV2Request bucketRequest, Consumer<ObjectPage> pageConsumer) {
+        ListObjectsV2Result listResults;
+        do {
+            listResults = listPage(bucketRequest);
+            pageConsumer.accept(pageOf(listResults.getObjectSummaries()));
+
+            // Check if the results were truncated
+            if (listResults.isTruncated()) {
+                logger.info("The s3FileSystem is continuing to the next {} keys", listResults.getMaxKeys());
+                String nextContinuationToken = listResults.getNextContinuationToken();
+                logger.debug("Next continuation token for S3 is: {}", nextContinuationToken);
+                bucketRequest.setContinuationToken(nextContinuationToken);
+            }
+        } while (listResults.isTruncated());
+    }
+
+    /**
+     * Requests the pages of the chain on a prefetch thread, which sends the request for each page as soon as the
+     * page before it has arrived, while this thread passes on the pages already listed. Up to prefetchPages
+     * pages are held between the two, the prefetch thread waits once they are full.
+     *
+     * @param bucketRequest the request for the first page, its continuation token is moved along the chain
+     * @param pageConsumer  called with each page, only on this thread
+     */
+    private void listChainPrefetched(ListObjectsV2Request bucketRequest, Consumer<ObjectPage> pageConsumer) {
+        BlockingQueue<ObjectPage> pages = new ArrayBlockingQueue<>(prefetchPages);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Future<?> prefetch = getPrefetchExecutor().submit(() -> {
+            try {
+                listChain(bucketRequest, (page) -> {
+                    try {
+                        pages.put(page);
+                    } catch (InterruptedException exc) {
+                        // The listing thread has stopped taking pages
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("The prefetch of " + bucketToList + " was abandoned", exc);
+                    }
+                });
+            } catch (Throwable exc) {
+                failure.set(exc);
+            } finally {
+                // Always ends the listing so the listing thread isn't left waiting for pages
+                try {
+                    pages.put(END_OF_LISTING);
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        try {
+            ObjectPage page;
+            while ((page = pages.take()) != END_OF_LISTING) {
+                pageConsumer.accept(page);
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The listing of " + bucketToList + " was interrupted", exc);
+        } finally {
+            // Stops the prefetch thread when the pages stop being taken early
+            prefetch.cancel(true);
+        }
+        Throwable failed = failure.get();
+        if (failed instanceof RuntimeException)
+            throw (RuntimeException) failed;
+        if (failed != null)
+            throw new IllegalStateException("The prefetch of " + bucketToList + " failed", failed);
+    }
+
+    private synchronized ExecutorService getPrefetchExecutor() {
+        if (closed)
+            throw new IllegalStateException("The file system of " + bucketToList + " has been closed");
+        if (prefetchExecutor == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            prefetchExecutor = Executors.newCachedThreadPool((runnable) -> {
+                Thread thread = new Thread(runnable, "s3-prefetch-" + bucketToList + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
             });
         }
+        return prefetchExecutor;
+    }
 
-        return setOfKeys;
+    /**
+     * Stops the listing and prefetch threads, interrupting a listing that is still running.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (listingExecutor != null)
+            listingExecutor.shutdownNow();
+        if (prefetchExecutor != null)
+            prefetchExecutor.shutdownNow();
+    }
+
+    private static ObjectPage pageOf(List<S3ObjectSummary> summaries) {
+        ObjectPage page = new ObjectPage(summaries.size());
+        for (S3ObjectSummary summary : summaries) {
+            page.add(summary.getKey(), summary.getSize(), summary.getETag(),
+                    summary.getLastModified() == null ? ObjectPage.UNKNOWN_LAST_MODIFIED :
+                            summary.getLastModified().getTime());
+        }
+        return page;
     }
 
     @Override
@@ -4,10 +4,13 @@ package com.listener.filesystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public class TestFileSystem implements FileSystem {
 
@@ -15,6 +18,9 @@ public class TestFileSystem implements FileSystem {
 
     private Set<String> listSet;
 
+    // Zero lists everything as a single page
+    private int pageSize = 0;
+
     /**
      * A test file system.
      * The hash set used is the {@link LinkedHashSet} as this
@@ -45,6 +51,16 @@ public class TestFileSystem implements FileSystem {
         listSet.add(file);
     }
 
+    /**
+     * Removes a file string from the set of files that this
+     * TestFileSystem will list to the user.
+     *
+     * @param file The string location for the file.
+     */
+    public void removeFile(String file) {
+        listSet.remove(file);
+    }
+
     /**
      * Returns the {@link HashSet} of the file locations in this file
      * system
@@ -57,6 +73,38 @@ public class TestFileSystem implements FileSystem {
         return listSet;
     }
 
+    /**
+     * Sets the number of file locations in each page given by {@link #listInPages(Consumer)}.
+     *
+     * @param pageSize the maximum size of a page, zero lists everything as a single page
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Lists the file locations in pages of the page size set.
+     *
+     * @param pageConsumer called with each page of locations in string format
+     */
+    @Override
+    public void listInPages(Consumer<Collection<String>> pageConsumer) {
+        if (pageSize <= 0) {
+            pageConsumer.accept(list());
+            return;
+        }
+        List<String> page = new ArrayList<>(pageSize);
+        for (String file : listSet) {
+            page.add(file);
+            if (page.size() == pageSize) {
+                pageConsumer.accept(page);
+                page = new ArrayList<>(pageSize);
+            }
+        }
+        if (!page.isEmpty())
+            pageConsumer.accept(page);
+    }
+
     @Override
     public String getIdentifier() {
         return "Test file system";
@@ -0,0 +1,105 @@
+package com.listener.kafka;
+
+import com.listener.filesystem.ObjectPage;
+import com.listener.storable.StoredObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact binary encoding with the metadata of each object. All integers are unsigned LEB128 varints:
+ * <pre>
+ * version (1 byte, currently 1)
+ * object count
+ * for each object:
+ *   key length, key (UTF-8)
+ *   ETag length + 1, ETag (UTF-8), a length of 0 when the ETag isn't known
+ *   size + 1, 0 when the size isn't known
+ *   last modified in milliseconds since the epoch, 0 when it isn't known
+ * </pre>
+ * The event type of the objects is in the record's "eventType" header.
+ */
+public class BinaryRecordFormat implements RecordFormat {
+    public final static int VERSION = 1;
+
+    @Override
+    public byte[] encode(String eventType, List<StoredObject> objects) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(objects.size() * 64);
+        out.write(VERSION);
+        writeVarint(out, objects.size());
+        for (StoredObject object : objects) {
+            byte[] key = object.getKey().getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, key.length);
+            out.write(key, 0, key.length);
+            if (object.getETag() == null) {
+                writeVarint(out, 0);
+            } else {
+                byte[] eTag = object.getETag().getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, eTag.length + 1);
+                out.write(eTag, 0, eTag.length);
+            }
+            writeVarint(out, object.getSize() + 1);
+            writeVarint(out, object.getLastModified());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a record value written by {@link #encode(String, List)}.
+     *
+     * @param value the value of the record
+     * @return the objects of the record
+     * @throws IllegalArgumentException if the value isn't of a known version
+     */
+    public static List<StoredObject> decode(byte[] value) {
+        ByteBuffer in = ByteBuffer.wrap(value);
+        int version = in.get();
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unknown binary record version: " + version);
+        int count = (int) readVarint(in);
+        List<StoredObject> objects = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String key = readString(in, (int) readVarint(in));
+            int eTagLength = (int) readVarint(in);
+            String eTag = eTagLength == 0 ? null : readString(in, eTagLength - 1);
+            long size = readVarint(in) - 1;
+            long lastModified = readVarint(in);
+            objects.add(new StoredObject(key, size < 0 ? ObjectPage.UNKNOWN_SIZE : size, eTag,
+                    lastModified == 0 ? ObjectPage.UNKNOWN_LAST_MODIFIED : lastModified));
+        }
+        return objects;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("A varint of the binary record is too long");
+    }
+
+    private static String readString(ByteBuffer in, int length) {
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+}
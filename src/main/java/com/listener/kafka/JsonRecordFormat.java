@@ -0,0 +1,79 @@
+package com.listener.kafka;
+
+import com.listener.filesystem.ObjectPage;
+import com.listener.storable.StoredObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Compact JSON, a record of a single object is an object with its "eventType", "key" and whatever
+ * "eTag", "size" and "lastModified" is known, a record of many objects is an array of them.
+ */
+public class JsonRecordFormat implements RecordFormat {
+    @Override
+    public byte[] encode(String eventType, List<StoredObject> objects) {
+        StringBuilder json = new StringBuilder(objects.size() * 96);
+        if (objects.size() > 1)
+            json.append('[');
+        for (int i = 0; i < objects.size(); i++) {
+            if (i > 0)
+                json.append(',');
+            appendObject(json, eventType, objects.get(i));
+        }
+        if (objects.size() > 1)
+            json.append(']');
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendObject(StringBuilder json, String eventType, StoredObject object) {
+        json.append("{\"eventType\":");
+        appendString(json, eventType);
+        json.append(",\"key\":");
+        appendString(json, object.getKey());
+        if (object.getETag() != null) {
+            json.append(",\"eTag\":");
+            appendString(json, object.getETag());
+        }
+        if (object.getSize() != ObjectPage.UNKNOWN_SIZE)
+            json.append(",\"size\":").append(object.getSize());
+        if (object.getLastModified() != ObjectPage.UNKNOWN_LAST_MODIFIED)
+            json.append(",\"lastModified\":").append(object.getLastModified());
+        json.append('}');
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    @Override
+    public String name() {
+        return "json";
+    }
+}
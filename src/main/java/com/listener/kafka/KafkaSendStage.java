@@ -0,0 +1,174 @@
+package com.listener.kafka;
+
+import com.listener.metrics.Counter;
+import com.listener.metrics.Histogram;
+import com.listener.metrics.MetricsRegistry;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends records to a {@link Producer} with a bounded number of records in flight.
+ * <p>
+ * A permit is taken for each record before it is sent and given back once its callback has run,
+ * so a large backlog blocks the listening thread here instead of inside the producer's buffer.
+ * The stage is set from the properties:
+ * <ul>
+ * <li>KafkaMaxInFlight: the number of records sent but not acknowledged, default 10000, 0 for no limit</li>
+ * <li>KafkaFlushEachPoll: "true" to flush the producer at the end of each poll, default true</li>
+ * </ul>
+ * The batching of the producer itself is tuned with linger.ms and batch.size in its own properties.
+ * The sends, acknowledgements, failures and the time from send to acknowledgement are recorded in the
+ * default {@link MetricsRegistry}, labelled with the "bucketName" of the properties.
+ */
+public class KafkaSendStage<K, V> {
+    private final static Logger logger = LoggerFactory.getLogger(KafkaSendStage.class.getName());
+
+    private final Producer<K, V> kafkaProducer;
+    private final Semaphore inFlightPermits;
+    private final int maxInFlight;
+    private final boolean flushEachPoll;
+
+    private final AtomicLong sentThisPoll = new AtomicLong();
+    private final AtomicLong acknowledgedThisPoll = new AtomicLong();
+    private final AtomicLong failedThisPoll = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private long pollStartNanos = System.nanoTime();
+
+    private final Counter sentTotal;
+    private final Counter acknowledgedTotal;
+    private final Counter failedTotal;
+    private final Histogram acknowledgementSeconds;
+
+    /**
+     * @param kafkaProducer the producer the records are sent with
+     * @param properties    the properties containing the in flight window and flush configuration
+     */
+    public KafkaSendStage(Producer<K, V> kafkaProducer, Properties properties) {
+        this.kafkaProducer = kafkaProducer;
+        this.maxInFlight = Integer.parseInt(properties.getProperty("KafkaMaxInFlight", "10000"));
+        this.inFlightPermits = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+        this.flushEachPoll = properties.getProperty("KafkaFlushEachPoll", "true").equals("true");
+
+        String bucket = properties.getProperty("bucketName", "");
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.sentTotal = metrics.counter("s3listen_kafka_sent_total",
+                "Records sent to kafka", "bucket", bucket);
+        this.acknowledgedTotal = metrics.counter("s3listen_kafka_acknowledged_total",
+                "Records acknowledged by kafka", "bucket", bucket);
+        this.failedTotal = metrics.counter("s3listen_kafka_send_failures_total",
+                "Records that failed to be sent to kafka", "bucket", bucket);
+        this.acknowledgementSeconds = metrics.histogram("s3listen_kafka_acknowledgement_seconds",
+                "Time from sending a record to kafka until it was acknowledged", Histogram.LATENCY_SECONDS,
+                "bucket", bucket);
+        metrics.gauge("s3listen_kafka_in_flight", "Records sent to kafka and not acknowledged yet",
+                this::getInFlight, "bucket", bucket);
+        logger.info("The Kafka send stage allows {} records in flight and {} the producer each poll",
+                maxInFlight > 0 ? maxInFlight : "unlimited", flushEachPoll ? "flushes" : "doesn't flush");
+    }
+
+    /**
+     * Resets the counts reported at the end of the poll.
+     */
+    public void beginPoll() {
+        sentThisPoll.set(0);
+        acknowledgedThisPoll.set(0);
+        failedThisPoll.set(0);
+        pollStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Sends the record once there is room in the in flight window, blocking until there is.
+     *
+     * @param record   the record to send
+     * @param callback run once the record has been acknowledged or has failed
+     * @return false if the record couldn't be sent, in which case the callback isn't run
+     */
+    public boolean send(ProducerRecord<K, V> record, Callback callback) {
+        if (inFlightPermits != null) {
+            try {
+                inFlightPermits.acquire();
+            } catch (InterruptedException exc) {
+                logger.warn("Sending to {} was interrupted while waiting for the in flight window", record.topic());
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        inFlight.incrementAndGet();
+        long sentAt = System.nanoTime();
+        try {
+            kafkaProducer.send(record, (metadata, exceptionNullIfNone) -> {
+                try {
+                    if (exceptionNullIfNone == null) {
+                        acknowledgedThisPoll.incrementAndGet();
+                        acknowledgedTotal.inc();
+                        acknowledgementSeconds.observeNanos(System.nanoTime() - sentAt);
+                    } else {
+                        failedThisPoll.incrementAndGet();
+                        failedTotal.inc();
+                    }
+                    callback.onCompletion(metadata, exceptionNullIfNone);
+                } finally {
+                    release();
+                }
+            });
+        } catch (RuntimeException exc) {
+            logger.warn("A record couldn't be sent to {}: {}", record.topic(), exc.getMessage());
+            failedThisPoll.incrementAndGet();
+            failedTotal.inc();
+            release();
+            return false;
+        }
+        sentThisPoll.incrementAndGet();
+        sentTotal.inc();
+        return true;
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        if (inFlightPermits != null)
+            inFlightPermits.release();
+    }
+
+    /**
+     * Flushes the producer if configured to and reports the send throughput of the poll.
+     */
+    public void endPoll() {
+        if (flushEachPoll)
+            kafkaProducer.flush();
+        long elapsedNanos = Math.max(1, System.nanoTime() - pollStartNanos);
+        long sent = sentThisPoll.get();
+        logger.info("{} records were sent to kafka this poll, {} acknowledged and {} failed in {} ms " +
+                        "({} records/s), {} are still in flight",
+                sent, acknowledgedThisPoll.get(), failedThisPoll.get(), elapsedNanos / 1000000,
+                (long) (sent * 1e9 / elapsedNanos), inFlight.get());
+    }
+
+    /**
+     * Waits for the records still in flight to be acknowledged, flushing the producer if any are.
+     *
+     * @return true if none of the records sent this poll failed
+     */
+    public boolean awaitPollAcknowledged() {
+        if (inFlight.get() > 0)
+            kafkaProducer.flush();
+        return failedThisPoll.get() == 0;
+    }
+
+    /**
+     * @return the number of records sent that haven't had their callback run yet
+     */
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+}
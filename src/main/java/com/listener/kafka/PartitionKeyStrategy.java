@@ -0,0 +1,71 @@
+package com.listener.kafka;
+
+import java.util.Properties;
+
+/**
+ * Chooses the key of the kafka record an object's event is sent in. The producer's partitioner
+ * hashes the record key, so every event with the same record key goes to the same partition in order.
+ */
+public interface PartitionKeyStrategy {
+    /**
+     * @param objectKey the key of the object in the bucket
+     * @return the key of the record, or null to leave the partition to the producer
+     */
+    String recordKey(String objectKey);
+
+    /**
+     * No record key, the producer spreads the records over the partitions.
+     */
+    static PartitionKeyStrategy none() {
+        return (objectKey) -> null;
+    }
+
+    /**
+     * The object key itself, so the events of each object are in order.
+     */
+    static PartitionKeyStrategy objectKey() {
+        return (objectKey) -> objectKey;
+    }
+
+    /**
+     * The first segments of the object key, so the events under each prefix are in order.
+     *
+     * @param depth     the number of segments of the object key used, an object with fewer uses its whole key
+     * @param delimiter the delimiter between segments
+     */
+    static PartitionKeyStrategy prefix(int depth, String delimiter) {
+        if (depth < 1)
+            throw new IllegalArgumentException("The prefix depth must be at least 1, it was " + depth);
+        return (objectKey) -> {
+            int end = -delimiter.length();
+            for (int segment = 0; segment < depth; segment++) {
+                end = objectKey.indexOf(delimiter, end + delimiter.length());
+                if (end < 0)
+                    return objectKey;
+            }
+            return objectKey.substring(0, end);
+        };
+    }
+
+    /**
+     * Creates the strategy named by "RecordKey": "none" (default), "object" or "prefix", the prefix is
+     * "RecordKeyPrefixDepth" segments deep, default 1, split on "RecordKeyDelimiter", default "/".
+     *
+     * @param properties the properties containing the strategy
+     * @return the strategy
+     */
+    static PartitionKeyStrategy fromProperties(Properties properties) {
+        String strategy = properties.getProperty("RecordKey", "none");
+        switch (strategy) {
+            case "none":
+                return none();
+            case "object":
+                return objectKey();
+            case "prefix":
+                return prefix(Integer.parseInt(properties.getProperty("RecordKeyPrefixDepth", "1")),
+                        properties.getProperty("RecordKeyDelimiter", "/"));
+            default:
+                throw new IllegalArgumentException("Unknown RecordKey: " + strategy);
+        }
+    }
+}
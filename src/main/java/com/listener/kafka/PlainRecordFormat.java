@@ -0,0 +1,30 @@
+package com.listener.kafka;
+
+import com.listener.storable.StoredObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The object key as UTF-8 text, the same bytes a StringSerializer sends, so consumers of the original
+ * format are unaffected. Keys may hold any character, newlines included, so there is no separator that
+ * keeps the keys of a batch apart and a plain record only ever holds one object.
+ */
+public class PlainRecordFormat implements RecordFormat {
+    @Override
+    public byte[] encode(String eventType, List<StoredObject> objects) {
+        if (objects.size() != 1)
+            throw new IllegalArgumentException("A plain record holds one object, not " + objects.size());
+        return objects.get(0).getKey().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean supportsBatches() {
+        return false;
+    }
+
+    @Override
+    public String name() {
+        return "plain";
+    }
+}
@@ -0,0 +1,102 @@
+package com.listener.kafka;
+
+import com.listener.filesystem.ObjectPage;
+import com.listener.storable.StoredObject;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Builds the kafka records the events of objects are sent in.
+ * <p>
+ * The record key is chosen by a {@link PartitionKeyStrategy} and the value is encoded by a {@link RecordFormat}.
+ * Up to batchSize objects with the same record key and event type can be sent in one record, which cuts the
+ * overhead of each message when many objects land at once. Every record has the headers "eventType" and
+ * "format", a record of one object also has the "eTag", "size" and "lastModified" known for it and a record
+ * of many objects has their "objectCount".
+ * It is set from the properties:
+ * <ul>
+ * <li>RecordKey, RecordKeyPrefixDepth, RecordKeyDelimiter: the {@link PartitionKeyStrategy}</li>
+ * <li>RecordFormat: the {@link RecordFormat}</li>
+ * <li>RecordBatchSize: the most objects in one record, default 1, it must be 1 with the plain format</li>
+ * </ul>
+ */
+public class RecordBuilder {
+    private final PartitionKeyStrategy partitionKeyStrategy;
+    private final RecordFormat format;
+    private final int batchSize;
+    private final byte[] formatHeader;
+
+    /**
+     * @param partitionKeyStrategy chooses the key of each record
+     * @param format               encodes the objects of a record
+     * @param batchSize            the most objects in one record
+     * @throws IllegalArgumentException if many objects are batched into a format that can't hold them
+     */
+    public RecordBuilder(PartitionKeyStrategy partitionKeyStrategy, RecordFormat format, int batchSize) {
+        if (batchSize > 1 && !format.supportsBatches())
+            throw new IllegalArgumentException("RecordBatchSize " + batchSize + " can't be used with the "
+                    + format.name() + " RecordFormat, batch with the json or binary format");
+        this.partitionKeyStrategy = partitionKeyStrategy;
+        this.format = format;
+        this.batchSize = Math.max(1, batchSize);
+        this.formatHeader = format.name().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param properties the properties containing the record key, format and batch configuration
+     * @return the record builder
+     */
+    public static RecordBuilder fromProperties(Properties properties) {
+        return new RecordBuilder(PartitionKeyStrategy.fromProperties(properties),
+                RecordFormat.fromProperties(properties),
+                Integer.parseInt(properties.getProperty("RecordBatchSize", "1")));
+    }
+
+    /**
+     * @param objectKey the key of the object in the bucket
+     * @return the key of the record its event is sent in
+     */
+    public String recordKey(String objectKey) {
+        return partitionKeyStrategy.recordKey(objectKey);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param topic     the topic the record is sent to
+     * @param recordKey the record key shared by the objects
+     * @param eventType the event type shared by the objects: "created", "modified" or "deleted"
+     * @param objects   the objects, no more than the batch size
+     * @return the record
+     */
+    public ProducerRecord<String, byte[]> build(String topic, String recordKey, String eventType,
+                                                List<StoredObject> objects) {
+        return new ProducerRecord<>(topic, null, recordKey, format.encode(eventType, objects),
+                headers(eventType, objects));
+    }
+
+    private Headers headers(String eventType, List<StoredObject> objects) {
+        Headers headers = new RecordHeaders();
+        headers.add("eventType", eventType.getBytes(StandardCharsets.UTF_8));
+        headers.add("format", formatHeader);
+        if (objects.size() > 1) {
+            headers.add("objectCount", Integer.toString(objects.size()).getBytes(StandardCharsets.UTF_8));
+            return headers;
+        }
+        StoredObject object = objects.get(0);
+        if (object.getETag() != null)
+            headers.add("eTag", object.getETag().getBytes(StandardCharsets.UTF_8));
+        if (object.getSize() != ObjectPage.UNKNOWN_SIZE)
+            headers.add("size", Long.toString(object.getSize()).getBytes(StandardCharsets.UTF_8));
+        if (object.getLastModified() != ObjectPage.UNKNOWN_LAST_MODIFIED)
+            headers.add("lastModified", Long.toString(object.getLastModified()).getBytes(StandardCharsets.UTF_8));
+        return headers;
+    }
+}
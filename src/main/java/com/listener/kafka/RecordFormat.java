@@ -0,0 +1,51 @@
+package com.listener.kafka;
+
+import com.listener.storable.StoredObject;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Encodes the objects of a kafka record into its value. A record holds the events of one type for
+ * one record key, so the event type is also carried in the record's headers.
+ */
+public interface RecordFormat {
+    /**
+     * @param eventType the type of event: "created", "modified" or "deleted"
+     * @param objects   the objects in the record, at least one
+     * @return the value of the record
+     */
+    byte[] encode(String eventType, List<StoredObject> objects);
+
+    /**
+     * @return the name of the format, sent in the "format" header of each record
+     */
+    String name();
+
+    /**
+     * @return true if many objects can be encoded into one record value
+     */
+    default boolean supportsBatches() {
+        return true;
+    }
+
+    /**
+     * Creates the format named by "RecordFormat": "plain" (default), "json" or "binary".
+     *
+     * @param properties the properties containing the format
+     * @return the format
+     */
+    static RecordFormat fromProperties(Properties properties) {
+        String format = properties.getProperty("RecordFormat", "plain");
+        switch (format) {
+            case "plain":
+                return new PlainRecordFormat();
+            case "json":
+                return new JsonRecordFormat();
+            case "binary":
+                return new BinaryRecordFormat();
+            default:
+                throw new IllegalArgumentException("Unknown RecordFormat: " + format);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.listener.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up, safe to increment from many threads at once.
+ */
+public class Counter implements Metric {
+    private final LongAdder count = new LongAdder();
+
+    public void inc() {
+        count.increment();
+    }
+
+    public void inc(long amount) {
+        count.add(amount);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out, String name, String labels) {
+        MetricsRegistry.writeSample(out, name, labels, get());
+    }
+
+    @Override
+    public void snapshot(String name, String labels, Map<String, Number> values) {
+        values.put(MetricsRegistry.sampleName(name, labels), get());
+    }
+}
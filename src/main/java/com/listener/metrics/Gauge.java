@@ -0,0 +1,25 @@
+package com.listener.metrics;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A value read when the metrics are written, such as the depth of a queue.
+ */
+class Gauge implements Metric {
+    private final Supplier<? extends Number> value;
+
+    Gauge(Supplier<? extends Number> value) {
+        this.value = value;
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out, String name, String labels) {
+        MetricsRegistry.writeSample(out, name, labels, value.get());
+    }
+
+    @Override
+    public void snapshot(String name, String labels, Map<String, Number> values) {
+        values.put(MetricsRegistry.sampleName(name, labels), value.get());
+    }
+}
@@ -0,0 +1,78 @@
+package com.listener.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts observations into fixed buckets, safe to observe from many threads at once.
+ * Each bucket counts the observations at or below its upper bound, the last bucket has no bound.
+ */
+public class Histogram implements Metric {
+    /**
+     * Bounds in seconds suited to anything from a single lookup to a whole poll.
+     */
+    public final static double[] LATENCY_SECONDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+            1, 2.5, 5, 10, 30, 60, 120, 300, 900, 3600};
+
+    private final double[] upperBounds;
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram(double[] upperBounds) {
+        this.upperBounds = upperBounds.clone();
+        this.buckets = new LongAdder[upperBounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void observe(double value) {
+        int bucket = 0;
+        while (bucket < upperBounds.length && value > upperBounds[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Observes a duration measured with {@link System#nanoTime()} in seconds.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void observeNanos(long nanos) {
+        observe(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getSum() {
+        return sum.sum();
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out, String name, String labels) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            String bound = i < upperBounds.length ? Double.toString(upperBounds[i]) : "+Inf";
+            MetricsRegistry.writeSample(out, name + "_bucket", labels + separator + "le=\"" + bound + "\"", cumulative);
+        }
+        MetricsRegistry.writeSample(out, name + "_sum", labels, getSum());
+        MetricsRegistry.writeSample(out, name + "_count", labels, cumulative);
+    }
+
+    @Override
+    public void snapshot(String name, String labels, Map<String, Number> values) {
+        values.put(MetricsRegistry.sampleName(name + "_count", labels), getCount());
+        values.put(MetricsRegistry.sampleName(name + "_sum", labels), getSum());
+    }
+}
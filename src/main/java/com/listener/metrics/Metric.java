@@ -0,0 +1,26 @@
+package com.listener.metrics;
+
+import java.util.Map;
+
+/**
+ * A single series of a metric, which is written out by the {@link MetricsRegistry} it is registered with.
+ */
+interface Metric {
+    /**
+     * Writes the samples of the series in the Prometheus text format.
+     *
+     * @param out    the text written to
+     * @param name   the name of the metric
+     * @param labels the labels of the series, formatted as name="value" pairs, empty if there are none
+     */
+    void writePrometheus(StringBuilder out, String name, String labels);
+
+    /**
+     * Puts the current values of the series in the map, keyed by the name of each sample.
+     *
+     * @param name   the name of the metric
+     * @param labels the labels of the series, formatted as name="value" pairs, empty if there are none
+     * @param values the map the values are put in
+     */
+    void snapshot(String name, String labels, Map<String, Number> values);
+}
@@ -0,0 +1,137 @@
+package com.listener.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Holds the metrics of the listener, each named metric can have many series told apart by their labels.
+ * <p>
+ * Metrics are got or created by name and labels, given as name value pairs, so a component looks up its
+ * series once and keeps it. The components of the listener register with {@link #getDefault()}, which
+ * is written out by a {@link MetricsReporter}.
+ */
+public class MetricsRegistry {
+    private final static MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * @return the registry shared by the listener
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Gets or creates a counter.
+     *
+     * @param name   the name of the metric
+     * @param help   a description of the metric
+     * @param labels the label names and values of the series, in pairs
+     * @return the counter of the series
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").series(labels, (key) -> new Counter());
+    }
+
+    /**
+     * Gets or creates a histogram.
+     *
+     * @param name        the name of the metric
+     * @param help        a description of the metric
+     * @param upperBounds the upper bounds of the buckets, in increasing order
+     * @param labels      the label names and values of the series, in pairs
+     * @return the histogram of the series
+     */
+    public Histogram histogram(String name, String help, double[] upperBounds, String... labels) {
+        return (Histogram) family(name, help, "histogram").series(labels, (key) -> new Histogram(upperBounds));
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge already registered with the same labels.
+     *
+     * @param name   the name of the metric
+     * @param help   a description of the metric
+     * @param value  read each time the metrics are written
+     * @param labels the label names and values of the series, in pairs
+     */
+    public void gauge(String name, String help, Supplier<? extends Number> value, String... labels) {
+        family(name, help, "gauge").series.put(formatLabels(labels), new Gauge(value));
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, (key) -> new Family(help, type));
+        if (!family.type.equals(type))
+            throw new IllegalArgumentException("The metric " + name + " is a " + family.type + " not a " + type);
+        return family;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format.
+     *
+     * @return the metrics as text
+     */
+    public String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        families.forEach((name, family) -> {
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            family.series.forEach((labels, metric) -> metric.writePrometheus(out, name, labels));
+        });
+        return out.toString();
+    }
+
+    /**
+     * @return the current value of every sample keyed by its name and labels, histograms give their count and sum
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        families.forEach((name, family) ->
+                family.series.forEach((labels, metric) -> metric.snapshot(name, labels, values)));
+        return values;
+    }
+
+    static String formatLabels(String... labels) {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels are given as name value pairs");
+        StringBuilder formatted = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0)
+                formatted.append(',');
+            formatted.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return formatted.toString();
+    }
+
+    private static String escape(String value) {
+        return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    static String sampleName(String name, String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    static void writeSample(StringBuilder out, String name, String labels, Number value) {
+        out.append(sampleName(name, labels)).append(' ').append(value).append('\n');
+    }
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        private final ConcurrentMap<String, Metric> series = new ConcurrentHashMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+
+        private Metric series(String[] labels, Function<String, Metric> create) {
+            return series.computeIfAbsent(formatLabels(labels), create);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.listener.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Makes the metrics of a {@link MetricsRegistry} available outside the process.
+ * It is set from the properties:
+ * <ul>
+ * <li>MetricsPort: the port of an HTTP endpoint serving the metrics at /metrics in the Prometheus text
+ * format, 0 for any free port, no endpoint is started when this isn't set</li>
+ * <li>MetricsJmx: "true" to register the metrics as the attributes of the MBean com.listener:type=Metrics,
+ * default false</li>
+ * </ul>
+ */
+public class MetricsReporter implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(MetricsReporter.class.getName());
+    private final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricsRegistry registry;
+    private HttpServer httpServer;
+    private ExecutorService httpExecutor;
+    private ObjectName mbeanName;
+
+    /**
+     * Starts the endpoints set in the properties.
+     *
+     * @param registry   the registry whose metrics are reported
+     * @param properties the properties containing the reporting configuration
+     * @throws IOException if the HTTP endpoint couldn't be started
+     */
+    public MetricsReporter(MetricsRegistry registry, Properties properties) throws IOException {
+        this.registry = registry;
+        String port = properties.getProperty("MetricsPort", "").trim();
+        if (!port.isEmpty())
+            startHttpServer(Integer.parseInt(port));
+        if (properties.getProperty("MetricsJmx", "false").equals("true"))
+            registerMBean();
+    }
+
+    private void startHttpServer(int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/metrics", (exchange) -> {
+            byte[] body = registry.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        });
+        httpExecutor = Executors.newSingleThreadExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(httpExecutor);
+        httpServer.start();
+        logger.info("Serving metrics at http://{}:{}/metrics",
+                httpServer.getAddress().getHostString(), httpServer.getAddress().getPort());
+    }
+
+    private void registerMBean() {
+        try {
+            mbeanName = new ObjectName("com.listener:type=Metrics");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(mbeanName))
+                server.unregisterMBean(mbeanName);
+            server.registerMBean(new MetricsMBean(), mbeanName);
+            logger.info("The metrics have been registered with JMX as {}", mbeanName);
+        } catch (JMException exc) {
+            logger.warn("The metrics couldn't be registered with JMX: {}", exc.getMessage());
+            mbeanName = null;
+        }
+    }
+
+    /**
+     * @return the port of the HTTP endpoint, or -1 if it isn't running
+     */
+    public int getPort() {
+        return httpServer == null ? -1 : httpServer.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdown();
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException exc) {
+                logger.warn("The metrics couldn't be unregistered from JMX: {}", exc.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Exposes each sample of the registry as a read only attribute, the attributes are read afresh each time.
+     */
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) {
+            return registry.snapshot().get(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = registry.snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute))
+                    list.add(new Attribute(attribute, values.get(attribute)));
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> values = registry.snapshot();
+            MBeanAttributeInfo[] attributes = values.entrySet().stream()
+                    .map((value) -> new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                            value.getKey(), true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(MetricsMBean.class.getName(), "The metrics of the listener",
+                    attributes, null, null, null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("The metrics are read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("The metrics have no operations");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.listener.storable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe Bloom filter over 64 bit key hashes.
+ * Bits are only ever set, so a negative answer from {@link #mightContain(long)} is always correct.
+ */
+public class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long numberOfBits;
+    private final int numberOfHashFunctions;
+
+    /**
+     * @param expectedInsertions the number of keys the filter is sized for
+     * @param falsePositiveRate  the false positive rate at the expected number of insertions
+     * @param maxBytes           an upper bound on the memory used by the filter
+     */
+    public BloomFilter(long expectedInsertions, double falsePositiveRate, long maxBytes) {
+        if (expectedInsertions <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("The bloom filter needs a positive size and a rate between 0 and 1");
+        long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        long words = Math.min((optimalBits + 63) / 64, Math.max(1, maxBytes / 8));
+        if (words > Integer.MAX_VALUE)
+            words = Integer.MAX_VALUE;
+        this.bits = new AtomicLongArray((int) words);
+        this.numberOfBits = words * 64;
+        this.numberOfHashFunctions = Math.max(1,
+                (int) Math.round((double) numberOfBits / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * Adds the hash to the filter.
+     *
+     * @param hash a 64 bit hash of the key, see {@link KeyHashing#bloomHash(String)}
+     */
+    public void put(long hash) {
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numberOfHashFunctions; i++) {
+            long bit = index(hash1 + (long) i * hash2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = bits.get(word);
+            while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+    }
+
+    /**
+     * @param hash a 64 bit hash of the key, see {@link KeyHashing#bloomHash(String)}
+     * @return false if the hash was definitely never put in the filter, true if it might have been
+     */
+    public boolean mightContain(long hash) {
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numberOfHashFunctions; i++) {
+            long bit = index(hash1 + (long) i * hash2);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private long index(long combinedHash) {
+        return (combinedHash & Long.MAX_VALUE) % numberOfBits;
+    }
+
+    public long sizeInBytes() {
+        return numberOfBits / 8;
+    }
+
+    public int getNumberOfHashFunctions() {
+        return numberOfHashFunctions;
+    }
+
+    public long getNumberOfBits() {
+        return numberOfBits;
+    }
+
+    int wordCount() {
+        return bits.length();
+    }
+
+    long word(int index) {
+        return bits.get(index);
+    }
+
+    /**
+     * Sets the bits of a word of the filter, for loading a {@link CacheSnapshot}.
+     * Bits already set are kept, so the filter can't lose a key.
+     */
+    void setWord(int index, long word) {
+        long current = bits.get(index);
+        while ((current | word) != current && !bits.compareAndSet(index, current, current | word)) {
+            current = bits.get(index);
+        }
+    }
+}
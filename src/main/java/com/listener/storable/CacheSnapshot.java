@@ -0,0 +1,154 @@
+package com.listener.storable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A file holding the bloom filter and the fingerprints of a {@link CachingStorable}, so the cache can be
+ * loaded at startup rather than rebuilt from every key of the backing storable.
+ * <p>
+ * The file is a header, the words of the bloom filter, the fingerprint of each key held followed by the
+ * fingerprint of its version, and then a CRC32 of everything before it. The header holds when the snapshot
+ * was taken and the removal stamp of the backing storable at the time, see {@link Storable#removalStamp()}.
+ * A snapshot is written to a temporary file that replaces the old one with an atomic rename, and is
+ * memory-mapped and checked in full before anything is loaded from it, so a torn or corrupt file is never
+ * half loaded.
+ */
+class CacheSnapshot {
+    private final static int MAGIC = 0x53334C43;
+    private final static int VERSION = 2;
+    private final static int HEADER_BYTES = 4 + 4 + 8 + 8 + 8 + 4;
+
+    private final long takenMillis;
+    private final long removalStamp;
+    private final long numberOfBits;
+    private final int numberOfHashFunctions;
+    private final ByteBuffer body;
+
+    private CacheSnapshot(ByteBuffer body) {
+        this.body = body;
+        body.getInt();
+        body.getInt();
+        this.takenMillis = body.getLong();
+        this.removalStamp = body.getLong();
+        this.numberOfBits = body.getLong();
+        this.numberOfHashFunctions = body.getInt();
+    }
+
+    /**
+     * Writes a snapshot of the cache, the fingerprints are passed as a copy as the map isn't thread safe.
+     *
+     * @param file         the snapshot file
+     * @param takenMillis  when the snapshot was taken, keys stored after this are replayed when it is read
+     * @param removalStamp the removal stamp of the backing storable when the snapshot was taken
+     * @param bloomFilter  the bloom filter, read as it is written
+     * @param fingerprints the fingerprints held, as {@link LongLongHashMap#toArray()}
+     * @throws IOException if the snapshot couldn't be written, the old snapshot is left in place
+     */
+    static void write(Path file, long takenMillis, long removalStamp, BloomFilter bloomFilter, long[] fingerprints)
+            throws IOException {
+        Path writing = file.resolveSibling(file.getFileName() + ".writing");
+        CRC32 checksum = new CRC32();
+        try (FileOutputStream fileOut = new FileOutputStream(writing.toFile());
+             DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                     new BufferedOutputStream(fileOut, 1 << 16), checksum))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(takenMillis);
+            out.writeLong(removalStamp);
+            out.writeLong(bloomFilter.getNumberOfBits());
+            out.writeInt(bloomFilter.getNumberOfHashFunctions());
+            int words = bloomFilter.wordCount();
+            for (int i = 0; i < words; i++) {
+                out.writeLong(bloomFilter.word(i));
+            }
+            out.writeInt(fingerprints.length / 2);
+            for (long fingerprint : fingerprints) {
+                out.writeLong(fingerprint);
+            }
+            // The checksum isn't part of what it covers
+            long crc = checksum.getValue();
+            out.writeLong(crc);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(writing, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Maps a snapshot and checks it is whole.
+     *
+     * @param file the snapshot file
+     * @return the snapshot, ready to be loaded
+     * @throws IOException if the file couldn't be read, isn't a snapshot or doesn't match its checksum
+     */
+    static CacheSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_BYTES + 4 + 8)
+                throw new IOException("The snapshot is too short to hold a header");
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION)
+                throw new IOException("The file isn't a version " + VERSION + " cache snapshot");
+            ByteBuffer covered = mapped.duplicate();
+            covered.limit((int) length - 8);
+            CRC32 checksum = new CRC32();
+            checksum.update(covered);
+            if (checksum.getValue() != mapped.getLong((int) length - 8))
+                throw new IOException("The snapshot doesn't match its checksum");
+            ByteBuffer body = mapped.duplicate();
+            body.limit((int) length - 8);
+            return new CacheSnapshot(body);
+        }
+    }
+
+    long getTakenMillis() {
+        return takenMillis;
+    }
+
+    long getRemovalStamp() {
+        return removalStamp;
+    }
+
+    /**
+     * @param bloomFilter the bloom filter the snapshot would be loaded into
+     * @return true if the snapshot was taken of a bloom filter of the same size and number of hash functions
+     */
+    boolean fits(BloomFilter bloomFilter) {
+        return numberOfBits == bloomFilter.getNumberOfBits()
+                && numberOfHashFunctions == bloomFilter.getNumberOfHashFunctions();
+    }
+
+    /**
+     * Sets the bits of the bloom filter and adds the fingerprints, keys past the capacity of the map
+     * are left out as they would be when caching.
+     *
+     * @param bloomFilter  a bloom filter the snapshot {@link #fits(BloomFilter)}
+     * @param fingerprints the map the fingerprint of each key's version is put in
+     * @return the number of keys in the snapshot
+     */
+    int loadInto(BloomFilter bloomFilter, LongLongHashMap fingerprints) {
+        ByteBuffer in = body.duplicate();
+        in.position(HEADER_BYTES);
+        int words = bloomFilter.wordCount();
+        for (int i = 0; i < words; i++) {
+            bloomFilter.setWord(i, in.getLong());
+        }
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            fingerprints.put(in.getLong(), in.getLong());
+        }
+        return count;
+    }
+}
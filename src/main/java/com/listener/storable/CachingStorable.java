@@ -0,0 +1,541 @@
+package com.listener.storable;
+
+import com.listener.filesystem.ObjectPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Storable} that answers lookups from memory before going to a backing storable.
+ * <p>
+ * A {@link BloomFilter} holding every key of the backing storable answers "definitely not read",
+ * a bounded {@link LongLongHashMap} of fingerprints answers "read". Only keys the filter is unsure of
+ * and that aren't in the fingerprint map fall through to the backing storable. The map holds one
+ * fingerprint of the key and its last ETag for each key, so an object listed with any other ETag, an
+ * earlier one included, falls through and the backing storable decides whether it has been modified.
+ * The fingerprints are 64 bit, so the chance of a new key being taken as read is about the number
+ * of fingerprints held divided by 2^64 for each lookup.
+ * <p>
+ * The memory used is set from the properties:
+ * <ul>
+ * <li>CacheExpectedKeys: the number of keys the bloom filter is sized for, default 10,000,000</li>
+ * <li>CacheFalsePositiveRate: the bloom filter false positive rate at that size, default 0.01</li>
+ * <li>CacheMaxBloomBytes: an upper bound on the bloom filter, default 64MB</li>
+ * <li>CacheMaxFingerprints: the number of keys fingerprints are held for, 16 bytes each plus slack,
+ * default 4,000,000</li>
+ * </ul>
+ * <p>
+ * With "CacheSnapshotFile" set, the cache is written to a {@link CacheSnapshot} every
+ * "CacheSnapshotIntervalSeconds", default 600 or 0 for none, and when it is closed. At startup the snapshot is
+ * loaded and only the keys stored since it was taken are read from the backing storable, which is quickest
+ * with "SQLiteTimestampIndex". A snapshot that is corrupt, was taken with a different CacheExpectedKeys,
+ * CacheFalsePositiveRate or CacheMaxBloomBytes, or was taken before objects were removed from the backing
+ * storable is ignored, and the cache is warmed from every key.
+ */
+public class CachingStorable implements Storable {
+    private final static Logger logger = LoggerFactory.getLogger(CachingStorable.class.getName());
+
+    private final Storable backingStorable;
+    private final BloomFilter bloomFilter;
+    // The fingerprint of the key and its last ETag, by the fingerprint of the key
+    private final LongLongHashMap fingerprints;
+    // The bloom filter can only rule keys out once it holds every key of the backing storable.
+    private volatile boolean bloomFilterComplete;
+    // Keys stored within this long before a snapshot was taken are read again, as Timestamps are to the second
+    private final static long SNAPSHOT_REPLAY_MARGIN_MILLIS = 2000;
+    private final Path snapshotFile;
+    // Held while a snapshot is taken and while objects are removed, so a snapshot is never taken between the
+    // backing storable removing objects and the cache forgetting them
+    private final Object snapshotLock = new Object();
+    private ScheduledExecutorService snapshotExecutor;
+    private volatile boolean warmedFromSnapshot;
+    private volatile long keysReplayed;
+    private volatile boolean closed;
+
+    private final AtomicLong fingerprintHits = new AtomicLong();
+    private final AtomicLong bloomFilterMisses = new AtomicLong();
+    private final AtomicLong backingLookups = new AtomicLong();
+    private final AtomicLong backingHits = new AtomicLong();
+
+    /**
+     * Creates the cache and warms it from every key in the backing storable.
+     *
+     * @param backingStorable the storable that holds the keys
+     * @param properties      the properties the cache is sized from
+     */
+    public CachingStorable(Storable backingStorable, Properties properties) {
+        this.backingStorable = backingStorable;
+        this.bloomFilter = new BloomFilter(
+                Long.parseLong(properties.getProperty("CacheExpectedKeys", "10000000")),
+                Double.parseDouble(properties.getProperty("CacheFalsePositiveRate", "0.01")),
+                Long.parseLong(properties.getProperty("CacheMaxBloomBytes", Long.toString(64L * 1024 * 1024))));
+        this.fingerprints = new LongLongHashMap(
+                Integer.parseInt(properties.getProperty("CacheMaxFingerprints", "4000000")));
+        logger.info("The cache is using a {} byte bloom filter with {} hash functions and a {} byte fingerprint map",
+                bloomFilter.sizeInBytes(), bloomFilter.getNumberOfHashFunctions(), fingerprints.sizeInBytes());
+        String snapshotLocation = properties.getProperty("CacheSnapshotFile", "");
+        this.snapshotFile = snapshotLocation.isEmpty() ? null : Paths.get(snapshotLocation);
+        if (snapshotFile == null || !warmFromSnapshot())
+            warm();
+
+        long snapshotInterval = Long.parseLong(properties.getProperty("CacheSnapshotIntervalSeconds", "600"));
+        if (snapshotFile != null && snapshotInterval > 0) {
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotExecutor.scheduleWithFixedDelay(this::writeSnapshot, snapshotInterval, snapshotInterval,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Loads the snapshot, then reads the keys stored since it was taken from the backing storable.
+     *
+     * @return true if the cache was warmed, false if the snapshot couldn't be used and nothing was loaded
+     */
+    private boolean warmFromSnapshot() {
+        if (!Files.exists(snapshotFile)) {
+            logger.info("There is no cache snapshot at {} yet", snapshotFile);
+            return false;
+        }
+        long start = System.nanoTime();
+        CacheSnapshot snapshot;
+        try {
+            snapshot = CacheSnapshot.read(snapshotFile);
+        } catch (IOException exc) {
+            logger.warn("The cache snapshot {} can't be used: {}", snapshotFile, exc.getMessage());
+            return false;
+        }
+        if (!snapshot.fits(bloomFilter)) {
+            logger.warn("The cache snapshot {} was taken with a different bloom filter size", snapshotFile);
+            return false;
+        }
+        long removalStamp = backingStorable.removalStamp();
+        if (removalStamp < 0 || removalStamp != snapshot.getRemovalStamp()) {
+            logger.info("Objects may have been removed from the backing storable since the cache snapshot was taken");
+            return false;
+        }
+        int fingerprintsLoaded;
+        synchronized (fingerprints) {
+            fingerprintsLoaded = snapshot.loadInto(bloomFilter, fingerprints);
+        }
+        long loadedNanos = System.nanoTime() - start;
+        AtomicLong replayed = new AtomicLong();
+        try {
+            backingStorable.forEachKeyAndETagStoredSince(
+                    snapshot.getTakenMillis() - SNAPSHOT_REPLAY_MARGIN_MILLIS, (key, eTag) -> {
+                        remember(key, eTag);
+                        replayed.incrementAndGet();
+                    });
+        } catch (UnsupportedOperationException | IllegalStateException exc) {
+            // The bloom filter isn't marked complete, so every lookup it can't answer goes to the backing storable
+            logger.warn("The keys stored since the cache snapshot couldn't be read: {}", exc.getMessage());
+            return true;
+        }
+        keysReplayed = replayed.get();
+        bloomFilterComplete = true;
+        warmedFromSnapshot = true;
+        logger.info("The cache was loaded from a snapshot of {} fingerprints in {} ms, then {} keys stored since " +
+                        "were read in {} ms", fingerprintsLoaded, loadedNanos / 1000000, replayed.get(),
+                (System.nanoTime() - start - loadedNanos) / 1000000);
+        return true;
+    }
+
+    /**
+     * Writes the cache to the snapshot file. Nothing is written until the cache holds every key of the backing
+     * storable, as a snapshot taken before then would have the bloom filter rule out keys that are stored.
+     *
+     * @return true if the snapshot was written
+     */
+    public boolean writeSnapshot() {
+        if (snapshotFile == null || !bloomFilterComplete)
+            return false;
+        long start = System.nanoTime();
+        synchronized (snapshotLock) {
+            // Taken before the cache is read, so any key added while it is read is also read again at startup
+            long takenMillis = System.currentTimeMillis();
+            long removalStamp = backingStorable.removalStamp();
+            if (removalStamp < 0)
+                return false;
+            long[] heldFingerprints;
+            synchronized (fingerprints) {
+                heldFingerprints = fingerprints.toArray();
+            }
+            try {
+                CacheSnapshot.write(snapshotFile, takenMillis, removalStamp, bloomFilter, heldFingerprints);
+            } catch (IOException | RuntimeException exc) {
+                logger.warn("The cache snapshot {} couldn't be written: {}", snapshotFile, exc.toString());
+                return false;
+            }
+            logger.info("A cache snapshot of {} fingerprints was written in {} ms", heldFingerprints.length / 2,
+                    (System.nanoTime() - start) / 1000000);
+            return true;
+        }
+    }
+
+    /**
+     * Loads every key in the backing storable into the cache.
+     * If the backing storable can't list its keys every lookup that misses the fingerprints falls through.
+     */
+    private void warm() {
+        long start = System.nanoTime();
+        AtomicLong keysLoaded = new AtomicLong();
+        try {
+            backingStorable.forEachKeyAndETag((key, eTag) -> {
+                remember(key, eTag);
+                keysLoaded.incrementAndGet();
+            });
+            bloomFilterComplete = true;
+            logger.info("The cache was warmed with {} keys in {} ms, {} fingerprints are held",
+                    keysLoaded.get(), (System.nanoTime() - start) / 1000000, fingerprintCount());
+        } catch (UnsupportedOperationException | IllegalStateException exc) {
+            logger.warn("The cache couldn't be warmed, all unknown keys will go to the backing storable: {}",
+                    exc.getMessage());
+        }
+    }
+
+    private void remember(String key) {
+        remember(key, null);
+    }
+
+    /**
+     * Remembers the key with its ETag in place of the ETag it was remembered with, as an object that goes
+     * back to an earlier ETag is modified again.
+     */
+    private void remember(String key, String eTag) {
+        bloomFilter.put(KeyHashing.bloomHash(key));
+        synchronized (fingerprints) {
+            fingerprints.put(KeyHashing.fingerprint(key), KeyHashing.fingerprint(key, eTag));
+        }
+    }
+
+    private boolean fingerprintHeld(String key) {
+        synchronized (fingerprints) {
+            return fingerprints.containsKey(KeyHashing.fingerprint(key));
+        }
+    }
+
+    private boolean fingerprintHeld(String key, String eTag) {
+        long version = KeyHashing.fingerprint(key, eTag);
+        synchronized (fingerprints) {
+            return fingerprints.get(KeyHashing.fingerprint(key), 0) == version;
+        }
+    }
+
+    /**
+     * @param key the key as a string
+     * @return true if the key is definitely not read, false if the backing storable needs to be asked
+     */
+    private boolean definitelyUnseen(String key) {
+        if (bloomFilterComplete && !bloomFilter.mightContain(KeyHashing.bloomHash(key))) {
+            bloomFilterMisses.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean keyAlreadyRead(String key) {
+        if (definitelyUnseen(key))
+            return false;
+        if (fingerprintHeld(key)) {
+            fingerprintHits.incrementAndGet();
+            return true;
+        }
+        backingLookups.incrementAndGet();
+        boolean alreadyRead = backingStorable.keyAlreadyRead(key);
+        if (alreadyRead) {
+            backingHits.incrementAndGet();
+            remember(key);
+        }
+        return alreadyRead;
+    }
+
+    /**
+     * Answers what it can from memory and sends the remaining keys to the backing storable in one batch.
+     *
+     * @param keys the keys to check
+     * @return the keys that are not within the storable, in the order they were given
+     */
+    @Override
+    public Set<String> filterUnseen(Collection<String> keys) {
+        Set<String> unseenKeys = new LinkedHashSet<>();
+        List<String> unsureKeys = new ArrayList<>();
+        for (String key : keys) {
+            if (definitelyUnseen(key)) {
+                unseenKeys.add(key);
+            } else if (fingerprintHeld(key)) {
+                fingerprintHits.incrementAndGet();
+            } else {
+                unsureKeys.add(key);
+            }
+        }
+
+        if (!unsureKeys.isEmpty()) {
+            backingLookups.addAndGet(unsureKeys.size());
+            Set<String> unseenByBacking = backingStorable.filterUnseen(unsureKeys);
+            for (String key : unsureKeys) {
+                if (!unseenByBacking.contains(key)) {
+                    backingHits.incrementAndGet();
+                    remember(key);
+                }
+            }
+            // Keeps the order the keys were given in
+            Set<String> ordered = new LinkedHashSet<>();
+            for (String key : keys) {
+                if (unseenKeys.contains(key) || unseenByBacking.contains(key))
+                    ordered.add(key);
+            }
+            unseenKeys = ordered;
+        }
+        logger.debug("Cache statistics: {}", statisticsSummary());
+        return unseenKeys;
+    }
+
+    /**
+     * Answers what it can from memory and sends the remaining objects to the backing storable in one batch.
+     * Objects the bloom filter rules out are new, objects whose key and ETag are remembered are unchanged.
+     *
+     * @param page the listed objects
+     * @return how each object of the page compares, at the same index as the object
+     */
+    @Override
+    public ObjectChange[] classify(ObjectPage page) {
+        ObjectChange[] changes = new ObjectChange[page.size()];
+        int[] unsureIndexes = new int[page.size()];
+        int unsureCount = 0;
+        for (int i = 0; i < page.size(); i++) {
+            String key = page.keyAt(i);
+            if (definitelyUnseen(key)) {
+                changes[i] = ObjectChange.NEW;
+            } else if (fingerprintHeld(key, page.eTagAt(i))) {
+                fingerprintHits.incrementAndGet();
+                changes[i] = ObjectChange.UNCHANGED;
+            } else {
+                unsureIndexes[unsureCount++] = i;
+            }
+        }
+
+        if (unsureCount > 0) {
+            backingLookups.addAndGet(unsureCount);
+            ObjectChange[] backingChanges = backingStorable.classify(page.select(unsureIndexes, unsureCount));
+            for (int i = 0; i < unsureCount; i++) {
+                int index = unsureIndexes[i];
+                changes[index] = backingChanges[i];
+                if (backingChanges[i] != ObjectChange.NEW)
+                    backingHits.incrementAndGet();
+                // Modified objects and missing metadata are remembered once they are written
+                if (backingChanges[i] == ObjectChange.UNCHANGED)
+                    remember(page.keyAt(index), page.eTagAt(index));
+            }
+        }
+        logger.debug("Cache statistics: {}", statisticsSummary());
+        return changes;
+    }
+
+    @Override
+    public boolean putKey(String key) {
+        boolean written = backingStorable.putKey(key);
+        if (written)
+            remember(key);
+        return written;
+    }
+
+    @Override
+    public boolean putKeys(Collection<String> keys) {
+        boolean written = backingStorable.putKeys(keys);
+        if (written)
+            keys.forEach(this::remember);
+        return written;
+    }
+
+    @Override
+    public boolean putObjects(Collection<StoredObject> objects) {
+        boolean written = backingStorable.putObjects(objects);
+        if (written)
+            objects.forEach((object) -> remember(object.getKey(), object.getETag()));
+        return written;
+    }
+
+    @Override
+    public long beginGeneration() {
+        return backingStorable.beginGeneration();
+    }
+
+    @Override
+    public boolean markSeen(Collection<String> keys, long generation) {
+        return backingStorable.markSeen(keys, generation);
+    }
+
+    @Override
+    public List<StoredObject> findUnmarked(long generation, String afterKey, int limit) {
+        return backingStorable.findUnmarked(generation, afterKey, limit);
+    }
+
+    /**
+     * Removes the objects from the backing storable and forgets their fingerprints.
+     * The bloom filter can't forget keys, so a removed key that is listed again falls through to the backing storable.
+     *
+     * @param objects the objects to remove
+     * @return returns a boolean whether the objects were removed successfully or not
+     */
+    @Override
+    public boolean removeObjects(Collection<StoredObject> objects) {
+        synchronized (snapshotLock) {
+            boolean removed = backingStorable.removeObjects(objects);
+            if (removed)
+                forgetFingerprints(objects);
+            return removed;
+        }
+    }
+
+    private void forgetFingerprints(Collection<StoredObject> objects) {
+        synchronized (fingerprints) {
+            for (StoredObject object : objects) {
+                fingerprints.remove(KeyHashing.fingerprint(object.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Prunes the objects from the backing storable and forgets their fingerprints, as {@link #removeObjects(Collection)}.
+     */
+    @Override
+    public List<StoredObject> pruneOlderThan(long cutoffMillis, long generation, String afterKey, int limit) {
+        synchronized (snapshotLock) {
+            List<StoredObject> pruned = backingStorable.pruneOlderThan(cutoffMillis, generation, afterKey, limit);
+            forgetFingerprints(pruned);
+            return pruned;
+        }
+    }
+
+    @Override
+    public long reclaimSpace(int maxPages) {
+        return backingStorable.reclaimSpace(maxPages);
+    }
+
+    @Override
+    public long sizeBytes() {
+        return backingStorable.sizeBytes();
+    }
+
+    @Override
+    public String getWatermark(String prefix) {
+        return backingStorable.getWatermark(prefix);
+    }
+
+    @Override
+    public boolean putWatermark(String prefix, String lastKey) {
+        return backingStorable.putWatermark(prefix, lastKey);
+    }
+
+    @Override
+    public long getListState(String name) {
+        return backingStorable.getListState(name);
+    }
+
+    @Override
+    public boolean putListState(String name, long value) {
+        return backingStorable.putListState(name, value);
+    }
+
+    @Override
+    public long removalStamp() {
+        return backingStorable.removalStamp();
+    }
+
+    /**
+     * Writes a last snapshot, if snapshots are taken, then closes the backing storable.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdown();
+            try {
+                snapshotExecutor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writeSnapshot();
+        logger.info("Cache statistics at close: {}", statisticsSummary());
+        backingStorable.close();
+    }
+
+    public boolean isWarmedFromSnapshot() {
+        return warmedFromSnapshot;
+    }
+
+    public long getKeysReplayed() {
+        return keysReplayed;
+    }
+
+    public Storable getBackingStorable() {
+        return backingStorable;
+    }
+
+    /**
+     * @return the lookups answered as read by the fingerprint map
+     */
+    public long getFingerprintHits() {
+        return fingerprintHits.get();
+    }
+
+    /**
+     * @return the lookups answered as not read by the bloom filter
+     */
+    public long getBloomFilterMisses() {
+        return bloomFilterMisses.get();
+    }
+
+    /**
+     * @return the lookups that fell through to the backing storable
+     */
+    public long getBackingLookups() {
+        return backingLookups.get();
+    }
+
+    /**
+     * @return the lookups that fell through and were found in the backing storable
+     */
+    public long getBackingHits() {
+        return backingHits.get();
+    }
+
+    public int fingerprintCount() {
+        synchronized (fingerprints) {
+            return fingerprints.size();
+        }
+    }
+
+    public boolean isFingerprintSetFull() {
+        synchronized (fingerprints) {
+            return fingerprints.isFull();
+        }
+    }
+
+    public String statisticsSummary() {
+        return String.format("fingerprint hits=%d, bloom filter misses=%d, backing lookups=%d, backing hits=%d, " +
+                        "fingerprints held=%d%s", getFingerprintHits(), getBloomFilterMisses(), getBackingLookups(),
+                getBackingHits(), fingerprintCount(), isFingerprintSetFull() ? " (full)" : "");
+    }
+}
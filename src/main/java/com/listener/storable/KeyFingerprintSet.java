@@ -0,0 +1,136 @@
+package com.listener.storable;
+
+/**
+ * A growable open addressing set of 128 bit key fingerprints with linear probing, for holding every key of
+ * a listing at 16 bytes a slot instead of a {@link String} per key. The two halves of the fingerprint are
+ * hashed in one pass over the chars of the key, so two keys colliding on both is vanishingly unlikely even
+ * for buckets of billions of keys.
+ * <p>
+ * This class isn't thread safe.
+ */
+public class KeyFingerprintSet {
+    private static final double MAX_LOAD_FACTOR = 0.75;
+    private static final long FIRST_SEED = 0x9E3779B97F4A7C15L;
+    private static final long SECOND_SEED = 0xC2B2AE3D27D4EB4FL;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 29;
+
+    // Two longs a slot, the fingerprint then the second hash, a fingerprint of 0 marks an empty slot
+    private long[] slots;
+    // The second lane of the last key hashed
+    private long secondHash;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expectedSize the number of keys expected, the set grows past this when needed
+     */
+    public KeyFingerprintSet(int expectedSize) {
+        long wanted = (long) Math.ceil(Math.max(1, expectedSize) / MAX_LOAD_FACTOR);
+        int capacity = Integer.highestOneBit((int) Math.min(Math.max(wanted, MIN_CAPACITY), MAX_CAPACITY));
+        if (capacity < wanted && capacity < MAX_CAPACITY)
+            capacity <<= 1;
+        this.slots = new long[capacity * 2];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @param key the key
+     * @return true if the key was added, false if it was already present
+     */
+    public boolean add(String key) {
+        long fingerprint = hash(key);
+        long second = this.secondHash;
+        int slot = slotOf(fingerprint);
+        while (slots[slot * 2] != 0) {
+            if (slots[slot * 2] == fingerprint && slots[slot * 2 + 1] == second)
+                return false;
+            slot = (slot + 1) & mask;
+        }
+        slots[slot * 2] = fingerprint;
+        slots[slot * 2 + 1] = second;
+        size++;
+        // Growing once past the load factor keeps an empty slot at the end of every probe
+        if (size > (mask + 1) * MAX_LOAD_FACTOR)
+            grow();
+        return true;
+    }
+
+    public boolean contains(String key) {
+        long fingerprint = hash(key);
+        long second = this.secondHash;
+        int slot = slotOf(fingerprint);
+        while (slots[slot * 2] != 0) {
+            if (slots[slot * 2] == fingerprint && slots[slot * 2 + 1] == second)
+                return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Hashes the key as two lanes over the same mixed blocks of chars, the second lane is left in secondHash.
+     *
+     * @return the first lane, never 0
+     */
+    private long hash(String key) {
+        int length = key.length();
+        long first = FIRST_SEED ^ length;
+        long second = SECOND_SEED ^ length;
+        int i = 0;
+        // Four chars at a time
+        for (; i + 4 <= length; i += 4) {
+            long block = KeyHashing.mix((long) key.charAt(i)
+                    | ((long) key.charAt(i + 1) << 16)
+                    | ((long) key.charAt(i + 2) << 32)
+                    | ((long) key.charAt(i + 3) << 48));
+            first = Long.rotateLeft(first ^ block, 27) * 5 + 0x52DCE729;
+            second = Long.rotateLeft(second ^ block, 31) * 9 + 0x38495AB5;
+        }
+        long tail = 0;
+        for (int shift = 0; i < length; i++, shift += 16) {
+            tail |= (long) key.charAt(i) << shift;
+        }
+        tail = KeyHashing.mix(tail);
+        first = KeyHashing.mix(first ^ tail);
+        second = KeyHashing.mix(second ^ Long.rotateLeft(tail, 32));
+        secondHash = second;
+        return first == 0 ? 1 : first;
+    }
+
+    /**
+     * Doubles the capacity, moving each entry to its slot in the larger table.
+     */
+    private void grow() {
+        int capacity = mask + 1;
+        if (capacity >= MAX_CAPACITY)
+            throw new IllegalStateException("The fingerprint set can't hold more than "
+                    + (long) (MAX_CAPACITY * MAX_LOAD_FACTOR) + " keys");
+        long[] oldSlots = slots;
+        slots = new long[capacity * 4];
+        mask = capacity * 2 - 1;
+        for (int oldSlot = 0; oldSlot < capacity; oldSlot++) {
+            long fingerprint = oldSlots[oldSlot * 2];
+            if (fingerprint == 0)
+                continue;
+            int slot = slotOf(fingerprint);
+            while (slots[slot * 2] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot * 2] = fingerprint;
+            slots[slot * 2 + 1] = oldSlots[oldSlot * 2 + 1];
+        }
+    }
+
+    private int slotOf(long fingerprint) {
+        return (int) KeyHashing.mix(fingerprint) & mask;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long sizeInBytes() {
+        return (long) slots.length * 8;
+    }
+}
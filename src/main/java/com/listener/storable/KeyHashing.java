@@ -0,0 +1,82 @@
+package com.listener.storable;
+
+/**
+ * 64 bit hashes of object keys used by the in-memory structures in front of a {@link Storable}.
+ * The hashes are computed over the chars of the key so no bytes are allocated per key.
+ */
+public final class KeyHashing {
+    private static final long FINGERPRINT_SEED = 0x9E3779B97F4A7C15L;
+    private static final long BLOOM_SEED = 0xC2B2AE3D27D4EB4FL;
+    private static final long ETAG_SEED = 0x165667B19E3779F9L;
+
+    private KeyHashing() {
+    }
+
+    /**
+     * A fingerprint of the key, this is used to identify the key in a {@link LongLongHashMap}.
+     *
+     * @param key the key as a string
+     * @return a 64 bit fingerprint that is never 0
+     */
+    public static long fingerprint(String key) {
+        long hash = hash(key, FINGERPRINT_SEED);
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * A fingerprint of a version of an object, the key with its ETag.
+     * Without an ETag this is the same as the fingerprint of the key alone.
+     *
+     * @param key  the key as a string
+     * @param eTag the ETag of the object, or null if it isn't known
+     * @return a 64 bit fingerprint that is never 0
+     */
+    public static long fingerprint(String key, String eTag) {
+        if (eTag == null)
+            return fingerprint(key);
+        long hash = mix(hash(key, FINGERPRINT_SEED) ^ Long.rotateLeft(hash(eTag, ETAG_SEED), 32));
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * A hash of the key independent of its {@link #fingerprint(String)}, used by the {@link BloomFilter}.
+     *
+     * @param key the key as a string
+     * @return a 64 bit hash
+     */
+    public static long bloomHash(String key) {
+        return hash(key, BLOOM_SEED);
+    }
+
+    private static long hash(String key, long seed) {
+        long hash = seed ^ (key.length() * 0xFF51AFD7ED558CCDL);
+        int length = key.length();
+        int i = 0;
+        // Four chars at a time
+        for (; i + 4 <= length; i += 4) {
+            long block = (long) key.charAt(i)
+                    | ((long) key.charAt(i + 1) << 16)
+                    | ((long) key.charAt(i + 2) << 32)
+                    | ((long) key.charAt(i + 3) << 48);
+            hash = Long.rotateLeft(hash ^ mix(block), 27) * 5 + 0x52DCE729;
+        }
+        long tail = 0;
+        for (int shift = 0; i < length; i++, shift += 16) {
+            tail |= (long) key.charAt(i) << shift;
+        }
+        hash ^= mix(tail);
+        return mix(hash);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, spreads every input bit across the output.
+     */
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,143 @@
+package com.listener.storable;
+
+/**
+ * An open addressing map from primitive longs to primitive longs with linear probing and a fixed capacity.
+ * This holds a fingerprint of the version of each key against the fingerprint of the key, at 16 bytes a slot
+ * instead of a {@link String} per key. The key 0 marks an empty slot so it can't be stored,
+ * see {@link KeyHashing#fingerprint(String)}.
+ * <p>
+ * This class isn't thread safe.
+ */
+public class LongLongHashMap {
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    private final long[] keys;
+    private final long[] values;
+    private final int mask;
+    private final int maxSize;
+    private int size;
+
+    /**
+     * @param maxSize the number of keys the map can hold, new keys past this are refused
+     */
+    public LongLongHashMap(int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("The map must be able to hold at least one key");
+        long wanted = (long) Math.ceil(maxSize / MAX_LOAD_FACTOR);
+        int capacity = Integer.highestOneBit((int) Math.min(wanted, 1 << 30));
+        if (capacity < wanted && capacity < (1 << 30))
+            capacity <<= 1;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.mask = capacity - 1;
+        this.maxSize = (int) Math.min(maxSize, (long) (capacity * MAX_LOAD_FACTOR));
+    }
+
+    /**
+     * Sets the value of the key, replacing the value it had.
+     *
+     * @param key   a non zero key
+     * @param value the value
+     * @return true if the key is now held, false if it is new and the map is full
+     */
+    public boolean put(long key, long value) {
+        int slot = slotOf(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size >= maxSize)
+            return false;
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return true;
+    }
+
+    public boolean containsKey(long key) {
+        return slotHolding(key) >= 0;
+    }
+
+    /**
+     * @param key          a non zero key
+     * @param defaultValue the value returned when the key isn't held
+     * @return the value of the key, or the default value
+     */
+    public long get(long key, long defaultValue) {
+        int slot = slotHolding(key);
+        return slot >= 0 ? values[slot] : defaultValue;
+    }
+
+    /**
+     * Removes the key, the following entries of its probe run are shifted back
+     * so no tombstones are left behind.
+     *
+     * @param key a non zero key
+     * @return true if the key was present
+     */
+    public boolean remove(long key) {
+        int slot = slotHolding(key);
+        if (slot < 0)
+            return false;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != 0) {
+            int home = slotOf(keys[next]);
+            // Moves the entry into the gap if the gap is on its probe run
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = 0;
+        values[gap] = 0;
+        size--;
+        return true;
+    }
+
+    private int slotHolding(long key) {
+        int slot = slotOf(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slotOf(long key) {
+        return (int) KeyHashing.mix(key) & mask;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size >= maxSize;
+    }
+
+    public long sizeInBytes() {
+        return (long) keys.length * 16;
+    }
+
+    /**
+     * @return the keys and values held, each key followed by its value, in no particular order
+     */
+    public long[] toArray() {
+        long[] entries = new long[size * 2];
+        int next = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                entries[next++] = keys[slot];
+                entries[next++] = values[slot];
+            }
+        }
+        return entries;
+    }
+}
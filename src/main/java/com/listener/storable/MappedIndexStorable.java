@@ -0,0 +1,667 @@
+package com.listener.storable;
+
+import com.listener.filesystem.ObjectPage;
+import com.listener.metrics.Histogram;
+import com.listener.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link Storable} kept in an index file and a log file rather than a database, for buckets whose
+ * objects are mostly written once and then only listed.
+ * <p>
+ * The index file holds every key stored at its last compaction: a header, an entry of 24 bytes for each key
+ * sorted by the fingerprint of the key, then the keys with their ETag and size in the order they were stored.
+ * The entries are memory-mapped, so looking a key up is a binary search over the mapped file that allocates
+ * nothing. Objects written since the compaction are appended to the log and held in memory until there are
+ * enough of them to compact into a new index file, which replaces the old one with an atomic rename before
+ * the log is emptied.
+ * <p>
+ * Each record of the log carries a CRC32. After a crash the log is replayed up to the last whole record and
+ * anything after it is truncated, replaying records that had already been compacted changes nothing.
+ * <p>
+ * Keys are identified in the index by their 64 bit fingerprint, so as with the {@link CachingStorable} the
+ * chance of a new key being taken as read is about the number of keys stored divided by 2^64 for each lookup.
+ * The entries are mapped as a single buffer, which limits an index to about 89 million keys.
+ * Generations and watermarks aren't kept, so deletions aren't detected and incremental listings list every key.
+ * <p>
+ * The storable is set from the properties:
+ * <ul>
+ * <li>DataBaseLocation: the path of the index file, the log is kept beside it with ".log" added</li>
+ * <li>MappedIndexCompactEvery: the objects written to the log before it is compacted, default 100,000</li>
+ * <li>MappedIndexSyncWrites: "true" to force each batch written to the log to the disk, default true</li>
+ * </ul>
+ */
+public class MappedIndexStorable implements Storable {
+    private final static Logger logger = LoggerFactory.getLogger(MappedIndexStorable.class.getName());
+
+    private final static int MAGIC = 0x53334958;
+    private final static int FORMAT_VERSION = 1;
+    private final static int HEADER_BYTES = 32;
+    private final static int ENTRY_BYTES = 24;
+    private final static long MAX_ENTRIES = Integer.MAX_VALUE / ENTRY_BYTES;
+    // S3 keys are at most 1024 bytes, so anything longer is a corrupt length
+    private final static int MAX_RECORD_BYTES = 64 * 1024;
+    // The version of an object whose ETag isn't known, fingerprints are never 0
+    private final static long NO_VERSION = 0;
+
+    private final Path indexPath;
+    private final Path logPath;
+    private final int compactEvery;
+    private final boolean syncWrites;
+
+    private MappedByteBuffer entries;
+    private int indexedCount;
+    private long keysOffset;
+
+    private FileChannel logChannel;
+    private ByteBuffer logBuffer = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 checksum = new CRC32();
+    // The objects written since the last compaction, in the order they were first written
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private int pendingNewKeys;
+
+    private final Histogram keyLookupSeconds;
+    private final Histogram chunkLookupSeconds;
+
+    /**
+     * The state of an object written since the last compaction, with what the index held for it filled in.
+     */
+    private static final class Pending {
+        private final long keyHash;
+        private final boolean indexed;
+        // Null when no ETag has been written since the compaction, the one in the index is kept
+        private String eTag;
+        private long version;
+        private long size;
+
+        private Pending(long keyHash, boolean indexed, long version, long size) {
+            this.keyHash = keyHash;
+            this.indexed = indexed;
+            this.version = version;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Opens the index and replays the log, both are created if they don't exist.
+     *
+     * @param properties the properties containing the DataBaseLocation and the compaction configuration
+     */
+    public MappedIndexStorable(Properties properties) {
+        String location = properties.getProperty("DataBaseLocation");
+        if (location == null || location.trim().isEmpty())
+            throw new IllegalArgumentException("The MappedIndexStorable needs a DataBaseLocation for its index file");
+        this.indexPath = Paths.get(location);
+        this.logPath = Paths.get(location + ".log");
+        this.compactEvery = Math.max(1, Integer.parseInt(properties.getProperty("MappedIndexCompactEvery", "100000")));
+        this.syncWrites = properties.getProperty("MappedIndexSyncWrites", "true").equals("true");
+
+        String bucket = properties.getProperty("bucketName", "");
+        keyLookupSeconds = MetricsRegistry.getDefault().histogram("s3listen_storable_lookup_seconds",
+                "Time taken to look keys up in the storable", Histogram.LATENCY_SECONDS,
+                "bucket", bucket, "storable", "mapped", "lookup", "key");
+        chunkLookupSeconds = MetricsRegistry.getDefault().histogram("s3listen_storable_lookup_seconds",
+                "Time taken to look keys up in the storable", Histogram.LATENCY_SECONDS,
+                "bucket", bucket, "storable", "mapped", "lookup", "chunk");
+
+        try {
+            Path directory = indexPath.toAbsolutePath().getParent();
+            if (directory != null)
+                Files.createDirectories(directory);
+            openIndex();
+            long replayedLength = replayLog();
+            logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (logChannel.size() > replayedLength) {
+                logger.warn("The end of the log {} wasn't a whole record, it has been truncated from {} to {} bytes",
+                        logPath, logChannel.size(), replayedLength);
+                logChannel.truncate(replayedLength);
+            }
+            logChannel.position(replayedLength);
+            logger.info("The index {} holds {} keys and {} objects were replayed from its log",
+                    indexPath, indexedCount, pending.size());
+        } catch (IOException exc) {
+            logger.error("An error has occured setting up the mapped index storable:\n" + exc.getMessage());
+            throw new UncheckedIOException(exc);
+        }
+    }
+
+    /**
+     * Maps the entries of the index file, an index file that doesn't exist is empty.
+     */
+    private void openIndex() throws IOException {
+        entries = null;
+        indexedCount = 0;
+        keysOffset = HEADER_BYTES;
+        if (!Files.exists(indexPath))
+            return;
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0)
+                    throw new EOFException("The index " + indexPath + " is shorter than its header");
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION)
+                throw new IOException(indexPath + " isn't an index file of version " + FORMAT_VERSION);
+            long count = header.getLong();
+            if (count < 0 || count > MAX_ENTRIES)
+                throw new IOException("The index " + indexPath + " has an invalid count of " + count);
+            indexedCount = (int) count;
+            keysOffset = header.getLong();
+            // The mapping stays valid once the channel is closed
+            entries = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, (long) indexedCount * ENTRY_BYTES);
+        }
+    }
+
+    /**
+     * Replays every whole record of the log into memory.
+     *
+     * @return the length of the log up to the end of the last whole record
+     */
+    private long replayLog() throws IOException {
+        if (!Files.exists(logPath))
+            return 0;
+        long validLength = 0;
+        try (InputStream file = Files.newInputStream(logPath);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16))) {
+            CRC32 recordChecksum = new CRC32();
+            while (true) {
+                int payloadLength = in.readInt();
+                if (payloadLength < 16 || payloadLength > MAX_RECORD_BYTES)
+                    break;
+                byte[] payload = new byte[payloadLength];
+                in.readFully(payload);
+                int expectedChecksum = in.readInt();
+                recordChecksum.reset();
+                recordChecksum.update(payload, 0, payloadLength);
+                if ((int) recordChecksum.getValue() != expectedChecksum)
+                    break;
+                apply(readObject(new DataInputStream(new ByteArrayInputStream(payload))));
+                validLength += 4 + payloadLength + 4;
+            }
+        } catch (EOFException exc) {
+            // The log ends here, possibly part way through a record written during a crash
+        }
+        return validLength;
+    }
+
+    /**
+     * @param keyHash the fingerprint of a key
+     * @return the index of its entry, or -1 if the index doesn't hold it
+     */
+    private int findEntry(long keyHash) {
+        int low = 0;
+        int high = indexedCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleHash = entries.getLong(middle * ENTRY_BYTES);
+            if (middleHash < keyHash)
+                low = middle + 1;
+            else if (middleHash > keyHash)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    private long versionAt(int entry) {
+        return entries.getLong(entry * ENTRY_BYTES + 8);
+    }
+
+    private long sizeAt(int entry) {
+        return entries.getLong(entry * ENTRY_BYTES + 16);
+    }
+
+    private boolean contains(String key) {
+        return pending.containsKey(key) || findEntry(KeyHashing.fingerprint(key)) >= 0;
+    }
+
+    @Override
+    public synchronized boolean keyAlreadyRead(String key) {
+        long start = System.nanoTime();
+        boolean alreadyRead = contains(key);
+        keyLookupSeconds.observeNanos(System.nanoTime() - start);
+        return alreadyRead;
+    }
+
+    @Override
+    public synchronized Set<String> filterUnseen(Collection<String> keys) {
+        long start = System.nanoTime();
+        Set<String> unseenKeys = new LinkedHashSet<>();
+        for (String key : keys) {
+            if (!contains(key))
+                unseenKeys.add(key);
+        }
+        chunkLookupSeconds.observeNanos(System.nanoTime() - start);
+        return unseenKeys;
+    }
+
+    /**
+     * Compares each object of the page with the version and size stored for it.
+     *
+     * @param page the listed objects
+     * @return how each object of the page compares, at the same index as the object
+     */
+    @Override
+    public synchronized ObjectChange[] classify(ObjectPage page) {
+        long start = System.nanoTime();
+        ObjectChange[] changes = new ObjectChange[page.size()];
+        for (int i = 0; i < changes.length; i++) {
+            String key = page.keyAt(i);
+            Pending written = pending.get(key);
+            if (written != null) {
+                changes[i] = compare(page, i, written.version, written.size);
+                continue;
+            }
+            int entry = findEntry(KeyHashing.fingerprint(key));
+            changes[i] = entry < 0 ? ObjectChange.NEW : compare(page, i, versionAt(entry), sizeAt(entry));
+        }
+        chunkLookupSeconds.observeNanos(System.nanoTime() - start);
+        return changes;
+    }
+
+    /**
+     * Compares a listed object with what is stored for it in the same way as the {@link SQLiteStorable},
+     * the ETags are compared by their fingerprint with the key.
+     */
+    private static ObjectChange compare(ObjectPage page, int index, long storedVersion, long storedSize) {
+        String listedETag = page.eTagAt(index);
+        long listedSize = page.sizeAt(index);
+        if (storedVersion == NO_VERSION && storedSize == ObjectPage.UNKNOWN_SIZE) {
+            boolean listedWithMetadata = listedETag != null || listedSize != ObjectPage.UNKNOWN_SIZE;
+            return listedWithMetadata ? ObjectChange.METADATA_MISSING : ObjectChange.UNCHANGED;
+        }
+        if (storedVersion != NO_VERSION && listedETag != null
+                && storedVersion != KeyHashing.fingerprint(page.keyAt(index), listedETag))
+            return ObjectChange.MODIFIED;
+        if (storedSize != ObjectPage.UNKNOWN_SIZE && listedSize != ObjectPage.UNKNOWN_SIZE && storedSize != listedSize)
+            return ObjectChange.MODIFIED;
+        return ObjectChange.UNCHANGED;
+    }
+
+    @Override
+    public boolean putKey(String key) {
+        return putObjects(Collections.singletonList(StoredObject.ofKey(key)));
+    }
+
+    @Override
+    public boolean putKeys(Collection<String> keys) {
+        List<StoredObject> objects = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            objects.add(StoredObject.ofKey(key));
+        }
+        return putObjects(objects);
+    }
+
+    /**
+     * Appends the objects to the log as one write, then holds them in memory until the log is compacted.
+     * Metadata that isn't known keeps what is already stored for an object.
+     *
+     * @param objects the objects with their metadata
+     * @return returns a boolean whether the objects were written to the log successfully or not
+     */
+    @Override
+    public synchronized boolean putObjects(Collection<StoredObject> objects) {
+        if (objects.isEmpty())
+            return true;
+        logBuffer.clear();
+        for (StoredObject object : objects) {
+            appendRecord(object);
+        }
+        logBuffer.flip();
+        long logLength = 0;
+        try {
+            logLength = logChannel.position();
+            while (logBuffer.hasRemaining()) {
+                logChannel.write(logBuffer);
+            }
+            if (syncWrites)
+                logChannel.force(false);
+        } catch (IOException exc) {
+            logger.warn("An error has occured writing a batch of {} objects to the log {}: {}",
+                    objects.size(), logPath, exc.getMessage());
+            try {
+                logChannel.truncate(logLength);
+                logChannel.position(logLength);
+            } catch (IOException truncateExc) {
+                logger.warn("The partial batch couldn't be truncated from the log: {}", truncateExc.getMessage());
+            }
+            return false;
+        }
+
+        for (StoredObject object : objects) {
+            apply(object);
+        }
+        if (pending.size() >= compactEvery)
+            compact();
+        return true;
+    }
+
+    /**
+     * Adds a record of the object to the log buffer: the length of the payload, the payload and its CRC32.
+     */
+    private void appendRecord(StoredObject object) {
+        byte[] key = object.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] eTag = object.getETag() == null ? null : object.getETag().getBytes(StandardCharsets.UTF_8);
+        int payloadLength = objectLength(key, eTag);
+        if (logBuffer.remaining() < 4 + payloadLength + 4) {
+            int capacity = Math.max(logBuffer.capacity() * 2, logBuffer.position() + 8 + payloadLength);
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            logBuffer.flip();
+            grown.put(logBuffer);
+            logBuffer = grown;
+        }
+        logBuffer.putInt(payloadLength);
+        int payloadStart = logBuffer.position();
+        logBuffer.putInt(key.length).put(key);
+        if (eTag == null) {
+            logBuffer.putInt(-1);
+        } else {
+            logBuffer.putInt(eTag.length).put(eTag);
+        }
+        logBuffer.putLong(object.getSize());
+        checksum.reset();
+        checksum.update(logBuffer.array(), payloadStart, payloadLength);
+        logBuffer.putInt((int) checksum.getValue());
+    }
+
+    private static int objectLength(byte[] key, byte[] eTag) {
+        return 4 + key.length + 4 + (eTag == null ? 0 : eTag.length) + 8;
+    }
+
+    /**
+     * Holds a written object in memory, merging its metadata with what is already stored for it.
+     */
+    private void apply(StoredObject object) {
+        String key = object.getKey();
+        Pending written = pending.get(key);
+        if (written == null) {
+            long keyHash = KeyHashing.fingerprint(key);
+            int entry = findEntry(keyHash);
+            written = entry < 0 ? new Pending(keyHash, false, NO_VERSION, ObjectPage.UNKNOWN_SIZE)
+                    : new Pending(keyHash, true, versionAt(entry), sizeAt(entry));
+            pending.put(key, written);
+            if (!written.indexed)
+                pendingNewKeys++;
+        }
+        if (object.getETag() != null) {
+            written.eTag = object.getETag();
+            written.version = KeyHashing.fingerprint(key, object.getETag());
+        }
+        if (object.getSize() != ObjectPage.UNKNOWN_SIZE)
+            written.size = object.getSize();
+    }
+
+    /**
+     * Writes the index and the objects held in memory to a new index file, which replaces the old one
+     * with an atomic rename before the log is emptied.
+     *
+     * @return returns a boolean whether the log was compacted or not, the objects stay in the log if it wasn't
+     */
+    public synchronized boolean compact() {
+        if (pending.isEmpty())
+            return true;
+        long start = System.nanoTime();
+        long newCount = (long) indexedCount + pendingNewKeys;
+        if (newCount > MAX_ENTRIES) {
+            logger.warn("The index {} can't hold {} keys, the objects are kept in the log", indexPath, newCount);
+            return false;
+        }
+        Path compactingPath = indexPath.resolveSibling(indexPath.getFileName() + ".compacting");
+        try {
+            writeIndex(compactingPath, (int) newCount);
+            Files.move(compactingPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+            openIndex();
+            logChannel.truncate(0);
+            logChannel.position(0);
+            if (syncWrites)
+                logChannel.force(true);
+            pending.clear();
+            pendingNewKeys = 0;
+            logger.info("The index {} was compacted to {} keys in {} ms",
+                    indexPath, indexedCount, (System.nanoTime() - start) / 1000000);
+            return true;
+        } catch (IOException exc) {
+            logger.warn("The index {} couldn't be compacted, the objects are kept in the log: {}",
+                    indexPath, exc.getMessage());
+            try {
+                Files.deleteIfExists(compactingPath);
+            } catch (IOException deleteExc) {
+                logger.warn("The partial index {} couldn't be deleted: {}", compactingPath, deleteExc.getMessage());
+            }
+            return false;
+        }
+    }
+
+    private void writeIndex(Path path, int count) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(count);
+            out.writeLong(HEADER_BYTES + (long) count * ENTRY_BYTES);
+            out.writeLong(0);
+            writeEntries(out);
+            writeObjects(out);
+            out.flush();
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Merges the sorted entries of the index with the objects held in memory, which replace the entry of their key.
+     */
+    private void writeEntries(DataOutputStream out) throws IOException {
+        List<Pending> sorted = new ArrayList<>(pending.values());
+        sorted.sort(Comparator.comparingLong((written) -> written.keyHash));
+        int next = 0;
+        for (int entry = 0; entry < indexedCount; entry++) {
+            long keyHash = entries.getLong(entry * ENTRY_BYTES);
+            while (next < sorted.size() && sorted.get(next).keyHash < keyHash) {
+                writeEntry(out, sorted.get(next++));
+            }
+            if (next < sorted.size() && sorted.get(next).keyHash == keyHash) {
+                writeEntry(out, sorted.get(next++));
+            } else {
+                out.writeLong(keyHash);
+                out.writeLong(versionAt(entry));
+                out.writeLong(sizeAt(entry));
+            }
+        }
+        while (next < sorted.size()) {
+            writeEntry(out, sorted.get(next++));
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Pending written) throws IOException {
+        out.writeLong(written.keyHash);
+        out.writeLong(written.version);
+        out.writeLong(written.size);
+    }
+
+    /**
+     * Copies the objects of the index in the order they were stored, with the metadata written since
+     * the compaction, then adds the new objects in the order they were first written.
+     */
+    private void writeObjects(DataOutputStream out) throws IOException {
+        boolean indexedKeysWritten = pendingNewKeys < pending.size();
+        forEachIndexedObject((key, eTag, size) -> {
+            Pending written = indexedKeysWritten ? pending.get(key) : null;
+            if (written == null) {
+                writeObject(out, key, eTag, size);
+            } else {
+                writeObject(out, key, written.eTag != null ? written.eTag : eTag, written.size);
+            }
+        });
+        for (Map.Entry<String, Pending> written : pending.entrySet()) {
+            if (!written.getValue().indexed)
+                writeObject(out, written.getKey(), written.getValue().eTag, written.getValue().size);
+        }
+    }
+
+    private static void writeObject(DataOutputStream out, String key, String eTag, long size) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        if (eTag == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] eTagBytes = eTag.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(eTagBytes.length);
+            out.write(eTagBytes);
+        }
+        out.writeLong(size);
+    }
+
+    private static StoredObject readObject(DataInputStream in) throws IOException {
+        byte[] key = new byte[in.readInt()];
+        in.readFully(key);
+        int eTagLength = in.readInt();
+        String eTag = null;
+        if (eTagLength >= 0) {
+            byte[] eTagBytes = new byte[eTagLength];
+            in.readFully(eTagBytes);
+            eTag = new String(eTagBytes, StandardCharsets.UTF_8);
+        }
+        long size = in.readLong();
+        return new StoredObject(new String(key, StandardCharsets.UTF_8), size, eTag,
+                ObjectPage.UNKNOWN_LAST_MODIFIED);
+    }
+
+    private interface ObjectAction {
+        void accept(String key, String eTag, long size) throws IOException;
+    }
+
+    /**
+     * Reads the objects of the index file in the order they were stored.
+     */
+    private void forEachIndexedObject(ObjectAction action) throws IOException {
+        if (indexedCount == 0)
+            return;
+        try (InputStream file = Files.newInputStream(indexPath);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16))) {
+            long skipped = 0;
+            while (skipped < keysOffset) {
+                long skippedNow = in.skip(keysOffset - skipped);
+                if (skippedNow <= 0)
+                    throw new EOFException("The index " + indexPath + " is shorter than its entries");
+                skipped += skippedNow;
+            }
+            for (int i = 0; i < indexedCount; i++) {
+                StoredObject object = readObject(in);
+                action.accept(object.getKey(), object.getETag(), object.getSize());
+            }
+        }
+    }
+
+    /**
+     * @return always 0, as objects are never removed from the index
+     */
+    @Override
+    public long removalStamp() {
+        return 0;
+    }
+
+    /**
+     * Streams every key stored with its ETag to the action, in the order they were first stored.
+     *
+     * @param action called once for each key with its ETag, which is null if it isn't stored
+     */
+    @Override
+    public synchronized void forEachKeyAndETag(BiConsumer<String, String> action) {
+        try {
+            forEachIndexedObject((key, eTag, size) -> {
+                Pending written = pending.get(key);
+                action.accept(key, written != null && written.eTag != null ? written.eTag : eTag);
+            });
+        } catch (IOException exc) {
+            throw new IllegalStateException("The keys couldn't be read from the index " + indexPath, exc);
+        }
+        for (Map.Entry<String, Pending> written : pending.entrySet()) {
+            if (!written.getValue().indexed)
+                action.accept(written.getKey(), written.getValue().eTag);
+        }
+    }
+
+    @Override
+    public synchronized void forEachKey(Consumer<String> action) {
+        forEachKeyAndETag((key, eTag) -> action.accept(key));
+    }
+
+    /**
+     * Will obtain a list of all the keys in the order they were first stored,
+     * this is intended for TESTING only.
+     *
+     * @return A {@link LinkedList} containing all of the keys
+     */
+    public synchronized LinkedList<String> getKeysWrittenAsList() {
+        LinkedList<String> keys = new LinkedList<>();
+        forEachKey(keys::add);
+        return keys;
+    }
+
+    /**
+     * @return the number of keys stored
+     */
+    public synchronized int count() {
+        return indexedCount + pendingNewKeys;
+    }
+
+    /**
+     * @return the number of objects written to the log since the last compaction
+     */
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Compacts the log into the index and closes the log.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (logChannel == null || !logChannel.isOpen())
+            return;
+        compact();
+        logChannel.close();
+        entries = null;
+        indexedCount = 0;
+    }
+}
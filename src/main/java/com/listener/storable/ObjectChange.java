@@ -0,0 +1,31 @@
+package com.listener.storable;
+
+/**
+ * How a listed object compares with what a {@link Storable} holds for its key.
+ */
+public enum ObjectChange {
+    /**
+     * The key isn't in the storable.
+     */
+    NEW,
+    /**
+     * The key is in the storable with a different ETag or size, the object has been overwritten.
+     */
+    MODIFIED,
+    /**
+     * The key is in the storable with the same metadata, or the metadata can't be compared.
+     */
+    UNCHANGED,
+    /**
+     * The key is in the storable without any metadata, such as a key stored before metadata was kept.
+     * The object isn't an event, but its metadata needs recording so later changes can be seen.
+     */
+    METADATA_MISSING;
+
+    /**
+     * @return true if the object is an event to be sent
+     */
+    public boolean isEvent() {
+        return this == NEW || this == MODIFIED;
+    }
+}
@@ -1,8 +1,12 @@
 package com.listener.storable;
 
 
+import com.listener.filesystem.ObjectPage;
+import com.listener.metrics.Histogram;
+import com.listener.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -11,19 +15,104 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import static java.lang.System.exit;
 
+/**
+ * A {@link Storable} backed by a SQLite database.
+ * <p>
+ * The statements used on every poll are prepared once and kept for the life of the storable,
+ * and all access to the connection is synchronized as these statements are shared between the
+ * listening thread and the Kafka callbacks.
+ * <p>
+ * The connection is tuned with a pragma profile read from the properties:
+ * <ul>
+ * <li>SQLitePragmaProfile: "wal" (default), "bulk" or "none" for the SQLite defaults</li>
+ * <li>SQLiteJournalMode, SQLiteSynchronous, SQLiteMmapSize, SQLiteCacheSize: override a single
+ * pragma of the chosen profile</li>
+ * <li>SQLiteTimestampIndex: "true" to index when each key was stored, so a cache loaded from a snapshot only
+ * reads the keys stored since, default "false" as the index slows every write</li>
+ * <li>SQLiteAutoVacuum: "incremental" for the space freed by removed objects to be handed back by
+ * {@link #reclaimSpace(int)}, an existing database is converted with a VACUUM when it is opened, "none" (default)
+ * leaves freed pages to be reused by later writes</li>
+ * </ul>
+ * With "SQLiteReadConnections" above 0, a database on disk in WAL mode is also opened read-only that many times
+ * and a page of more than one chunk is classified by a fork-join pool, each chunk on one of the read connections.
+ * These don't take the lock of the storable, so the diff runs alongside the writes of the Kafka callbacks and
+ * each query sees the rows committed when it began.
+ * <p>
+ * The time taken by each lookup of a key and of a chunk of keys is recorded in the default {@link MetricsRegistry}.
+ */
 public class SQLiteStorable implements Storable {
 
     private final static Logger logger = LoggerFactory.getLogger(SQLiteStorable.class.getName());
 
+    // Kept under SQLite's default limit of 999 host parameters in a statement.
+    private final static int MAX_KEYS_PER_QUERY = 500;
 
     private Connection dbConnection;
 
+    private PreparedStatement selectStatement;
+    private PreparedStatement selectChunkStatement;
+    private PreparedStatement insertStatement;
+    private PreparedStatement insertOrIgnoreStatement;
+    private PreparedStatement upsertObjectStatement;
+    private PreparedStatement markChunkStatement;
+    private PreparedStatement selectUnmarkedStatement;
+    private PreparedStatement deleteUnmarkedStatement;
+    private PreparedStatement selectGenerationStatement;
+    private PreparedStatement upsertGenerationStatement;
+    private PreparedStatement countStatement;
+    private PreparedStatement selectWatermarkStatement;
+    private PreparedStatement upsertWatermarkStatement;
+    private PreparedStatement selectListStateStatement;
+    private PreparedStatement upsertListStateStatement;
+    private PreparedStatement selectOlderStatement;
+    private PreparedStatement selectRemovalStampStatement;
+    private PreparedStatement bumpRemovalStampStatement;
+    private PreparedStatement deleteOlderStatement;
+
+    // The generation keys written now are stamped with, see beginGeneration
+    private long currentGeneration;
+
+    private final Histogram keyLookupSeconds;
+    private final Histogram chunkLookupSeconds;
+
+    // Empty unless the parallel diff is on, see openReadConnections
+    private BlockingQueue<ReadConnection> readConnections = new ArrayBlockingQueue<>(1);
+    private int readConnectionCount;
+    private ForkJoinPool diffPool;
+    private volatile boolean closed;
+
     public SQLiteStorable(Properties properties) {
+        String bucket = properties.getProperty("bucketName", "");
+        keyLookupSeconds = MetricsRegistry.getDefault().histogram("s3listen_storable_lookup_seconds",
+                "Time taken to look keys up in the storable", Histogram.LATENCY_SECONDS,
+                "bucket", bucket, "storable", "sqlite", "lookup", "key");
+        chunkLookupSeconds = MetricsRegistry.getDefault().histogram("s3listen_storable_lookup_seconds",
+                "Time taken to look keys up in the storable", Histogram.LATENCY_SECONDS,
+                "bucket", bucket, "storable", "sqlite", "lookup", "chunk");
+
         String uri = "";
         if (properties.getProperty("InMemory", "false").equals("true"))
             // Creates a memory database
@@ -33,6 +122,8 @@ public class SQLiteStorable implements Storable {
         try {
             logger.info("The uri connection string was: " + uri);
             dbConnection = DriverManager.getConnection(uri);
+            applyPragmas(properties);
+            applyAutoVacuum(properties);
 
             URI resource = null;
             try {
@@ -41,20 +132,16 @@ public class SQLiteStorable implements Storable {
                 logger.error("The SQLiteInitialSchema file doesn't exist and needs to be created.");
                 exit(1);
             }
-            BufferedReader br = new BufferedReader(
-                    new FileReader(
-                            new File(
-                                    resource
-                            )));
-
             StringBuilder sb = new StringBuilder();
-            String line = br.readLine();
+            try (BufferedReader br = new BufferedReader(new FileReader(new File(resource)))) {
+                String line = br.readLine();
 
-            // Reads all the lines into the string
-            while (line != null) {
-                sb.append(line);
-                sb.append("\n");
-                line = br.readLine();
+                // Reads all the lines into the string
+                while (line != null) {
+                    sb.append(line);
+                    sb.append("\n");
+                    line = br.readLine();
+                }
             }
 
             // Ensures progress
@@ -62,10 +149,19 @@ public class SQLiteStorable implements Storable {
 
             // Creates the table if it doesn't exist
             logger.info("Schema creation string is:\n" + sb.toString());
-            final Statement stmt = dbConnection.createStatement();
-            stmt.executeUpdate(sb.toString());
-
+            try (Statement stmt = dbConnection.createStatement()) {
+                stmt.executeUpdate(sb.toString());
+            }
+            migrateSchema();
+            if (properties.getProperty("SQLiteTimestampIndex", "false").equals("true")) {
+                try (Statement stmt = dbConnection.createStatement()) {
+                    stmt.executeUpdate("CREATE INDEX IF NOT EXISTS LISTDATA_TIMESTAMP ON LISTDATA(Timestamp)");
+                }
+            }
 
+            prepareStatements();
+            currentGeneration = readGeneration();
+            openReadConnections(uri, properties);
         } catch (URISyntaxException | SQLException | IOException exc) {
             // Will write the exception to log
             logger.error("An error has occured setting up the SQLite storable:\n" + exc.getMessage());
@@ -73,6 +169,223 @@ public class SQLiteStorable implements Storable {
         }
     }
 
+    /**
+     * Adds the columns added to LISTDATA since it was first made to a database made before them.
+     * The keys already stored are left without metadata, which is recorded the next time they are listed.
+     *
+     * @throws SQLException if the table couldn't be read or altered
+     */
+    private void migrateSchema() throws SQLException {
+        Set<String> columns = new HashSet<>();
+        try (Statement stmt = dbConnection.createStatement();
+             ResultSet tableInfo = stmt.executeQuery("PRAGMA table_info(LISTDATA)")) {
+            while (tableInfo.next()) {
+                columns.add(tableInfo.getString("name").toUpperCase());
+            }
+        }
+        try (Statement stmt = dbConnection.createStatement()) {
+            if (!columns.contains("ETAG")) {
+                logger.info("Adding the ETAG column to LISTDATA");
+                stmt.executeUpdate("ALTER TABLE LISTDATA ADD COLUMN ETAG TEXT");
+            }
+            if (!columns.contains("SIZE")) {
+                logger.info("Adding the SIZE column to LISTDATA");
+                stmt.executeUpdate("ALTER TABLE LISTDATA ADD COLUMN SIZE INTEGER");
+            }
+            if (!columns.contains("GENERATION")) {
+                logger.info("Adding the GENERATION column to LISTDATA");
+                stmt.executeUpdate("ALTER TABLE LISTDATA ADD COLUMN GENERATION INTEGER NOT NULL DEFAULT 0");
+            }
+        }
+    }
+
+    /**
+     * Prepares the statements that are used for every poll, these are kept until the storable is closed.
+     *
+     * @throws SQLException if any of the statements couldn't be prepared
+     */
+    private void prepareStatements() throws SQLException {
+        selectStatement = dbConnection.prepareStatement("SELECT 1 FROM LISTDATA WHERE FILELOCATION=?");
+        selectChunkStatement = dbConnection.prepareStatement(
+                selectChunkSql(MAX_KEYS_PER_QUERY));
+        insertStatement = dbConnection.prepareStatement("INSERT INTO LISTDATA(FILELOCATION, GENERATION) VALUES(?, ?)");
+        insertOrIgnoreStatement = dbConnection.prepareStatement(
+                "INSERT OR IGNORE INTO LISTDATA(FILELOCATION, GENERATION) VALUES(?, ?)");
+        // Metadata that isn't known doesn't replace what is stored
+        upsertObjectStatement = dbConnection.prepareStatement("INSERT INTO LISTDATA(FILELOCATION, ETAG, SIZE, GENERATION) " +
+                "VALUES(?, ?, ?, ?) ON CONFLICT(FILELOCATION) DO UPDATE SET " +
+                "ETAG=COALESCE(excluded.ETAG, ETAG), SIZE=COALESCE(excluded.SIZE, SIZE), GENERATION=excluded.GENERATION");
+        markChunkStatement = dbConnection.prepareStatement(markChunkSql(MAX_KEYS_PER_QUERY));
+        selectUnmarkedStatement = dbConnection.prepareStatement("SELECT FILELOCATION, ETAG, SIZE FROM LISTDATA " +
+                "WHERE FILELOCATION > ? AND GENERATION < ? ORDER BY FILELOCATION LIMIT ?");
+        deleteUnmarkedStatement = dbConnection.prepareStatement(
+                "DELETE FROM LISTDATA WHERE FILELOCATION=? AND GENERATION < ?");
+        selectGenerationStatement = dbConnection.prepareStatement(
+                "SELECT VALUE FROM LISTSTATE WHERE NAME='CurrentGeneration'");
+        upsertGenerationStatement = dbConnection.prepareStatement(
+                "INSERT OR REPLACE INTO LISTSTATE(NAME, VALUE) VALUES('CurrentGeneration', ?)");
+        countStatement = dbConnection.prepareStatement("SELECT COUNT(*) FROM LISTDATA");
+        selectRemovalStampStatement = dbConnection.prepareStatement(
+                "SELECT VALUE FROM LISTSTATE WHERE NAME='RemovalStamp'");
+        bumpRemovalStampStatement = dbConnection.prepareStatement("INSERT INTO LISTSTATE(NAME, VALUE) " +
+                "VALUES('RemovalStamp', 1) ON CONFLICT(NAME) DO UPDATE SET VALUE=VALUE+1");
+        selectWatermarkStatement = dbConnection.prepareStatement("SELECT LASTKEY FROM WATERMARKS WHERE PREFIX=?");
+        selectListStateStatement = dbConnection.prepareStatement("SELECT VALUE FROM LISTSTATE WHERE NAME=?");
+        upsertListStateStatement = dbConnection.prepareStatement(
+                "INSERT OR REPLACE INTO LISTSTATE(NAME, VALUE) VALUES(?, ?)");
+        selectOlderStatement = dbConnection.prepareStatement("SELECT FILELOCATION, ETAG, SIZE FROM LISTDATA " +
+                "WHERE FILELOCATION > ? AND Timestamp < datetime(?, 'unixepoch') AND GENERATION < ? " +
+                "ORDER BY FILELOCATION LIMIT ?");
+        deleteOlderStatement = dbConnection.prepareStatement("DELETE FROM LISTDATA " +
+                "WHERE FILELOCATION=? AND Timestamp < datetime(?, 'unixepoch') AND GENERATION < ?");
+        upsertWatermarkStatement = dbConnection.prepareStatement(
+                "INSERT OR REPLACE INTO WATERMARKS(PREFIX, LASTKEY) VALUES(?, ?)");
+    }
+
+    /**
+     * Applies the pragma profile chosen in the properties to the connection.
+     * Values are checked before use as pragmas can't be bound as parameters.
+     *
+     * @param properties the properties containing the pragma profile and any overrides
+     * @throws SQLException if a pragma couldn't be applied
+     */
+    private void applyPragmas(Properties properties) throws SQLException {
+        String profile = properties.getProperty("SQLitePragmaProfile", "wal");
+        String journalMode;
+        String synchronous;
+        long mmapSize;
+        long cacheSize;
+        switch (profile) {
+            case "none":
+                logger.info("No pragma profile has been applied to the SQLite storable");
+                return;
+            case "bulk":
+                // Favours write speed, a crash can lose the last transactions but not corrupt the database.
+                journalMode = "WAL";
+                synchronous = "OFF";
+                mmapSize = 1024L * 1024 * 1024;
+                cacheSize = -256 * 1024;
+                break;
+            case "wal":
+                journalMode = "WAL";
+                synchronous = "NORMAL";
+                mmapSize = 256L * 1024 * 1024;
+                cacheSize = -64 * 1024;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown SQLitePragmaProfile: " + profile);
+        }
+
+        journalMode = checkPragmaValue(properties.getProperty("SQLiteJournalMode", journalMode),
+                "DELETE", "TRUNCATE", "PERSIST", "MEMORY", "WAL", "OFF");
+        synchronous = checkPragmaValue(properties.getProperty("SQLiteSynchronous", synchronous),
+                "OFF", "NORMAL", "FULL", "EXTRA");
+        mmapSize = Long.parseLong(properties.getProperty("SQLiteMmapSize", Long.toString(mmapSize)));
+        cacheSize = Long.parseLong(properties.getProperty("SQLiteCacheSize", Long.toString(cacheSize)));
+
+        try (Statement stmt = dbConnection.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=" + journalMode);
+            stmt.execute("PRAGMA synchronous=" + synchronous);
+            stmt.execute("PRAGMA mmap_size=" + mmapSize);
+            stmt.execute("PRAGMA cache_size=" + cacheSize);
+        }
+        logger.info("The SQLite storable is using the {} pragma profile: journal_mode={}, synchronous={}, " +
+                "mmap_size={}, cache_size={}", profile, journalMode, synchronous, mmapSize, cacheSize);
+    }
+
+    /**
+     * Sets the auto vacuum mode before the schema is made, a database that has already been written to,
+     * even if only by the journal mode, is switched to incremental by a VACUUM, which rewrites the whole file once.
+     *
+     * @param properties the properties containing "SQLiteAutoVacuum", "none" (default) or "incremental"
+     * @throws SQLException if the mode couldn't be read or set
+     */
+    private void applyAutoVacuum(Properties properties) throws SQLException {
+        String autoVacuum = checkPragmaValue(properties.getProperty("SQLiteAutoVacuum", "none"),
+                "NONE", "INCREMENTAL");
+        if (autoVacuum.equals("NONE") || autoVacuumMode() == 2)
+            return;
+        try (Statement stmt = dbConnection.createStatement()) {
+            stmt.execute("PRAGMA auto_vacuum=INCREMENTAL");
+            // Only a database that hasn't been written to yet takes the mode straight away
+            if (autoVacuumMode() != 2) {
+                logger.info("The SQLite database is being vacuumed to switch it to incremental auto vacuum");
+                long start = System.nanoTime();
+                stmt.execute("VACUUM");
+                logger.info("The SQLite database was vacuumed in {} ms", (System.nanoTime() - start) / 1000000);
+            }
+        }
+    }
+
+    /**
+     * @return the auto_vacuum pragma: 0 for none, 1 for full and 2 for incremental
+     * @throws SQLException if it couldn't be read
+     */
+    private int autoVacuumMode() throws SQLException {
+        return (int) readPragma("auto_vacuum");
+    }
+
+    private long readPragma(String pragma) throws SQLException {
+        try (Statement stmt = dbConnection.createStatement();
+             ResultSet result = stmt.executeQuery("PRAGMA " + pragma)) {
+            return result.next() ? result.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Opens the read-only connections the parallel diff queries through, and the pool it runs on.
+     * An in memory database can't be shared between connections and anything but WAL would have the readers
+     * and the writer lock each other out, so the diff stays on the single connection for both.
+     *
+     * @param uri        the uri the database was opened with
+     * @param properties the properties containing "SQLiteReadConnections", default 0 for no parallel diff
+     * @throws SQLException if a read connection couldn't be opened
+     */
+    private void openReadConnections(String uri, Properties properties) throws SQLException {
+        int connections = Integer.parseInt(properties.getProperty("SQLiteReadConnections", "0"));
+        if (connections <= 0)
+            return;
+        if (properties.getProperty("InMemory", "false").equals("true")) {
+            logger.warn("SQLiteReadConnections is ignored for an in memory database, the diff isn't run in parallel");
+            return;
+        }
+        String journalMode;
+        try (Statement stmt = dbConnection.createStatement();
+             ResultSet result = stmt.executeQuery("PRAGMA journal_mode")) {
+            journalMode = result.next() ? result.getString(1) : "";
+        }
+        if (!"wal".equalsIgnoreCase(journalMode)) {
+            logger.warn("SQLiteReadConnections needs the WAL journal mode rather than {}, " +
+                    "the diff isn't run in parallel", journalMode);
+            return;
+        }
+
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        config.setBusyTimeout(5000);
+        readConnections = new ArrayBlockingQueue<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Connection connection = DriverManager.getConnection(uri, config.toProperties());
+            readConnections.add(new ReadConnection(connection,
+                    connection.prepareStatement(selectChunkSql(MAX_KEYS_PER_QUERY))));
+        }
+        readConnectionCount = connections;
+        diffPool = new ForkJoinPool(connections, (pool) -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("sqlite-diff-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        logger.info("The SQLite storable diffs pages in parallel over {} read connections", connections);
+    }
+
+    private static String checkPragmaValue(String value, String... allowed) {
+        for (String allowedValue : allowed) {
+            if (allowedValue.equalsIgnoreCase(value))
+                return allowedValue;
+        }
+        throw new IllegalArgumentException("The pragma value " + value + " isn't one of the allowed values");
+    }
+
     /**
      * Checks whether a key is in the storable.
      *
@@ -80,16 +393,14 @@ public class SQLiteStorable implements Storable {
      * @return returns as a boolean whether the key is within the storable
      */
     @Override
-    public boolean keyAlreadyRead(String key) {
+    public synchronized boolean keyAlreadyRead(String key) {
+        long start = System.nanoTime();
         try {
-            // Creates the prepared statement
-            PreparedStatement selectStatement =
-                    dbConnection.prepareStatement("SELECT * FROM LISTDATA WHERE FILELOCATION=?");
             selectStatement.setString(1, key);
-            ResultSet result = selectStatement.executeQuery();
-
-            // Returns the result
-            return result.next();
+            try (ResultSet result = selectStatement.executeQuery()) {
+                // Returns the result
+                return result.next();
+            }
         }
         catch (SQLException exc){
             // Ensures the listener won't output everything to this database in the case
@@ -97,7 +408,233 @@ public class SQLiteStorable implements Storable {
             logger.warn("The storable has had an error reading a key\n{}\nSQLState:{}",
                     exc.getMessage(), exc.getSQLState());
             return true;
+        } finally {
+            keyLookupSeconds.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Checks a batch of keys against the database using chunked IN queries,
+     * this avoids a round trip for every key listed.
+     *
+     * @param keys the keys to check
+     * @return the keys that are not within the storable, in the order they were given
+     */
+    @Override
+    public synchronized Set<String> filterUnseen(Collection<String> keys) {
+        Set<String> unseenKeys = new LinkedHashSet<>(keys);
+        List<String> chunk = new ArrayList<>(MAX_KEYS_PER_QUERY);
+        for (String key : keys) {
+            chunk.add(key);
+            if (chunk.size() == MAX_KEYS_PER_QUERY) {
+                removeSeenKeys(chunk, unseenKeys);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty())
+            removeSeenKeys(chunk, unseenKeys);
+        return unseenKeys;
+    }
+
+    /**
+     * Queries a single chunk of keys and removes any that are in the database from the unseen keys.
+     *
+     * @param chunk      the keys to query, no more than {@link #MAX_KEYS_PER_QUERY}
+     * @param unseenKeys the set the keys that have been read will be removed from
+     */
+    private void removeSeenKeys(List<String> chunk, Set<String> unseenKeys) {
+        try {
+            queryChunk(dbConnection, selectChunkStatement, chunk, (result) -> unseenKeys.remove(result.getString(1)));
+        } catch (SQLException exc) {
+            // Same as keyAlreadyRead, a failure treats the keys as read so the listener
+            // won't output everything in the case of a failure.
+            logger.warn("The storable has had an error reading a batch of keys\n{}\nSQLState:{}",
+                    exc.getMessage(), exc.getSQLState());
+            unseenKeys.removeAll(chunk);
+        }
+    }
+
+    /**
+     * Compares a page of listed objects with the ETag and size stored for each key, using chunked IN queries.
+     * An object is only modified when the listing and the database both know the ETag or size and they differ.
+     * With read connections open, a page of more than one chunk has its chunks queried in parallel.
+     *
+     * @param page the listed objects
+     * @return how each object of the page compares, at the same index as the object
+     */
+    @Override
+    public ObjectChange[] classify(ObjectPage page) {
+        ObjectChange[] changes = new ObjectChange[page.size()];
+        Arrays.fill(changes, ObjectChange.NEW);
+        int chunks = (page.size() + MAX_KEYS_PER_QUERY - 1) / MAX_KEYS_PER_QUERY;
+        if (diffPool != null && chunks > 1 && !closed) {
+            diffPool.invoke(new ClassifyTask(page, changes, 0, chunks));
+            return changes;
+        }
+        synchronized (this) {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                classifyChunk(page, chunk * MAX_KEYS_PER_QUERY, changes, dbConnection, selectChunkStatement);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Classifies the objects of one chunk of a page, the single connection must be locked by the caller.
+     *
+     * @param page                 the listed objects
+     * @param start                the index of the first object of the chunk
+     * @param changes              where each object's change is set, at the same index as the object
+     * @param connection           the connection to query through
+     * @param fullChunkStatement   the statement cached on the connection for a full chunk
+     */
+    private void classifyChunk(ObjectPage page, int start, ObjectChange[] changes, Connection connection,
+                               PreparedStatement fullChunkStatement) {
+        List<String> chunk = page.keys().subList(start, Math.min(page.size(), start + MAX_KEYS_PER_QUERY));
+        Map<String, Integer> indexes = new HashMap<>(chunk.size() * 2);
+        for (int i = 0; i < chunk.size(); i++) {
+            indexes.put(chunk.get(i), start + i);
+        }
+        try {
+            queryChunk(connection, fullChunkStatement, chunk, (result) -> {
+                int index = indexes.get(result.getString(1));
+                String storedETag = result.getString(2);
+                long storedSize = result.getLong(3);
+                if (result.wasNull())
+                    storedSize = ObjectPage.UNKNOWN_SIZE;
+                changes[index] = compare(page, index, storedETag, storedSize);
+            });
+        } catch (SQLException exc) {
+            // Same as filterUnseen, a failure treats the objects as unchanged.
+            logger.warn("The storable has had an error reading a batch of objects\n{}\nSQLState:{}",
+                    exc.getMessage(), exc.getSQLState());
+            Arrays.fill(changes, start, start + chunk.size(), ObjectChange.UNCHANGED);
+        }
+    }
+
+    /**
+     * Splits a range of the chunks of a page in half until a single chunk is left,
+     * which is classified through a read connection taken from the pool.
+     * Each chunk sets its own range of the changes, so the tasks share nothing else.
+     */
+    private final class ClassifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ObjectPage page;
+        private final ObjectChange[] changes;
+        private final int fromChunk;
+        private final int toChunk;
+
+        ClassifyTask(ObjectPage page, ObjectChange[] changes, int fromChunk, int toChunk) {
+            this.page = page;
+            this.changes = changes;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk > 1) {
+                int middle = (fromChunk + toChunk) >>> 1;
+                invokeAll(new ClassifyTask(page, changes, fromChunk, middle),
+                        new ClassifyTask(page, changes, middle, toChunk));
+                return;
+            }
+            int start = fromChunk * MAX_KEYS_PER_QUERY;
+            ReadConnection reader = null;
+            try {
+                // There are as many connections as threads in the pool, so this only waits out a close
+                reader = closed ? null : readConnections.poll(10, TimeUnit.SECONDS);
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+            if (reader == null) {
+                logger.warn("No read connection was free to classify a batch of objects, they are taken as unchanged");
+                Arrays.fill(changes, start, Math.min(page.size(), start + MAX_KEYS_PER_QUERY), ObjectChange.UNCHANGED);
+                return;
+            }
+            try {
+                classifyChunk(page, start, changes, reader.connection, reader.selectChunkStatement);
+            } finally {
+                readConnections.add(reader);
+            }
+        }
+    }
+
+    /**
+     * A read-only connection with its own statement for a full chunk, used by one diff task at a time.
+     */
+    private static final class ReadConnection {
+        private final Connection connection;
+        private final PreparedStatement selectChunkStatement;
+
+        ReadConnection(Connection connection, PreparedStatement selectChunkStatement) {
+            this.connection = connection;
+            this.selectChunkStatement = selectChunkStatement;
+        }
+    }
+
+    private static ObjectChange compare(ObjectPage page, int index, String storedETag, long storedSize) {
+        String listedETag = page.eTagAt(index);
+        long listedSize = page.sizeAt(index);
+        if (storedETag == null && storedSize == ObjectPage.UNKNOWN_SIZE) {
+            boolean listedWithMetadata = listedETag != null || listedSize != ObjectPage.UNKNOWN_SIZE;
+            return listedWithMetadata ? ObjectChange.METADATA_MISSING : ObjectChange.UNCHANGED;
+        }
+        if (storedETag != null && listedETag != null && !storedETag.equals(listedETag))
+            return ObjectChange.MODIFIED;
+        if (storedSize != ObjectPage.UNKNOWN_SIZE && listedSize != ObjectPage.UNKNOWN_SIZE && storedSize != listedSize)
+            return ObjectChange.MODIFIED;
+        return ObjectChange.UNCHANGED;
+    }
+
+    /**
+     * Selects the FILELOCATION, ETAG and SIZE of the keys of a chunk that are in the database.
+     * Full chunks use the cached statement, only the final partial chunk of a batch is prepared.
+     *
+     * @param connection         the connection to query through
+     * @param fullChunkStatement the statement cached on the connection for a full chunk
+     * @param chunk      the keys to query, no more than {@link #MAX_KEYS_PER_QUERY}
+     * @param rowHandler called with the result set positioned on each row found
+     * @throws SQLException if the query failed
+     */
+    private void queryChunk(Connection connection, PreparedStatement fullChunkStatement, List<String> chunk,
+                            RowHandler rowHandler) throws SQLException {
+        long start = System.nanoTime();
+        PreparedStatement chunkStatement = null;
+        try {
+            chunkStatement = chunk.size() == MAX_KEYS_PER_QUERY ? fullChunkStatement :
+                    connection.prepareStatement(selectChunkSql(chunk.size()));
+            for (int i = 0; i < chunk.size(); i++) {
+                chunkStatement.setString(i + 1, chunk.get(i));
+            }
+            try (ResultSet result = chunkStatement.executeQuery()) {
+                while (result.next()) {
+                    rowHandler.handle(result);
+                }
+            }
+        } finally {
+            if (chunkStatement != null && chunkStatement != fullChunkStatement)
+                closeQuietly(chunkStatement);
+            chunkLookupSeconds.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    private interface RowHandler {
+        void handle(ResultSet result) throws SQLException;
+    }
+
+    private static String selectChunkSql(int keys) {
+        return "SELECT FILELOCATION, ETAG, SIZE FROM LISTDATA WHERE FILELOCATION IN (" + placeholders(keys) + ")";
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(',');
+            sb.append('?');
         }
+        return sb.toString();
     }
 
     /**
@@ -106,11 +643,10 @@ public class SQLiteStorable implements Storable {
      *
      * @return A {@link LinkedList} containing all of the FILELOCATION
      */
-    public LinkedList<String> getKeysWrittenAsList() {
-        try {
-            PreparedStatement preparedStatement = dbConnection.prepareStatement("SELECT FILELOCATION FROM LISTDATA " +
-                    "ORDER BY date(Timestamp) ASC");
-            ResultSet resultSet = preparedStatement.executeQuery();
+    public synchronized LinkedList<String> getKeysWrittenAsList() {
+        try (PreparedStatement preparedStatement = dbConnection.prepareStatement("SELECT FILELOCATION FROM LISTDATA " +
+                "ORDER BY date(Timestamp) ASC");
+             ResultSet resultSet = preparedStatement.executeQuery()) {
             LinkedList<String> filesToReturn = new LinkedList<>();
             while (resultSet.next()) {
                 filesToReturn.add(resultSet.getString(1));
@@ -122,16 +658,90 @@ public class SQLiteStorable implements Storable {
         }
     }
 
+    /**
+     * Streams every FILELOCATION in the database to the action.
+     *
+     * @param action called once for each key
+     */
+    @Override
+    public synchronized void forEachKey(Consumer<String> action) {
+        try (Statement statement = dbConnection.createStatement()) {
+            statement.setFetchSize(10000);
+            try (ResultSet resultSet = statement.executeQuery("SELECT FILELOCATION FROM LISTDATA")) {
+                while (resultSet.next()) {
+                    action.accept(resultSet.getString(1));
+                }
+            }
+        } catch (SQLException exc) {
+            throw new IllegalStateException("The keys couldn't be read from the SQLite storable", exc);
+        }
+    }
+
+    /**
+     * Streams every FILELOCATION in the database with its ETAG to the action.
+     *
+     * @param action called once for each key with its ETag, which is null if it isn't stored
+     */
+    @Override
+    public synchronized void forEachKeyAndETag(BiConsumer<String, String> action) {
+        try (Statement statement = dbConnection.createStatement()) {
+            statement.setFetchSize(10000);
+            try (ResultSet resultSet = statement.executeQuery("SELECT FILELOCATION, ETAG FROM LISTDATA")) {
+                while (resultSet.next()) {
+                    action.accept(resultSet.getString(1), resultSet.getString(2));
+                }
+            }
+        } catch (SQLException exc) {
+            throw new IllegalStateException("The keys couldn't be read from the SQLite storable", exc);
+        }
+    }
+
+    /**
+     * Passes the keys whose Timestamp is at or after the second the time falls in, which is a scan of the
+     * whole table unless "SQLiteTimestampIndex" is true.
+     *
+     * @param sinceMillis keys stored at or after this are passed, in milliseconds since the epoch
+     * @param action      called once for each key with its ETag
+     */
+    @Override
+    public synchronized void forEachKeyAndETagStoredSince(long sinceMillis, BiConsumer<String, String> action) {
+        try (PreparedStatement statement = dbConnection.prepareStatement(
+                "SELECT FILELOCATION, ETAG FROM LISTDATA WHERE Timestamp >= datetime(?, 'unixepoch')")) {
+            statement.setLong(1, sinceMillis / 1000);
+            statement.setFetchSize(10000);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    action.accept(resultSet.getString(1), resultSet.getString(2));
+                }
+            }
+        } catch (SQLException exc) {
+            throw new IllegalStateException("The keys couldn't be read from the SQLite storable", exc);
+        }
+    }
+
+    /**
+     * Gets the stamp kept in the LISTSTATE table, which is bumped in the same transaction as every removal.
+     *
+     * @return the stamp, 0 if nothing has been removed, or -1 if it couldn't be read
+     */
+    @Override
+    public synchronized long removalStamp() {
+        try (ResultSet result = selectRemovalStampStatement.executeQuery()) {
+            return result.next() ? result.getLong(1) : 0;
+        } catch (SQLException exc) {
+            logger.warn("The removal stamp couldn't be read: {}", exc.getMessage());
+            return -1;
+        }
+    }
+
     /**
      * Gives back the count of the SQLite database.
      * This is for Testing only
      *
      * @return The count as an int of the rows in the database
      */
-    public int count() {
-        try {
-            PreparedStatement countStatement = dbConnection.prepareStatement("SELECT COUNT(*) FROM LISTDATA");
-            ResultSet resultSet = countStatement.executeQuery();
+    public synchronized int count() {
+        try (ResultSet resultSet = countStatement.executeQuery()) {
             resultSet.next();
             return resultSet.getInt(1);
         } catch (SQLException exc) {
@@ -147,12 +757,11 @@ public class SQLiteStorable implements Storable {
      * @return returns a boolean whether the key was written successfully or not
      */
     @Override
-    public boolean putKey(String key) {
+    public synchronized boolean putKey(String key) {
         try {
-            PreparedStatement updateStatement =
-                    dbConnection.prepareStatement("INSERT INTO LISTDATA(FILELOCATION) VALUES(?)");
-            updateStatement.setString(1, key);
-            updateStatement.execute();
+            insertStatement.setString(1, key);
+            insertStatement.setLong(2, currentGeneration);
+            insertStatement.execute();
         }
         catch (SQLException exc){
             logger.warn("An error has occured writing a key to the SQLite storable:{},\nSQLiteState:{}",
@@ -163,10 +772,437 @@ public class SQLiteStorable implements Storable {
     }
 
     /**
-     * Closes the connection for the SQLite database.
+     * Puts a batch of keys in the storable within a single transaction.
+     * Keys that are already in the storable are ignored.
+     *
+     * @param keys the keys as strings
+     * @return returns a boolean whether the batch was written successfully or not
+     */
+    @Override
+    public synchronized boolean putKeys(Collection<String> keys) {
+        if (keys.isEmpty())
+            return true;
+        return executeBatch(insertOrIgnoreStatement, keys.size() + " keys", () -> {
+            for (String key : keys) {
+                insertOrIgnoreStatement.setString(1, key);
+                insertOrIgnoreStatement.setLong(2, currentGeneration);
+                insertOrIgnoreStatement.addBatch();
+            }
+        });
+    }
+
+    /**
+     * Puts a batch of objects in the storable within a single transaction.
+     * The ETag and size of objects already in the storable are replaced, unless they aren't known.
+     *
+     * @param objects the objects with their metadata
+     * @return returns a boolean whether the batch was written successfully or not
+     */
+    @Override
+    public synchronized boolean putObjects(Collection<StoredObject> objects) {
+        if (objects.isEmpty())
+            return true;
+        return executeBatch(upsertObjectStatement, objects.size() + " objects", () -> {
+            for (StoredObject object : objects) {
+                upsertObjectStatement.setString(1, object.getKey());
+                upsertObjectStatement.setString(2, object.getETag());
+                if (object.getSize() == ObjectPage.UNKNOWN_SIZE)
+                    upsertObjectStatement.setNull(3, Types.INTEGER);
+                else
+                    upsertObjectStatement.setLong(3, object.getSize());
+                upsertObjectStatement.setLong(4, currentGeneration);
+                upsertObjectStatement.addBatch();
+            }
+        });
+    }
+
+    /**
+     * Runs the batch added to the statement within a single transaction, rolling back if any of it fails.
+     *
+     * @param statement   the statement the batch is added to
+     * @param description what the batch holds, for the logs
+     * @param addBatch    adds the batch to the statement
+     * @return returns a boolean whether the batch was written successfully or not
+     */
+    private boolean executeBatch(PreparedStatement statement, String description, BatchBuilder addBatch) {
+        try {
+            dbConnection.setAutoCommit(false);
+            addBatch.add();
+            statement.executeBatch();
+            dbConnection.commit();
+            return true;
+        } catch (SQLException exc) {
+            logger.warn("An error has occured writing a batch of {} to the SQLite storable:{},\nSQLiteState:{}",
+                    description, exc.getMessage(), exc.getSQLState());
+            try {
+                statement.clearBatch();
+                dbConnection.rollback();
+            } catch (SQLException rollbackExc) {
+                logger.warn("The batch couldn't be rolled back: {}", rollbackExc.getMessage());
+            }
+            return false;
+        } finally {
+            try {
+                dbConnection.setAutoCommit(true);
+            } catch (SQLException exc) {
+                logger.warn("Autocommit couldn't be restored: {}", exc.getMessage());
+            }
+        }
+    }
+
+    private interface BatchBuilder {
+        void add() throws SQLException;
+    }
+
+    private long readGeneration() throws SQLException {
+        try (ResultSet result = selectGenerationStatement.executeQuery()) {
+            return result.next() ? result.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Starts a new generation, kept in the LISTSTATE table so it carries on across restarts.
+     * Keys written from now on are stamped with it.
+     *
+     * @return the new generation, or -1 if it couldn't be stored
+     */
+    @Override
+    public synchronized long beginGeneration() {
+        try {
+            upsertGenerationStatement.setLong(1, currentGeneration + 1);
+            upsertGenerationStatement.executeUpdate();
+            currentGeneration++;
+            return currentGeneration;
+        } catch (SQLException exc) {
+            logger.warn("A new generation couldn't be started: {}", exc.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Stamps the keys with the generation using chunked UPDATE ... IN statements in a single transaction.
+     * Keys that aren't in the database are ignored.
+     *
+     * @param keys       the keys listed
+     * @param generation the generation of the listing
+     * @return returns a boolean whether the keys were stamped successfully or not
      */
     @Override
-    public void close(){
+    public synchronized boolean markSeen(Collection<String> keys, long generation) {
+        if (keys.isEmpty())
+            return true;
+        List<String> keyList = keys instanceof List ? (List<String>) keys : new ArrayList<>(keys);
+        List<PreparedStatement> partialStatements = new ArrayList<>(1);
+        try {
+            return executeBatch(markChunkStatement, keys.size() + " keys to mark as seen", () -> {
+                for (int start = 0; start < keyList.size(); start += MAX_KEYS_PER_QUERY) {
+                    List<String> chunk = keyList.subList(start, Math.min(keyList.size(), start + MAX_KEYS_PER_QUERY));
+                    PreparedStatement statement = markChunkStatement;
+                    if (chunk.size() < MAX_KEYS_PER_QUERY) {
+                        statement = dbConnection.prepareStatement(markChunkSql(chunk.size()));
+                        partialStatements.add(statement);
+                    }
+                    statement.setLong(1, generation);
+                    for (int i = 0; i < chunk.size(); i++) {
+                        statement.setString(i + 2, chunk.get(i));
+                    }
+                    if (statement == markChunkStatement)
+                        statement.addBatch();
+                    else
+                        statement.executeUpdate();
+                }
+            });
+        } finally {
+            partialStatements.forEach(SQLiteStorable::closeQuietly);
+        }
+    }
+
+    private static String markChunkSql(int keys) {
+        return "UPDATE LISTDATA SET GENERATION=? WHERE FILELOCATION IN (" + placeholders(keys) + ")";
+    }
+
+    /**
+     * Finds the objects that weren't stamped with the generation, in key order.
+     * The search carries on from the last key of the previous batch, so the whole table is
+     * read once in primary key order over all the batches of a sweep.
+     *
+     * @param generation the generation of the last complete listing
+     * @param afterKey   the last key of the previous batch, an empty string to start from the beginning
+     * @param limit      the most objects to find
+     * @return the objects found, with their ETag and size
+     */
+    @Override
+    public synchronized List<StoredObject> findUnmarked(long generation, String afterKey, int limit) {
+        List<StoredObject> unmarked = new ArrayList<>();
+        try {
+            selectUnmarkedStatement.setString(1, afterKey);
+            selectUnmarkedStatement.setLong(2, generation);
+            selectUnmarkedStatement.setInt(3, limit);
+            try (ResultSet result = selectUnmarkedStatement.executeQuery()) {
+                while (result.next()) {
+                    long size = result.getLong(3);
+                    if (result.wasNull())
+                        size = ObjectPage.UNKNOWN_SIZE;
+                    unmarked.add(new StoredObject(result.getString(1), size, result.getString(2),
+                            ObjectPage.UNKNOWN_LAST_MODIFIED));
+                }
+            }
+        } catch (SQLException exc) {
+            // Nothing is swept, which is always safe.
+            logger.warn("The unmarked keys couldn't be read: {}", exc.getMessage());
+            unmarked.clear();
+        }
+        return unmarked;
+    }
+
+    /**
+     * Deletes the objects in a single transaction, unless they have been stamped with the current
+     * generation since they were found, as the object has been listed again.
+     *
+     * @param objects the objects to delete
+     * @return returns a boolean whether the batch was deleted successfully or not
+     */
+    @Override
+    public synchronized boolean removeObjects(Collection<StoredObject> objects) {
+        if (objects.isEmpty())
+            return true;
+        return executeBatch(deleteUnmarkedStatement, objects.size() + " objects to delete", () -> {
+            bumpRemovalStampStatement.executeUpdate();
+            for (StoredObject object : objects) {
+                deleteUnmarkedStatement.setString(1, object.getKey());
+                deleteUnmarkedStatement.setLong(2, currentGeneration);
+                deleteUnmarkedStatement.addBatch();
+            }
+        });
+    }
+
+    /**
+     * Finds the objects first stored before the cutoff by their Timestamp that are left on a generation
+     * older than the last complete listing, then deletes them in a single transaction, unless they have been
+     * listed since they were found. Each batch only walks on from the last key of the one before, so pruning
+     * the whole table reads it once and the lock is only held for a batch at a time.
+     *
+     * @param cutoffMillis the time objects stored before are removed, in milliseconds since the epoch
+     * @param generation   the generation of the last complete listing
+     * @param afterKey     the last key of the previous batch, an empty string to start from the beginning
+     * @param limit        the most objects to remove
+     * @return the objects removed, empty if there were none or they couldn't be removed
+     */
+    @Override
+    public synchronized List<StoredObject> pruneOlderThan(long cutoffMillis, long generation, String afterKey,
+                                                          int limit) {
+        long cutoffSeconds = cutoffMillis / 1000;
+        List<StoredObject> older = new ArrayList<>();
+        try {
+            selectOlderStatement.setString(1, afterKey);
+            selectOlderStatement.setLong(2, cutoffSeconds);
+            selectOlderStatement.setLong(3, generation);
+            selectOlderStatement.setInt(4, limit);
+            try (ResultSet result = selectOlderStatement.executeQuery()) {
+                while (result.next()) {
+                    long size = result.getLong(3);
+                    if (result.wasNull())
+                        size = ObjectPage.UNKNOWN_SIZE;
+                    older.add(new StoredObject(result.getString(1), size, result.getString(2),
+                            ObjectPage.UNKNOWN_LAST_MODIFIED));
+                }
+            }
+        } catch (SQLException exc) {
+            // Nothing is pruned, which is always safe.
+            logger.warn("The keys stored before the cutoff couldn't be read: {}", exc.getMessage());
+            return Collections.emptyList();
+        }
+        if (older.isEmpty())
+            return older;
+        boolean removed = executeBatch(deleteOlderStatement, older.size() + " objects to prune", () -> {
+            bumpRemovalStampStatement.executeUpdate();
+            for (StoredObject object : older) {
+                deleteOlderStatement.setString(1, object.getKey());
+                deleteOlderStatement.setLong(2, cutoffSeconds);
+                deleteOlderStatement.setLong(3, generation);
+                deleteOlderStatement.addBatch();
+            }
+        });
+        return removed ? older : Collections.emptyList();
+    }
+
+    /**
+     * Runs an incremental vacuum, which only hands pages back with the "incremental" SQLiteAutoVacuum.
+     *
+     * @param maxPages the most pages to hand back at once
+     * @return the bytes handed back
+     */
+    @Override
+    public synchronized long reclaimSpace(int maxPages) {
+        try {
+            if (autoVacuumMode() != 2)
+                return 0;
+            long freePages = readPragma("freelist_count");
+            if (freePages == 0)
+                return 0;
+            // The pragma frees a page each time it is stepped, execute would only step it once
+            try (Statement stmt = dbConnection.createStatement()) {
+                stmt.executeUpdate("PRAGMA incremental_vacuum(" + maxPages + ")");
+            }
+            return (freePages - readPragma("freelist_count")) * readPragma("page_size");
+        } catch (SQLException exc) {
+            logger.warn("The SQLite database couldn't be vacuumed: {}", exc.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * @return the size of the database from its page count, which doesn't include the write-ahead log
+     */
+    @Override
+    public synchronized long sizeBytes() {
+        try {
+            return readPragma("page_count") * readPragma("page_size");
+        } catch (SQLException exc) {
+            logger.warn("The size of the SQLite database couldn't be read: {}", exc.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the highest key listed under a prefix from the WATERMARKS table.
+     *
+     * @param prefix the prefix listed, an empty string for the whole bucket
+     * @return the watermark, or null if there isn't one
+     */
+    @Override
+    public synchronized String getWatermark(String prefix) {
+        try {
+            selectWatermarkStatement.setString(1, prefix);
+            try (ResultSet result = selectWatermarkStatement.executeQuery()) {
+                return result.next() ? result.getString(1) : null;
+            }
+        } catch (SQLException exc) {
+            // Without a watermark the prefix is listed in full, which is always safe.
+            logger.warn("The watermark for the prefix {} couldn't be read: {}", prefix, exc.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Records the highest key listed under a prefix in the WATERMARKS table.
+     *
+     * @param prefix  the prefix listed, an empty string for the whole bucket
+     * @param lastKey the last key listed under the prefix
+     * @return returns a boolean whether the watermark was written successfully or not
+     */
+    @Override
+    public synchronized boolean putWatermark(String prefix, String lastKey) {
+        try {
+            upsertWatermarkStatement.setString(1, prefix);
+            upsertWatermarkStatement.setString(2, lastKey);
+            upsertWatermarkStatement.execute();
+            return true;
+        } catch (SQLException exc) {
+            logger.warn("The watermark for the prefix {} couldn't be written: {}", prefix, exc.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Gets a value from the LISTSTATE table.
+     *
+     * @param name the name of the value
+     * @return the value, 0 if it was never set, or -1 if it couldn't be read
+     */
+    @Override
+    public synchronized long getListState(String name) {
+        try {
+            selectListStateStatement.setString(1, name);
+            try (ResultSet result = selectListStateStatement.executeQuery()) {
+                return result.next() ? result.getLong(1) : 0;
+            }
+        } catch (SQLException exc) {
+            logger.warn("The list state {} couldn't be read: {}", name, exc.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Records a value in the LISTSTATE table.
+     *
+     * @param name  the name of the value
+     * @param value the value
+     * @return returns a boolean whether the value was written successfully or not
+     */
+    @Override
+    public synchronized boolean putListState(String name, long value) {
+        try {
+            upsertListStateStatement.setString(1, name);
+            upsertListStateStatement.setLong(2, value);
+            upsertListStateStatement.executeUpdate();
+            return true;
+        } catch (SQLException exc) {
+            logger.warn("The list state {} couldn't be written: {}", name, exc.getMessage());
+            return false;
+        }
+    }
+
+    private void closeReadConnections() {
+        if (diffPool == null)
+            return;
+        diffPool.shutdown();
+        try {
+            for (int i = 0; i < readConnectionCount; i++) {
+                ReadConnection reader = readConnections.poll(10, TimeUnit.SECONDS);
+                if (reader == null) {
+                    logger.warn("A read connection wasn't returned by a diff before the storable was closed");
+                    break;
+                }
+                closeQuietly(reader.selectChunkStatement);
+                reader.connection.close();
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException exc) {
+            logger.debug("A read connection couldn't be closed: {}", exc.getMessage());
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        if (statement == null)
+            return;
+        try {
+            statement.close();
+        } catch (SQLException exc) {
+            logger.debug("A statement couldn't be closed: {}", exc.getMessage());
+        }
+    }
+
+    /**
+     * Closes the read connections once the diffs using them have returned them,
+     * then the cached statements and the connection for the SQLite database.
+     */
+    @Override
+    public synchronized void close(){
+        if (dbConnection == null || closed)
+            return;
+        closed = true;
+        closeReadConnections();
+        closeQuietly(selectStatement);
+        closeQuietly(selectChunkStatement);
+        closeQuietly(insertStatement);
+        closeQuietly(insertOrIgnoreStatement);
+        closeQuietly(upsertObjectStatement);
+        closeQuietly(markChunkStatement);
+        closeQuietly(selectUnmarkedStatement);
+        closeQuietly(deleteUnmarkedStatement);
+        closeQuietly(selectGenerationStatement);
+        closeQuietly(upsertGenerationStatement);
+        closeQuietly(countStatement);
+        closeQuietly(selectWatermarkStatement);
+        closeQuietly(upsertWatermarkStatement);
+        closeQuietly(selectListStateStatement);
+        closeQuietly(upsertListStateStatement);
+        closeQuietly(selectOlderStatement);
+        closeQuietly(deleteOlderStatement);
+        closeQuietly(selectRemovalStampStatement);
+        closeQuietly(bumpRemovalStampStatement);
         try {
             dbConnection.close();
         }catch (SQLException exc){
@@ -1,7 +1,17 @@
 package com.listener.storable;
 
 
+import com.listener.filesystem.ObjectPage;
+
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public interface Storable extends Closeable {
     /**
@@ -11,7 +21,37 @@ public interface Storable extends Closeable {
      */
     public boolean keyAlreadyRead(String key);
 
-    //TODO: put in another keyAlreadyRead that accepts and gives back a batch.
+    /**
+     * Checks a batch of keys against the storable.
+     * The default implementation falls back to {@link #keyAlreadyRead(String)} for each key,
+     * implementations should override this with a set based query where they can.
+     * @param keys the keys to check
+     * @return the keys that are not within the storable, in the order they were given
+     */
+    public default Set<String> filterUnseen(Collection<String> keys) {
+        Set<String> unseenKeys = new LinkedHashSet<>();
+        for (String key : keys) {
+            if (!keyAlreadyRead(key))
+                unseenKeys.add(key);
+        }
+        return unseenKeys;
+    }
+
+    /**
+     * Compares a page of listed objects with the storable.
+     * The default implementation only knows whether each key is stored, so an object is either
+     * new or unchanged, implementations that keep metadata should override this to find modifications.
+     * @param page the listed objects
+     * @return how each object of the page compares, at the same index as the object
+     */
+    public default ObjectChange[] classify(ObjectPage page) {
+        Set<String> unseenKeys = filterUnseen(page.keys());
+        ObjectChange[] changes = new ObjectChange[page.size()];
+        for (int i = 0; i < changes.length; i++) {
+            changes[i] = unseenKeys.contains(page.keyAt(i)) ? ObjectChange.NEW : ObjectChange.UNCHANGED;
+        }
+        return changes;
+    }
 
     /**
      * Attempts to put the key in the storable
@@ -19,4 +59,179 @@ public interface Storable extends Closeable {
      * @return returns a boolean whether the key was written successfully or not
      */
     public boolean putKey(String key);
+
+    /**
+     * Attempts to put a batch of keys in the storable.
+     * The default implementation falls back to {@link #putKey(String)} for each key.
+     * @param keys the keys as strings
+     * @return returns a boolean whether all the keys were written successfully or not
+     */
+    public default boolean putKeys(Collection<String> keys) {
+        boolean allWritten = true;
+        for (String key : keys) {
+            allWritten &= putKey(key);
+        }
+        return allWritten;
+    }
+
+    /**
+     * Attempts to put a batch of objects in the storable, replacing the metadata of any already stored.
+     * The default implementation only stores the keys with {@link #putKeys(Collection)}.
+     * @param objects the objects with their metadata
+     * @return returns a boolean whether all the objects were written successfully or not
+     */
+    public default boolean putObjects(Collection<StoredObject> objects) {
+        List<String> keys = new ArrayList<>(objects.size());
+        for (StoredObject object : objects) {
+            keys.add(object.getKey());
+        }
+        return putKeys(keys);
+    }
+
+    /**
+     * Passes every key in the storable to the action, this is used to warm caches at startup.
+     * @param action called once for each key
+     * @throws UnsupportedOperationException if the storable can't list its keys
+     */
+    public default void forEachKey(Consumer<String> action) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't list its keys");
+    }
+
+    /**
+     * Passes every key in the storable and its ETag to the action, this is used to warm caches at startup.
+     * The default implementation passes a null ETag for every key of {@link #forEachKey(Consumer)}.
+     * @param action called once for each key with its ETag, which is null if it isn't stored
+     * @throws UnsupportedOperationException if the storable can't list its keys
+     */
+    public default void forEachKeyAndETag(BiConsumer<String, String> action) {
+        forEachKey((key) -> action.accept(key, null));
+    }
+
+    /**
+     * Passes the keys stored since a time and their ETags to the action, this is used to bring a cache loaded
+     * from a snapshot up to date. The default implementation passes every key of
+     * {@link #forEachKeyAndETag(BiConsumer)}, implementations that know when keys were stored pass fewer.
+     * @param sinceMillis keys stored at or after this are passed, in milliseconds since the epoch
+     * @param action called once for each key with its ETag, which is null if it isn't stored
+     * @throws UnsupportedOperationException if the storable can't list its keys
+     */
+    public default void forEachKeyAndETagStoredSince(long sinceMillis, BiConsumer<String, String> action) {
+        forEachKeyAndETag(action);
+    }
+
+    /**
+     * Gets a stamp that changes whenever objects may have been removed from the storable,
+     * so a snapshot of its keys can tell whether it still only holds keys that are stored.
+     * @return the stamp, or -1 if the storable doesn't keep one
+     */
+    public default long removalStamp() {
+        return -1;
+    }
+
+    /**
+     * Gets the highest key listed under a prefix, used to list only the keys after it.
+     * @param prefix the prefix listed, an empty string for the whole bucket
+     * @return the watermark, or null if there isn't one or the storable doesn't keep them
+     */
+    public default String getWatermark(String prefix) {
+        return null;
+    }
+
+    /**
+     * Records the highest key listed under a prefix.
+     * @param prefix the prefix listed, an empty string for the whole bucket
+     * @param lastKey the last key listed under the prefix
+     * @return returns a boolean whether the watermark was written successfully or not
+     */
+    public default boolean putWatermark(String prefix, String lastKey) {
+        return false;
+    }
+
+    /**
+     * Gets a value kept by the storable about its listing, such as how far a bootstrap got.
+     * @param name the name of the value
+     * @return the value, 0 if it was never set, or -1 if it couldn't be read or the storable doesn't keep them
+     */
+    public default long getListState(String name) {
+        return -1;
+    }
+
+    /**
+     * Records a value about the listing of the storable, kept across restarts.
+     * @param name the name of the value
+     * @param value the value, 0 or above
+     * @return returns a boolean whether the value was written successfully or not
+     */
+    public default boolean putListState(String name, long value) {
+        return false;
+    }
+
+    /**
+     * Starts a new generation for a listing, keys seen by the listing are stamped with it so the keys
+     * that weren't listed can be found afterwards.
+     * @return the new generation, or -1 if the storable doesn't keep generations
+     */
+    public default long beginGeneration() {
+        return -1;
+    }
+
+    /**
+     * Stamps keys that have been listed with the generation of the listing.
+     * @param keys the keys listed
+     * @param generation the generation from {@link #beginGeneration()}
+     * @return returns a boolean whether the keys were stamped successfully or not
+     */
+    public default boolean markSeen(Collection<String> keys, long generation) {
+        return false;
+    }
+
+    /**
+     * Finds stored objects that haven't been stamped with the generation, in key order.
+     * @param generation the generation of the last complete listing
+     * @param afterKey the last key of the previous batch, an empty string to start from the beginning
+     * @param limit the most objects to find
+     * @return the objects found, empty if there are none or the storable doesn't keep generations
+     */
+    public default List<StoredObject> findUnmarked(long generation, String afterKey, int limit) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Removes objects found by {@link #findUnmarked(long, String, int)}.
+     * @param objects the objects to remove
+     * @return returns a boolean whether the objects were removed successfully or not
+     */
+    public default boolean removeObjects(Collection<StoredObject> objects) {
+        return false;
+    }
+
+    /**
+     * Removes stored objects first stored before the cutoff that the listing of the generation didn't list,
+     * a batch at a time in key order. Objects still in the bucket are kept however old they are, as they'd
+     * be sent again as created the next time they are listed.
+     * @param cutoffMillis the time objects stored before are removed, in milliseconds since the epoch
+     * @param generation the generation of the last complete listing, objects stamped with it are kept
+     * @param afterKey the last key of the previous batch, an empty string to start from the beginning
+     * @param limit the most objects to look at and remove
+     * @return the objects removed, empty if there are none or the storable doesn't keep when objects were stored
+     */
+    public default List<StoredObject> pruneOlderThan(long cutoffMillis, long generation, String afterKey, int limit) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Hands space freed by removed objects back to the file system.
+     * @param maxPages the most pages to hand back at once
+     * @return the bytes handed back, 0 if there were none or the storable can't hand space back
+     */
+    public default long reclaimSpace(int maxPages) {
+        return 0;
+    }
+
+    /**
+     * @return the bytes the storable takes up on disk or in memory, or -1 if it isn't known
+     */
+    public default long sizeBytes() {
+        return -1;
+    }
 }
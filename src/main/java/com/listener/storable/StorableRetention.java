@@ -0,0 +1,263 @@
+package com.listener.storable;
+
+import com.listener.metrics.Counter;
+import com.listener.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prunes a {@link Storable} so it doesn't grow for as long as the bucket is listened to.
+ * <p>
+ * Objects are pruned for either of two reasons, each turned on from the properties:
+ * <ul>
+ * <li>RetentionMaxAgeSeconds: objects first stored longer ago than this that the last complete listing
+ * didn't list are pruned, 0 (default) for none. Objects still in the bucket are kept however old they are,
+ * as they'd be sent again as created the next time they are listed.</li>
+ * <li>RetentionUnseenListings: objects that this many complete listings in a row didn't list are pruned
+ * without a deletion event, 0 (default) for none.</li>
+ * </ul>
+ * Either way the listed keys are stamped with a generation on every poll, as they are when "DeleteDetection"
+ * is on, and nothing is pruned before a listing of the whole bucket has completed.
+ * A run prunes "RetentionBatchSize" objects at a time, default 1000, pausing "RetentionBatchPauseMillis"
+ * between batches, default 10, so the polls and the Kafka callbacks writing to the storable only wait on a
+ * single batch. Once nothing more is left to prune the freed space is handed back by
+ * {@link Storable#reclaimSpace(int)}, up to "RetentionVacuumPages" pages at a time, default 1000.
+ * <p>
+ * Runs are scheduled every "RetentionIntervalSeconds", default 300, on a thread of their own.
+ * The objects pruned, the space handed back, the pruning rate of the last run and the size of the
+ * storable are recorded in the default {@link MetricsRegistry}.
+ */
+public class StorableRetention implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(StorableRetention.class.getName());
+
+    private final Storable storable;
+    private final String bucket;
+    private final long maxAgeMillis;
+    private final int unseenListings;
+    private final int batchSize;
+    private final long batchPauseMillis;
+    private final int vacuumPages;
+    private final long intervalSeconds;
+    // The generations of the last complete listings, the oldest first, at least the latest is kept
+    private final Deque<Long> completeListings = new ArrayDeque<>();
+    // Held by a run, so a scheduled run and one called directly don't prune side by side
+    private final Object runLock = new Object();
+    private ScheduledExecutorService executor;
+    private volatile boolean closed;
+
+    private final Counter prunedByAgeTotal;
+    private final Counter prunedUnseenTotal;
+    private final Counter reclaimedBytesTotal;
+    private volatile double lastRunObjectsPerSecond;
+    private volatile long storableSizeBytes;
+
+    /**
+     * @param storable   the storable to prune
+     * @param properties the properties containing the retention configuration
+     */
+    public StorableRetention(Storable storable, Properties properties) {
+        this.storable = storable;
+        this.bucket = properties.getProperty("bucketName", "");
+        this.maxAgeMillis = TimeUnit.SECONDS.toMillis(
+                Long.parseLong(properties.getProperty("RetentionMaxAgeSeconds", "0")));
+        this.unseenListings = Integer.parseInt(properties.getProperty("RetentionUnseenListings", "0"));
+        this.batchSize = Math.max(1, Integer.parseInt(properties.getProperty("RetentionBatchSize", "1000")));
+        this.batchPauseMillis = Long.parseLong(properties.getProperty("RetentionBatchPauseMillis", "10"));
+        this.vacuumPages = Math.max(1, Integer.parseInt(properties.getProperty("RetentionVacuumPages", "1000")));
+        this.intervalSeconds = Math.max(1, Long.parseLong(properties.getProperty("RetentionIntervalSeconds", "300")));
+        this.storableSizeBytes = storable.sizeBytes();
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        String help = "Objects pruned from the storable, by age or for not being listed";
+        this.prunedByAgeTotal = metrics.counter("s3listen_storable_pruned_total", help,
+                "bucket", bucket, "reason", "age");
+        this.prunedUnseenTotal = metrics.counter("s3listen_storable_pruned_total", help,
+                "bucket", bucket, "reason", "unseen");
+        this.reclaimedBytesTotal = metrics.counter("s3listen_storable_reclaimed_bytes_total",
+                "Bytes freed by pruning that were handed back to the file system", "bucket", bucket);
+        metrics.gauge("s3listen_storable_pruned_per_second", "Objects pruned a second by the last retention run",
+                () -> lastRunObjectsPerSecond, "bucket", bucket);
+        metrics.gauge("s3listen_storable_size_bytes", "Size of the storable as of the last retention run",
+                () -> storableSizeBytes, "bucket", bucket);
+    }
+
+    /**
+     * @param storable   the storable to prune
+     * @param properties the properties containing the retention configuration
+     * @return the retention, or null if neither "RetentionMaxAgeSeconds" nor "RetentionUnseenListings" is set
+     */
+    public static StorableRetention fromProperties(Storable storable, Properties properties) {
+        if (Long.parseLong(properties.getProperty("RetentionMaxAgeSeconds", "0")) <= 0
+                && Integer.parseInt(properties.getProperty("RetentionUnseenListings", "0")) <= 0)
+            return null;
+        return new StorableRetention(storable, properties);
+    }
+
+    /**
+     * @return true if the keys listed need to be stamped with a generation for objects to be pruned
+     */
+    public boolean tracksGenerations() {
+        return unseenListings > 0 || maxAgeMillis > 0;
+    }
+
+    /**
+     * Records that a listing of the whole bucket stamped the keys it listed with the generation.
+     *
+     * @param generation the generation of the complete listing
+     */
+    public synchronized void listingCompleted(long generation) {
+        completeListings.addLast(generation);
+        while (completeListings.size() > Math.max(1, unseenListings)) {
+            completeListings.removeFirst();
+        }
+    }
+
+    /**
+     * Schedules a run every "RetentionIntervalSeconds", the first one straight away.
+     */
+    public synchronized void start() {
+        if (executor != null || closed)
+            return;
+        executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "storable-retention-" + bucket);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                runOnce();
+            } catch (RuntimeException exc) {
+                logger.warn("The retention run of {} failed: {}", bucket, exc.toString());
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Prunes everything that is due a batch at a time, then hands the freed space back.
+     *
+     * @return the number of objects pruned
+     */
+    public long runOnce() {
+        synchronized (runLock) {
+            return run();
+        }
+    }
+
+    private long run() {
+        long start = System.nanoTime();
+        long prunedByAge = maxAgeMillis > 0 ? pruneByAge(System.currentTimeMillis() - maxAgeMillis) : 0;
+        long prunedUnseen = pruneUnseen();
+        long pruned = prunedByAge + prunedUnseen;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (pruned > 0)
+            lastRunObjectsPerSecond = pruned / Math.max(seconds, 1e-9);
+
+        long reclaimed = 0;
+        long reclaimedNow;
+        do {
+            reclaimedNow = closed ? 0 : storable.reclaimSpace(vacuumPages);
+            reclaimed += reclaimedNow;
+        } while (reclaimedNow > 0 && pause());
+        reclaimedBytesTotal.inc(reclaimed);
+        storableSizeBytes = storable.sizeBytes();
+        logger.info("The retention of {} pruned {} objects by age and {} no longer listed in {} seconds, " +
+                        "handing back {} bytes, the storable is {} bytes", bucket, prunedByAge, prunedUnseen,
+                String.format("%.3f", seconds), reclaimed, storableSizeBytes);
+        return pruned;
+    }
+
+    /**
+     * Prunes the objects stored before the cutoff that the latest complete listing didn't list.
+     */
+    private long pruneByAge(long cutoffMillis) {
+        long latestListing;
+        synchronized (this) {
+            if (completeListings.isEmpty())
+                return 0;
+            latestListing = completeListings.peekLast();
+        }
+        long pruned = 0;
+        String afterKey = "";
+        List<StoredObject> batch;
+        do {
+            batch = storable.pruneOlderThan(cutoffMillis, latestListing, afterKey, batchSize);
+            pruned += batch.size();
+            prunedByAgeTotal.inc(batch.size());
+            if (!batch.isEmpty())
+                afterKey = batch.get(batch.size() - 1).getKey();
+        } while (batch.size() == batchSize && !closed && pause());
+        return pruned;
+    }
+
+    /**
+     * Prunes the objects left on a generation older than the oldest of the last complete listings,
+     * as none of them listed the objects.
+     */
+    private long pruneUnseen() {
+        long oldestListing;
+        synchronized (this) {
+            if (unseenListings <= 0 || completeListings.size() < unseenListings)
+                return 0;
+            oldestListing = completeListings.peekFirst();
+        }
+        long pruned = 0;
+        String afterKey = "";
+        List<StoredObject> batch;
+        do {
+            batch = storable.findUnmarked(oldestListing, afterKey, batchSize);
+            if (batch.isEmpty())
+                break;
+            if (storable.removeObjects(batch)) {
+                pruned += batch.size();
+                prunedUnseenTotal.inc(batch.size());
+            }
+            afterKey = batch.get(batch.size() - 1).getKey();
+        } while (batch.size() == batchSize && !closed && pause());
+        return pruned;
+    }
+
+    /**
+     * @return false if the pause was interrupted or the retention has been closed
+     */
+    private boolean pause() {
+        if (batchPauseMillis <= 0)
+            return !closed;
+        try {
+            Thread.sleep(batchPauseMillis);
+            return !closed;
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Stops scheduling runs and waits for a run in progress to finish its batch.
+     */
+    @Override
+    public void close() {
+        ScheduledExecutorService runner;
+        synchronized (this) {
+            closed = true;
+            runner = executor;
+        }
+        if (runner == null)
+            return;
+        runner.shutdown();
+        try {
+            if (!runner.awaitTermination(30, TimeUnit.SECONDS))
+                logger.warn("The retention of {} didn't finish its batch before it was closed", bucket);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
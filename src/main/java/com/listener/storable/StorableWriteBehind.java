@@ -0,0 +1,304 @@
+package com.listener.storable;
+
+import com.listener.metrics.Histogram;
+import com.listener.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+/**
+ * Writes objects to a {@link Storable} in batches on a dedicated writer thread.
+ * <p>
+ * Objects are put on a lock free queue, so the thread submitting them, such as the Kafka producer's
+ * network thread running a send callback, never waits on the storable. The writer drains the queue
+ * into {@link Storable#putObjects(java.util.Collection)}, a batch that fails is tried once more before its
+ * keys are logged and left to be sent again by the next poll.
+ * <p>
+ * The queue is bounded by reserving a slot for each object before the send it comes from is made, see
+ * {@link #reserve(int)}, so a full queue holds back the listening thread rather than the thread submitting.
+ * It is set from the properties:
+ * <ul>
+ * <li>StorableWriteQueueCapacity: the number of keys that can wait to be written, default 200000</li>
+ * <li>StorableWriteBatchSize: the most keys written in one batch, default 5000</li>
+ * </ul>
+ * The time taken by each batch and the depth of the queue are recorded in the default {@link MetricsRegistry}.
+ */
+public class StorableWriteBehind implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(StorableWriteBehind.class.getName());
+    private final static long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Storable storable;
+    private final int capacity;
+    private final int batchSize;
+    private final ConcurrentLinkedQueue<StoredObject> queue = new ConcurrentLinkedQueue<>();
+    // Counts keys from when they are queued until their batch has been written.
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    // Counts the slots reserved, from before the send until the key's batch has been written or the slot released.
+    private final AtomicInteger reservedSlots = new AtomicInteger();
+    private final Object flushLock = new Object();
+    private final Object slotLock = new Object();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    private final AtomicLong keysWritten = new AtomicLong();
+    private final AtomicLong keysFailed = new AtomicLong();
+    private final AtomicLong reservationWaits = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final AtomicLong totalBatchNanos = new AtomicLong();
+    private final AtomicLong maxBatchNanos = new AtomicLong();
+    private final Histogram batchSeconds;
+
+    /**
+     * Creates the write behind queue and starts its writer thread.
+     *
+     * @param storable   the storable the keys are written to
+     * @param properties the properties containing the queue configuration
+     */
+    public StorableWriteBehind(Storable storable, Properties properties) {
+        this.storable = storable;
+        this.capacity = Math.max(1, Integer.parseInt(properties.getProperty("StorableWriteQueueCapacity", "200000")));
+        this.batchSize = Integer.parseInt(properties.getProperty("StorableWriteBatchSize", "5000"));
+        String bucket = properties.getProperty("bucketName", "");
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.batchSeconds = metrics.histogram("s3listen_storable_write_seconds",
+                "Time taken to write a batch of keys to the storable", Histogram.LATENCY_SECONDS, "bucket", bucket);
+        metrics.gauge("s3listen_storable_write_queue_depth", "Keys waiting to be written to the storable",
+                this::getQueueDepth, "bucket", bucket);
+        this.writerThread = new Thread(this::writeLoop, "storable-write-behind-" + bucket);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Reserves room in the queue for objects that are about to be sent, blocking while the queue is full.
+     * Every slot reserved is given back by {@link #submit(StoredObject)} or {@link #release(int)}.
+     * A reservation of more slots than the capacity is let through once the queue is empty.
+     *
+     * @param slots the number of objects that will be submitted
+     * @return false if interrupted while waiting or the writer has been closed, no slots are then reserved
+     */
+    public boolean reserve(int slots) {
+        boolean waited = false;
+        while (running) {
+            int reserved = reservedSlots.get();
+            if (reserved == 0 || reserved + slots <= capacity) {
+                if (reservedSlots.compareAndSet(reserved, reserved + slots))
+                    return true;
+                continue;
+            }
+            if (!waited) {
+                waited = true;
+                reservationWaits.incrementAndGet();
+            }
+            synchronized (slotLock) {
+                if (reservedSlots.get() == reserved) {
+                    try {
+                        slotLock.wait(IDLE_PARK_NANOS / 1000000);
+                    } catch (InterruptedException exc) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives back slots reserved for objects that won't be submitted, such as those of a failed send.
+     *
+     * @param slots the number of slots
+     */
+    public void release(int slots) {
+        if (slots <= 0)
+            return;
+        reservedSlots.addAndGet(-slots);
+        synchronized (slotLock) {
+            slotLock.notifyAll();
+        }
+    }
+
+    /**
+     * Reserves a slot and queues the key to be written to the storable, blocking while the queue is full.
+     *
+     * @param key the key as a string
+     */
+    public void submit(String key) {
+        if (reserve(1))
+            submit(StoredObject.ofKey(key));
+        else
+            logger.warn("The key {} couldn't be queued to be written to the storable, it will be sent again", key);
+    }
+
+    /**
+     * Queues an object a slot was reserved for, this never waits or writes to the storable itself.
+     * An object submitted once the writer has been closed isn't written and will be sent again.
+     *
+     * @param object the object with its metadata
+     */
+    public void submit(StoredObject object) {
+        if (!running) {
+            keysFailed.incrementAndGet();
+            release(1);
+            logger.warn("The writer has been closed, {} wasn't written to the storable and will be sent again",
+                    object.getKey());
+            return;
+        }
+        pendingWrites.incrementAndGet();
+        queue.add(object);
+        LockSupport.unpark(writerThread);
+    }
+
+    private void writeLoop() {
+        List<StoredObject> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            StoredObject object;
+            while (batch.size() < batchSize && (object = queue.poll()) != null) {
+                batch.add(object);
+            }
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<StoredObject> batch) {
+        long start = System.nanoTime();
+        // A batch is tried twice, as a write may fail on a busy database
+        boolean written = putObjects(batch) || putObjects(batch);
+        long elapsed = System.nanoTime() - start;
+        batchesWritten.incrementAndGet();
+        totalBatchNanos.addAndGet(elapsed);
+        maxBatchNanos.accumulateAndGet(elapsed, Math::max);
+        batchSeconds.observeNanos(elapsed);
+        if (written) {
+            keysWritten.addAndGet(batch.size());
+        } else {
+            // These keys will be listed as new and sent again on the next poll.
+            keysFailed.addAndGet(batch.size());
+            logger.warn("A batch of {} keys failed to be written to the storable, they will be sent again: {}",
+                    batch.size(), batch.stream().map(StoredObject::getKey).collect(Collectors.joining(", ")));
+        }
+        release(batch.size());
+        if (pendingWrites.addAndGet(-batch.size()) == 0) {
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    private boolean putObjects(List<StoredObject> batch) {
+        try {
+            return storable.putObjects(batch);
+        } catch (RuntimeException exc) {
+            logger.warn("A batch of {} keys couldn't be written to the storable: {}", batch.size(), exc.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Waits until every key queued so far has been written.
+     *
+     * @param timeoutMillis the longest time to wait
+     * @return true if every key was written in time
+     */
+    public boolean flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        LockSupport.unpark(writerThread);
+        synchronized (flushLock) {
+            while (pendingWrites.get() > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    logger.warn("{} keys were still waiting to be written to the storable after {} ms",
+                            pendingWrites.get(), timeoutMillis);
+                    return false;
+                }
+                try {
+                    flushLock.wait(remaining);
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        logger.debug("Storable write behind: {}", statisticsSummary());
+        return true;
+    }
+
+    /**
+     * Stops taking keys, writes the keys already queued and stops the writer thread.
+     * The storable itself is left open.
+     */
+    @Override
+    public void close() {
+        running = false;
+        synchronized (slotLock) {
+            slotLock.notifyAll();
+        }
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        // Catches keys submitted as the writer was stopping
+        List<StoredObject> remaining = new ArrayList<>();
+        StoredObject object;
+        while ((object = queue.poll()) != null) {
+            remaining.add(object);
+        }
+        if (!remaining.isEmpty())
+            writeBatch(remaining);
+        logger.info("Storable write behind closed: {}", statisticsSummary());
+    }
+
+    /**
+     * @return the number of keys queued or being written
+     */
+    public int getQueueDepth() {
+        return pendingWrites.get();
+    }
+
+    public long getKeysWritten() {
+        return keysWritten.get();
+    }
+
+    public long getKeysFailed() {
+        return keysFailed.get();
+    }
+
+    /**
+     * @return the reservations that waited for room as the queue was full
+     */
+    public long getReservationWaits() {
+        return reservationWaits.get();
+    }
+
+    public double getAverageBatchMillis() {
+        long batches = batchesWritten.get();
+        return batches == 0 ? 0 : totalBatchNanos.get() / 1e6 / batches;
+    }
+
+    public double getMaxBatchMillis() {
+        return maxBatchNanos.get() / 1e6;
+    }
+
+    public String statisticsSummary() {
+        return String.format("queue depth=%d, keys written=%d, keys failed=%d, reservation waits=%d, batches=%d, " +
+                        "average batch=%.2f ms, max batch=%.2f ms", getQueueDepth(), getKeysWritten(), getKeysFailed(),
+                getReservationWaits(), batchesWritten.get(), getAverageBatchMillis(), getMaxBatchMillis());
+    }
+}
@@ -0,0 +1,67 @@
+package com.listener.storable;
+
+import com.listener.filesystem.ObjectPage;
+
+/**
+ * An object to be written to a {@link Storable} with its metadata.
+ * These are only made for the objects of a page that are sent or recorded, not for every object listed.
+ */
+public final class StoredObject {
+    private final String key;
+    private final long size;
+    private final String eTag;
+    private final long lastModified;
+
+    public StoredObject(String key, long size, String eTag, long lastModified) {
+        this.key = key;
+        this.size = size;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @param key the key of an object whose metadata isn't known
+     * @return the object
+     */
+    public static StoredObject ofKey(String key) {
+        return new StoredObject(key, ObjectPage.UNKNOWN_SIZE, null, ObjectPage.UNKNOWN_LAST_MODIFIED);
+    }
+
+    /**
+     * @param page  a page of listed objects
+     * @param index the index of the object in the page
+     * @return the object at the index
+     */
+    public static StoredObject of(ObjectPage page, int index) {
+        return new StoredObject(page.keyAt(index), page.sizeAt(index), page.eTagAt(index), page.lastModifiedAt(index));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the size in bytes, or {@link ObjectPage#UNKNOWN_SIZE}
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the ETag, or null if it isn't known
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return the last modified time in milliseconds since the epoch, or {@link ObjectPage#UNKNOWN_LAST_MODIFIED}
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public boolean hasMetadata() {
+        return eTag != null || size != ObjectPage.UNKNOWN_SIZE;
+    }
+}
@@ -0,0 +1,140 @@
+package steps;
+
+import com.listener.filesystem.ObjectPage;
+import com.listener.storable.CachingStorable;
+import com.listener.storable.ObjectChange;
+import com.listener.storable.SQLiteStorable;
+import com.listener.storable.StoredObject;
+import cucumber.api.java.After;
+import cucumber.api.java8.En;
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+public class CacheSnapshotStepDefs implements En {
+    private Properties properties;
+    private File databaseFile;
+    private File snapshotFile;
+    private CachingStorable storable;
+    private int objectsWritten;
+
+    @After
+    public void closeStorable() throws IOException {
+        if (storable != null)
+            storable.close();
+    }
+
+    public CacheSnapshotStepDefs() {
+        Given("^a Caching SQLite Storable on disk that snapshots its cache$", () -> {
+            databaseFile = Files.createTempFile("snapshot-storable", ".db").toFile();
+            databaseFile.deleteOnExit();
+            snapshotFile = Files.createTempFile("cache", ".snapshot").toFile();
+            snapshotFile.delete();
+            snapshotFile.deleteOnExit();
+            properties = new Properties();
+            properties.setProperty("DataBaseLocation", databaseFile.getAbsolutePath());
+            properties.setProperty("SQLiteTimestampIndex", "true");
+            properties.setProperty("CacheExpectedKeys", "100000");
+            properties.setProperty("CacheMaxFingerprints", "100000");
+            properties.setProperty("CacheSnapshotFile", snapshotFile.getAbsolutePath());
+            properties.setProperty("CacheSnapshotIntervalSeconds", "0");
+            objectsWritten = 0;
+            storable = new CachingStorable(new SQLiteStorable(properties), properties);
+        });
+
+        When("^(\\d+) objects are written to the Caching Storable$", (Integer objects) -> {
+            List<StoredObject> batch = new ArrayList<>(objects);
+            for (int object = objectsWritten; object < objectsWritten + objects; object++) {
+                batch.add(new StoredObject("object-" + object, object, "etag-" + object,
+                        ObjectPage.UNKNOWN_LAST_MODIFIED));
+            }
+            Assert.assertTrue("The objects weren't written", storable.putObjects(batch));
+            objectsWritten += objects;
+        });
+
+        And("^every object stored is backdated by (\\d+) hours$", (Integer hours) -> {
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+                 Statement statement = connection.createStatement()) {
+                statement.executeUpdate("UPDATE LISTDATA SET Timestamp=datetime(Timestamp, '-" + hours + " hours')");
+            }
+        });
+
+        And("^the Caching Storable writes a snapshot$",
+                () -> Assert.assertTrue("The snapshot wasn't written", storable.writeSnapshot()));
+
+        And("^the object \"([^\"]*)\" is removed from the Caching Storable$", (String key) -> {
+            // Objects are only removed while on an older generation than the current one, as by a sweep
+            storable.beginGeneration();
+            Assert.assertTrue(storable.removeObjects(Collections.singletonList(StoredObject.ofKey(key))));
+        });
+
+        And("^the Caching Storable is closed$", () -> storable.close());
+
+        And("^the process stops without closing the Caching Storable$",
+                () -> storable.getBackingStorable().close());
+
+        And("^the snapshot file is corrupted$", () -> {
+            try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw")) {
+                long middle = file.length() / 2;
+                file.seek(middle);
+                int value = file.read();
+                file.seek(middle);
+                file.write(value ^ 0xFF);
+            }
+        });
+
+        When("^the Caching Storable is reopened$",
+                () -> storable = new CachingStorable(new SQLiteStorable(properties), properties));
+
+        Then("^the Caching Storable should( not)? have been warmed from its snapshot$", (String not) ->
+                Assert.assertEquals("The snapshot wasn't used as expected", not == null,
+                        storable.isWarmedFromSnapshot()));
+
+        And("^(\\d+) keys stored after the snapshot should have been read$", (Integer keys) ->
+                Assert.assertEquals("The wrong number of keys were read after the snapshot", keys.longValue(),
+                        storable.getKeysReplayed()));
+
+        And("^every object written should be unchanged without asking the backing Storable$", () -> {
+            ObjectPage page = new ObjectPage(objectsWritten);
+            for (int object = 0; object < objectsWritten; object++) {
+                page.add("object-" + object, object, "etag-" + object, ObjectPage.UNKNOWN_LAST_MODIFIED);
+            }
+            for (ObjectChange change : storable.classify(page)) {
+                Assert.assertEquals(ObjectChange.UNCHANGED, change);
+            }
+            Assert.assertEquals("The backing Storable was asked", 0, storable.getBackingLookups());
+        });
+
+        And("^(\\d+) objects never written should be new without asking the backing Storable$", (Integer objects) -> {
+            ObjectPage page = new ObjectPage(objects);
+            for (int object = 0; object < objects; object++) {
+                page.add("unwritten-" + object, object, "etag-" + object, ObjectPage.UNKNOWN_LAST_MODIFIED);
+            }
+            long lookupsBefore = storable.getBackingLookups();
+            long newObjects = 0;
+            for (ObjectChange change : storable.classify(page)) {
+                if (change == ObjectChange.NEW)
+                    newObjects++;
+            }
+            Assert.assertEquals(objects.longValue(), newObjects);
+            // The bloom filter rules out all but its false positives
+            Assert.assertTrue("The bloom filter didn't rule the objects out",
+                    storable.getBackingLookups() - lookupsBefore <= objects / 20);
+        });
+
+        And("^the Caching Storable should not hold \"([^\"]*)\"$", (String key) ->
+                Assert.assertFalse(key + " is still held", storable.keyAlreadyRead(key)));
+
+        And("^the reopened Caching Storable is closed$", () -> storable.close());
+    }
+}
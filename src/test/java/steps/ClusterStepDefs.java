@@ -0,0 +1,99 @@
+package steps;
+
+import com.listener.FileSystemListen;
+import com.listener.MultiBucketListen;
+import com.listener.cluster.ClusterLeases;
+import com.listener.cluster.FileLockCoordinator;
+import com.listener.storable.SQLiteStorable;
+import cucumber.api.java.After;
+import cucumber.api.java8.En;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Assert;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+public class ClusterStepDefs implements En {
+    private InMemoryS3 inMemoryS3;
+    private Path clusterDirectory;
+    private final Map<String, MultiBucketListen> instances = new HashMap<>();
+    private final Map<String, ClusterLeases> leases = new HashMap<>();
+    private final Map<String, MockProducer<String, byte[]>> producers = new HashMap<>();
+
+    @After
+    public void closeInstances() {
+        instances.values().forEach(MultiBucketListen::close);
+    }
+
+    public ClusterStepDefs() {
+        Given("^an in-memory S3 shared by the instances with the buckets \"([^\"]*)\" holding (\\d+) objects each$",
+                (String bucketNames, Integer objects) -> {
+                    inMemoryS3 = new InMemoryS3();
+                    for (String bucketName : bucketNames.split(",")) {
+                        for (int object = 0; object < objects; object++) {
+                            inMemoryS3.putObject(bucketName, "object-" + object, object, "etag-" + object);
+                        }
+                    }
+                    clusterDirectory = Files.createTempDirectory("cluster");
+                    clusterDirectory.toFile().deleteOnExit();
+                });
+
+        And("^a listener instance \"([^\"]*)\" over the buckets \"([^\"]*)\" with leases of (\\d+) milliseconds$",
+                (String instanceId, String bucketNames, Integer leaseMillis) -> {
+                    Properties properties = new Properties();
+                    properties.setProperty("buckets", bucketNames);
+                    properties.setProperty("ListenerThreads", "1");
+                    // Every instance shares the database of each bucket so a bucket taken over isn't sent again
+                    File sharedDatabase = clusterDirectory.resolve("listen.db").toFile();
+                    properties.setProperty("DataBaseLocation", sharedDatabase.getAbsolutePath());
+                    ClusterLeases clusterLeases = new ClusterLeases(
+                            new FileLockCoordinator(clusterDirectory, instanceId),
+                            Arrays.asList(bucketNames.split(",")),
+                            Duration.ofMillis(leaseMillis));
+                    MockProducer<String, byte[]> producer =
+                            new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+                    leases.put(instanceId, clusterLeases);
+                    producers.put(instanceId, producer);
+                    instances.put(instanceId, new MultiBucketListen(inMemoryS3, producer, properties,
+                            Duration.ofSeconds(20), (bucketProperties) -> {
+                        new File(bucketProperties.getProperty("DataBaseLocation")).deleteOnExit();
+                        return new SQLiteStorable(bucketProperties);
+                    }, clusterLeases));
+                });
+
+        When("^the instance \"([^\"]*)\" polls every bucket$", (String instanceId) -> {
+            for (FileSystemListen listener : instances.get(instanceId).getListeners().values()) {
+                listener.listen_once();
+                listener.flushPendingStorableWrites();
+            }
+        });
+
+        When("^the instance \"([^\"]*)\" is stopped$", (String instanceId) -> instances.get(instanceId).close());
+
+        When("^(\\d+) milliseconds have passed$", (Integer millis) -> Thread.sleep(millis));
+
+        When("^the object \"([^\"]*)\" is put in the shared bucket \"([^\"]*)\"$",
+                (String key, String bucketName) -> inMemoryS3.putObject(bucketName, key, 1, "etag"));
+
+        Then("^the instance \"([^\"]*)\" should hold the leases of (\\d+) buckets$",
+                (String instanceId, Integer buckets) -> Assert.assertEquals(
+                        "The leases held by " + instanceId + " were " + leases.get(instanceId).getHeld(),
+                        buckets.intValue(), leases.get(instanceId).getHeld().size()));
+
+        Then("^the instance \"([^\"]*)\" should have sent (\\d+) messages$",
+                (String instanceId, Integer messages) -> Assert.assertEquals(
+                        "The wrong number of messages were sent by " + instanceId,
+                        messages.intValue(), producers.get(instanceId).history().size()));
+
+        And("^the lease of \"([^\"]*)\" should be held by \"([^\"]*)\"$", (String bucketName, String instanceId) ->
+                Assert.assertEquals(instanceId, leases.get(instanceId).getCoordinator().getOwner(bucketName)));
+    }
+}
@@ -0,0 +1,123 @@
+package steps;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local stand-in for S3 that only supports listing, it pages and handles prefixes,
+ * delimiters and StartAfter in the same way as ListObjectsV2.
+ */
+public class InMemoryS3 extends AbstractAmazonS3 {
+    private final ConcurrentHashMap<String, NavigableMap<String, S3ObjectSummary>> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger listRequests = new AtomicInteger();
+    private final Set<String> listingThreads = ConcurrentHashMap.newKeySet();
+    private volatile int failListRequestsAfter = Integer.MAX_VALUE;
+    private volatile boolean failListRequestsWithError;
+
+    public void putObject(String bucketName, String key, long size, String eTag) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName(bucketName);
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag(eTag);
+        summary.setLastModified(new Date());
+        buckets.computeIfAbsent(bucketName, (name) -> new ConcurrentSkipListMap<>()).put(key, summary);
+    }
+
+    public void deleteObject(String bucketName, String key) {
+        buckets.getOrDefault(bucketName, Collections.emptyNavigableMap()).remove(key);
+    }
+
+    @Override
+    public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+        if (listRequests.incrementAndGet() > failListRequestsAfter) {
+            if (failListRequestsWithError)
+                throw new StackOverflowError("The in-memory S3 is failing list requests");
+            throw new AmazonServiceException("The in-memory S3 is failing list requests");
+        }
+        listingThreads.add(Thread.currentThread().getName());
+        NavigableMap<String, S3ObjectSummary> bucket =
+                buckets.getOrDefault(request.getBucketName(), Collections.emptyNavigableMap());
+        String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        String after = request.getContinuationToken() != null ? request.getContinuationToken() : request.getStartAfter();
+        NavigableMap<String, S3ObjectSummary> candidates = after == null ?
+                bucket.tailMap(prefix, true) : bucket.tailMap(max(prefix, after), !after.equals(max(prefix, after)));
+        int maxKeys = request.getMaxKeys() == null ? 1000 : request.getMaxKeys();
+
+        ListObjectsV2Result result = new ListObjectsV2Result();
+        result.setBucketName(request.getBucketName());
+        result.setPrefix(request.getPrefix());
+        result.setMaxKeys(maxKeys);
+        List<String> commonPrefixes = new ArrayList<>();
+        String lastReturned = null;
+        int returned = 0;
+        for (S3ObjectSummary summary : candidates.values()) {
+            String key = summary.getKey();
+            if (!key.startsWith(prefix))
+                break;
+            int delimiterAt = request.getDelimiter() == null ? -1 : key.indexOf(request.getDelimiter(), prefix.length());
+            String commonPrefix = delimiterAt < 0 ? null :
+                    key.substring(0, delimiterAt + request.getDelimiter().length());
+            if (commonPrefix != null && commonPrefixes.contains(commonPrefix))
+                continue;
+            if (returned == maxKeys) {
+                result.setTruncated(true);
+                result.setNextContinuationToken(lastReturned);
+                break;
+            }
+            if (commonPrefix != null) {
+                commonPrefixes.add(commonPrefix);
+                returned++;
+                // Continues after the last key under the common prefix
+                lastReturned = bucket.subMap(commonPrefix, true, commonPrefix + Character.MAX_VALUE, true).lastKey();
+                continue;
+            }
+            result.getObjectSummaries().add(summary);
+            lastReturned = key;
+            returned++;
+        }
+        result.setCommonPrefixes(commonPrefixes);
+        result.setKeyCount(returned);
+        return result;
+    }
+
+    private static String max(String first, String second) {
+        return first.compareTo(second) >= 0 ? first : second;
+    }
+
+    /**
+     * @param requests the number of list requests answered before every later request fails
+     */
+    public void failListRequestsAfter(int requests) {
+        failListRequestsAfter = requests;
+    }
+
+    /**
+     * @param requests the number of list requests answered before every later request throws an {@link Error}
+     */
+    public void failListRequestsWithErrorAfter(int requests) {
+        failListRequestsWithError = true;
+        failListRequestsAfter = requests;
+    }
+
+    public int getListRequests() {
+        return listRequests.get();
+    }
+
+    public Set<String> getListingThreads() {
+        return listingThreads;
+    }
+}
@@ -0,0 +1,148 @@
+package steps;
+
+import com.listener.FileSystemListen;
+import com.listener.ListenerLifecycle;
+import com.listener.filesystem.S3FileSystem;
+import com.listener.metrics.MetricsRegistry;
+import com.listener.storable.SQLiteStorable;
+import cucumber.api.java.After;
+import cucumber.api.java8.En;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Assert;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Properties;
+
+public class LifecycleStepDefs implements En {
+    private InMemoryS3 inMemoryS3;
+    private File databaseFile;
+    private MockProducer<String, byte[]> kafkaProducer;
+    private FileSystemListen listen;
+    private ListenerLifecycle lifecycle;
+    private int shutdownHooksBefore;
+
+    // Closes the listener, a lifecycle already shut down is left as it is
+    @After
+    public void shutDownLifecycle() {
+        if (lifecycle != null)
+            lifecycle.shutdown();
+    }
+
+    public LifecycleStepDefs() {
+        Given("^a lifecycle managing a FileSystemListen on a bucket of (\\d+) objects that doesn't flush each poll$",
+                (Integer objects) -> {
+                    inMemoryS3 = new InMemoryS3();
+                    for (int object = 0; object < objects; object++) {
+                        inMemoryS3.putObject("lifecycle-bucket", "object-" + object, object, "etag-" + object);
+                    }
+                    databaseFile = Files.createTempFile("lifecycle", ".db").toFile();
+                    databaseFile.deleteOnExit();
+                    Properties properties = new Properties();
+                    properties.setProperty("bucketName", "lifecycle-bucket");
+                    properties.setProperty("DataBaseLocation", databaseFile.getAbsolutePath());
+                    properties.setProperty("KafkaFlushEachPoll", "false");
+                    properties.setProperty("ShutdownDrainSeconds", "10");
+                    SQLiteStorable storable = new SQLiteStorable(properties);
+                    kafkaProducer = new MockProducer<>(false, new StringSerializer(), new ByteArraySerializer());
+                    S3FileSystem fileSystem = new S3FileSystem(inMemoryS3, properties);
+                    listen = new FileSystemListen(fileSystem, Duration.ofMinutes(10),
+                            properties, storable, kafkaProducer);
+                    lifecycle = new ListenerLifecycle(properties);
+                    lifecycle.manageProducer(kafkaProducer);
+                    lifecycle.manage(listen);
+                    lifecycle.manage("file system", fileSystem);
+                    shutdownHooksBefore = shutdownHooks();
+                });
+
+        When("^the lifecycle is started and has polled once$", () -> {
+            lifecycle.start(1);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (lifecycle.getSchedulers().get(0).getPollsCompleted() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("The lifecycle didn't poll", 1, lifecycle.getSchedulers().get(0).getPollsCompleted());
+        });
+
+        When("^the FileSystemListen polls (\\d+) more times$", (Integer polls) -> {
+            for (int poll = 0; poll < polls; poll++) {
+                listen.listen_once();
+            }
+        });
+
+        When("^the lifecycle's shutdown hook is installed (\\d+) times$", (Integer times) -> {
+            for (int install = 0; install < times; install++) {
+                lifecycle.installShutdownHook();
+            }
+        });
+
+        When("^the lifecycle is shut down$", () -> lifecycle.shutdown());
+
+        Then("^(\\d+) records should have been sent without being acknowledged$", (Integer records) -> {
+            Assert.assertEquals("The wrong number of records were sent", records.intValue(),
+                    kafkaProducer.history().size());
+            Assert.assertFalse("The producer was flushed by the poll", kafkaProducer.flushed());
+        });
+
+        Then("^(\\d+) shutdown hooks should have been added$", (Integer hooks) ->
+                Assert.assertEquals("The wrong number of shutdown hooks were added",
+                        hooks.intValue(), shutdownHooks() - shutdownHooksBefore));
+
+        Then("^the Kafka producer should have been closed$", () ->
+                Assert.assertTrue("The producer wasn't closed", kafkaProducer.closed()));
+
+        And("^the listing threads of the bucket should have stopped$", () -> {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (listingThreads() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("The listing threads are still running", 0, listingThreads());
+        });
+
+        And("^the database should hold (\\d+) keys once it is reopened$", (Integer keys) -> {
+            Properties properties = new Properties();
+            properties.setProperty("DataBaseLocation", databaseFile.getAbsolutePath());
+            SQLiteStorable reopened = new SQLiteStorable(properties);
+            try {
+                Assert.assertEquals("The keys acknowledged in the drain weren't all written",
+                        keys.intValue(), reopened.count());
+            } finally {
+                reopened.close();
+            }
+        });
+
+        And("^the lifecycle should have reported how long the (startup|drain|shutdown) took$", (String phase) -> {
+            Number seconds = MetricsRegistry.getDefault().snapshot()
+                    .get("s3listen_lifecycle_seconds{phase=\"" + phase + "\"}");
+            Assert.assertNotNull("No time was reported for the " + phase, seconds);
+            Assert.assertTrue("No time was reported for the " + phase, seconds.doubleValue() > 0);
+        });
+    }
+
+    /**
+     * @return the number of listing and prefetch threads of the lifecycle bucket still alive
+     */
+    private static long listingThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter((thread) -> thread.getName().startsWith("s3-prefetch-lifecycle-bucket")
+                        || thread.getName().startsWith("s3-listing-lifecycle-bucket"))
+                .count();
+    }
+
+    /**
+     * @return the number of shutdown hooks the JVM holds
+     */
+    @SuppressWarnings("unchecked")
+    private static int shutdownHooks() throws ReflectiveOperationException {
+        Field hooks = Class.forName("java.lang.ApplicationShutdownHooks").getDeclaredField("hooks");
+        hooks.setAccessible(true);
+        synchronized (Class.forName("java.lang.ApplicationShutdownHooks")) {
+            return ((Map<Thread, Thread>) hooks.get(null)).size();
+        }
+    }
+}
@@ -2,26 +2,62 @@ package steps;
 
 import com.listener.FileSystemListen;
 import com.listener.filesystem.TestFileSystem;
+import com.listener.storable.CachingStorable;
+import com.listener.storable.MappedIndexStorable;
 import com.listener.storable.SQLiteStorable;
 import com.listener.storable.Storable;
+import cucumber.api.java.After;
 import cucumber.api.java8.En;
 import org.apache.kafka.clients.producer.MockProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 import org.junit.Assert;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.Duration;
 import java.util.*;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
 
 
 public class ListenToS3StepDefs implements En {
     static private Random random = new Random();
     private FileSystemListen listen = null;
     private Storable storable = null;
+    // How the steps read back what was written, whichever storable is used
+    private IntSupplier storedCount = null;
+    private Supplier<List<String>> storedKeys = null;
     private TestFileSystem fileSystem = null;
-    private Producer<String, String> kafkaProducer = null;
+    private Producer<String, byte[]> kafkaProducer = null;
     private Set<String> filesListed;
+    private Thread backgroundListen;
+
+    @After
+    public void closeListen() throws IOException, InterruptedException {
+        if (backgroundListen != null) {
+            listen.stop();
+            backgroundListen.join(5000);
+        }
+        // The listener closes its storable
+        if (listen != null)
+            listen.close();
+        else if (storable != null)
+            storable.close();
+        // Cucumber holds on to the step definitions of finished scenarios, the keys listed and sent aren't
+        listen = null;
+        storable = null;
+        storedCount = null;
+        storedKeys = null;
+        fileSystem = null;
+        kafkaProducer = null;
+        filesListed = null;
+    }
 
     public ListenToS3StepDefs() {
 
@@ -31,10 +67,60 @@ public class ListenToS3StepDefs implements En {
             fileSystem = new TestFileSystem();
         });
 
+        Given("^a FileSystem with a list ability that lists (\\d+) objects a page$", (Integer pageSize) ->
+        {
+            fileSystem = new TestFileSystem();
+            fileSystem.setPageSize(pageSize);
+        });
+
         And("^a SQLite Storable$", () -> {
             Properties properties = new Properties();
             properties.setProperty("InMemory", "true");
-            storable = new SQLiteStorable(properties);
+            SQLiteStorable sqLiteStorable = new SQLiteStorable(properties);
+            storedCount = sqLiteStorable::count;
+            storedKeys = sqLiteStorable::getKeysWrittenAsList;
+            storable = sqLiteStorable;
+        });
+
+        And("^a Parallel SQLite Storable$", () -> {
+            File databaseFile = Files.createTempFile("parallel-diff", ".db").toFile();
+            databaseFile.deleteOnExit();
+            new File(databaseFile.getPath() + "-wal").deleteOnExit();
+            new File(databaseFile.getPath() + "-shm").deleteOnExit();
+            Properties properties = new Properties();
+            properties.setProperty("DataBaseLocation", databaseFile.getAbsolutePath());
+            properties.setProperty("SQLiteReadConnections", "4");
+            SQLiteStorable sqLiteStorable = new SQLiteStorable(properties);
+            storedCount = sqLiteStorable::count;
+            storedKeys = sqLiteStorable::getKeysWrittenAsList;
+            storable = sqLiteStorable;
+        });
+
+        And("^a Mapped Index Storable$", () -> {
+            File indexFile = Files.createTempFile("mapped-index", ".idx").toFile();
+            indexFile.delete();
+            indexFile.deleteOnExit();
+            new File(indexFile.getPath() + ".log").deleteOnExit();
+            Properties properties = new Properties();
+            properties.setProperty("DataBaseLocation", indexFile.getAbsolutePath());
+            // Small enough for the scenarios to compact part way through
+            properties.setProperty("MappedIndexCompactEvery", "500");
+            properties.setProperty("MappedIndexSyncWrites", "false");
+            MappedIndexStorable mappedIndexStorable = new MappedIndexStorable(properties);
+            storedCount = mappedIndexStorable::count;
+            storedKeys = mappedIndexStorable::getKeysWrittenAsList;
+            storable = mappedIndexStorable;
+        });
+
+        And("^a Caching SQLite Storable$", () -> {
+            Properties properties = new Properties();
+            properties.setProperty("InMemory", "true");
+            properties.setProperty("CacheExpectedKeys", "100000");
+            properties.setProperty("CacheMaxFingerprints", "100000");
+            SQLiteStorable sqLiteStorable = new SQLiteStorable(properties);
+            storedCount = sqLiteStorable::count;
+            storedKeys = sqLiteStorable::getKeysWrittenAsList;
+            storable = new CachingStorable(sqLiteStorable, properties);
         });
 
         And("^a Mock KafkaProducer$", () -> {
@@ -44,6 +130,56 @@ public class ListenToS3StepDefs implements En {
         And("^a FileSystemListen$", () -> {
             Properties properties = new Properties();
             properties.setProperty("bucketName", "testFileSystem");
+            // The mock producer only completes sends when told to, so the window
+            // and the flush would otherwise block or complete every send.
+            properties.setProperty("KafkaMaxInFlight", "0");
+            properties.setProperty("KafkaFlushEachPoll", "false");
+            listen = new FileSystemListen(fileSystem,
+                    Duration.ofSeconds(1),
+                    properties,
+                    storable,
+                    kafkaProducer);
+        });
+
+        And("^a Mock KafkaProducer that acknowledges every message$", () -> {
+            kafkaProducer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+        });
+
+        And("^a FileSystemListen polling every (\\d+) milliseconds$", (Integer interval) -> {
+            Properties properties = new Properties();
+            properties.setProperty("bucketName", "testFileSystem");
+            listen = new FileSystemListen(fileSystem,
+                    Duration.ofMillis(interval),
+                    properties,
+                    storable,
+                    kafkaProducer);
+        });
+
+        When("^the FileSystemListen listens forever in the background$", () -> {
+            backgroundListen = new Thread(listen::listen_forever, "background-listen-forever");
+            backgroundListen.start();
+        });
+
+        And("^the FileSystemListen has polled (\\d+) times$", (Integer polls) -> {
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((listen.getPollScheduler() == null || listen.getPollScheduler().getPollsCompleted() < polls)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue("The FileSystemListen didn't poll " + polls + " times",
+                    listen.getPollScheduler().getPollsCompleted() >= polls);
+        });
+
+        And("^the FileSystemListen is stopped$", () -> {
+            listen.stop();
+            backgroundListen.join(5000);
+            Assert.assertFalse("The FileSystemListen didn't stop listening", backgroundListen.isAlive());
+        });
+
+        And("^a FileSystemListen with an in flight window of (\\d+)$", (Integer window) -> {
+            Properties properties = new Properties();
+            properties.setProperty("bucketName", "testFileSystem");
+            properties.setProperty("KafkaMaxInFlight", window.toString());
             listen = new FileSystemListen(fileSystem,
                     Duration.ofSeconds(1),
                     properties,
@@ -70,10 +206,36 @@ public class ListenToS3StepDefs implements En {
             listen.listen_once();
         });
 
+        And("^the FileSystemListen listens to the bucket in the background$", () -> {
+            backgroundListen = new Thread(listen::listen_once, "background-listen");
+            backgroundListen.start();
+        });
+
+        Then("^the KafkaProducer should be holding (\\d+) unacknowledged messages$", (Integer waiting) -> {
+            MockProducer<String, byte[]> mockProducer = (MockProducer<String, byte[]>) kafkaProducer;
+            // Waits for the background listen to fill the window and block
+            long deadline = System.currentTimeMillis() + 10000;
+            while (mockProducer.history().size() < waiting && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+            Assert.assertEquals("The in flight window didn't hold back the sends",
+                    waiting.intValue(), mockProducer.history().size());
+        });
+
+        And("^the KafkaProducer acknowledges messages until the background listen has finished$", () -> {
+            MockProducer<String, byte[]> mockProducer = (MockProducer<String, byte[]>) kafkaProducer;
+            while (backgroundListen.isAlive()) {
+                if (!mockProducer.completeNext())
+                    Thread.sleep(1);
+            }
+            backgroundListen.join();
+        });
+
 
         And("^the KafkaProducer (successfully|unsuccessfully) sent (all|70 percent) of the messages$",
                 (String success, String allOrMost) -> {
-                    MockProducer<String, String> mockProducer = (MockProducer<String, String>) kafkaProducer;
+                    MockProducer<String, byte[]> mockProducer = (MockProducer<String, byte[]>) kafkaProducer;
                     int number_to_retain = fileSystem.list().size();
 
                     if (success.equals("unsuccessfully") && allOrMost.equals("all")) {
@@ -99,12 +261,12 @@ public class ListenToS3StepDefs implements En {
 
         Then("^the KafkaProducer should have had (\\d+) messages sent to it\\.$", (Integer arg0) -> {
             MockProducer mockProducer = (MockProducer) kafkaProducer;
-            List<ProducerRecord<String, String>> recordsSent = mockProducer.history();
+            List<ProducerRecord<String, byte[]>> recordsSent = mockProducer.history();
 
-            for (ProducerRecord<String, String> record : recordsSent) {
+            for (ProducerRecord<String, byte[]> record : recordsSent) {
                 Assert.assertTrue(
-                        "Not all the messages listed were sent to kafka\nMissing:" + record.value(),
-                        filesListed.contains(record.value()));
+                        "Not all the messages listed were sent to kafka\nMissing:" + value(record),
+                        filesListed.contains(value(record)));
             }
 
             Assert.assertEquals("The correct number of messages was not sent",
@@ -113,22 +275,38 @@ public class ListenToS3StepDefs implements En {
 
         But("^the Storable should have had (\\d+) messages written to it$", (Integer messagesWritten) -> {
             // Test the number of files written to the fileSystem
-            SQLiteStorable storableAsSQL = (SQLiteStorable) storable;
-            MockProducer<String, String> mockProducer = (MockProducer<String, String>) kafkaProducer;
+            listen.flushPendingStorableWrites();
+            MockProducer<String, byte[]> mockProducer = (MockProducer<String, byte[]>) kafkaProducer;
             Assert.assertEquals(
                     "The correct number of messages was not sent",
                     messagesWritten.intValue(),
-                    storableAsSQL.count());
+                    storedCount.getAsInt());
 
             int i = 0;
-            for (String messageWrittenToSQLite : storableAsSQL.getKeysWrittenAsList()) {
+            for (String messageWrittenToSQLite : storedKeys.get()) {
                 Assert.assertEquals("The messages stored in the SQLite are not the same as those sent " +
                                 "to the Kafka Producer.",
-                        messageWrittenToSQLite, mockProducer.history().get(i).value());
+                        messageWrittenToSQLite, value(mockProducer.history().get(i)));
                 i++;
             }
         });
 
+
+        Then("^the cache should have answered (\\d+) lookups without the backing Storable$", (Integer answered) -> {
+            CachingStorable cachingStorable = (CachingStorable) storable;
+            Assert.assertEquals("The cache didn't answer the expected number of lookups",
+                    answered.longValue(),
+                    cachingStorable.getFingerprintHits() + cachingStorable.getBloomFilterMisses());
+            Assert.assertEquals("No lookup should have gone to the backing Storable",
+                    0, cachingStorable.getBackingLookups());
+        });
+    }
+
+    /**
+     * @return the value of a record sent in the plain format, the key of the object it was sent for
+     */
+    static String value(ProducerRecord<?, byte[]> record) {
+        return new String(record.value(), StandardCharsets.UTF_8);
     }
 
     private String generateRandomFileLocations() {
@@ -0,0 +1,95 @@
+package steps;
+
+import com.listener.filesystem.ObjectPage;
+import com.listener.storable.MappedIndexStorable;
+import com.listener.storable.ObjectChange;
+import com.listener.storable.StoredObject;
+import cucumber.api.java.After;
+import cucumber.api.java8.En;
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+public class MappedIndexStepDefs implements En {
+    private Properties properties;
+    private MappedIndexStorable storable;
+    private final List<String> keysWritten = new ArrayList<>();
+
+    @After
+    public void closeStorable() throws IOException {
+        if (storable != null)
+            storable.close();
+    }
+
+    public MappedIndexStepDefs() {
+        Given("^a Mapped Index Storable compacting every (\\d+) objects$", (Integer compactEvery) -> {
+            File indexFile = Files.createTempFile("mapped-index", ".idx").toFile();
+            indexFile.delete();
+            indexFile.deleteOnExit();
+            new File(indexFile.getPath() + ".log").deleteOnExit();
+            properties = new Properties();
+            properties.setProperty("DataBaseLocation", indexFile.getAbsolutePath());
+            properties.setProperty("MappedIndexCompactEvery", compactEvery.toString());
+            storable = new MappedIndexStorable(properties);
+        });
+
+        When("^(\\d+) objects are written to the Mapped Index Storable one at a time$", (Integer objects) -> {
+            int first = keysWritten.size();
+            for (int object = first; object < first + objects; object++) {
+                String key = "object-" + object;
+                Assert.assertTrue(storable.putObjects(Collections.singletonList(
+                        new StoredObject(key, object, "etag-" + object, ObjectPage.UNKNOWN_LAST_MODIFIED))));
+                keysWritten.add(key);
+            }
+        });
+
+        When("^the object \"([^\"]*)\" is written to the Mapped Index Storable with the ETag \"([^\"]*)\"$",
+                (String key, String eTag) -> Assert.assertTrue(storable.putObjects(Collections.singletonList(
+                        new StoredObject(key, ObjectPage.UNKNOWN_SIZE, eTag, ObjectPage.UNKNOWN_LAST_MODIFIED)))));
+
+        When("^the Mapped Index Storable crashes part way through writing a record$", () -> {
+            // The storable is left open as a crashed process would leave it, with half a record at the end of its log
+            try (FileOutputStream log = new FileOutputStream(properties.getProperty("DataBaseLocation") + ".log", true)) {
+                log.write(new byte[]{0, 0, 0, 40, 0, 0, 0, 8, 'o', 'b', 'j'});
+            }
+        });
+
+        When("^the Mapped Index Storable is reopened$", () -> storable = new MappedIndexStorable(properties));
+
+        When("^the Mapped Index Storable is closed and reopened$", () -> {
+            storable.close();
+            storable = new MappedIndexStorable(properties);
+        });
+
+        Then("^the Mapped Index Storable should hold (\\d+) keys$", (Integer keys) ->
+                Assert.assertEquals("The wrong number of keys are held", keys.intValue(), storable.count()));
+
+        Then("^the Mapped Index Storable should have replayed (\\d+) objects from its log$", (Integer objects) ->
+                Assert.assertEquals("The wrong number of objects were replayed",
+                        objects.intValue(), storable.pendingCount()));
+
+        Then("^every object written should be in the Mapped Index Storable$", () -> {
+            for (String key : keysWritten) {
+                Assert.assertTrue(key + " isn't in the Storable", storable.keyAlreadyRead(key));
+            }
+            Assert.assertFalse(storable.keyAlreadyRead("object-never-written"));
+        });
+
+        Then("^the object \"([^\"]*)\" with the ETag \"([^\"]*)\" should be (unchanged|modified) in the " +
+                "Mapped Index Storable$", (String key, String eTag, String change) -> {
+            ObjectPage page = new ObjectPage(1);
+            page.add(key, ObjectPage.UNKNOWN_SIZE, eTag, ObjectPage.UNKNOWN_LAST_MODIFIED);
+            Assert.assertEquals(ObjectChange.valueOf(change.toUpperCase()), storable.classify(page)[0]);
+        });
+
+        Then("^the Mapped Index Storable should list the keys in the order they were written$", () ->
+                Assert.assertEquals(keysWritten, storable.getKeysWrittenAsList()));
+    }
+}
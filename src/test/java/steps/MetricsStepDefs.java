@@ -0,0 +1,95 @@
+package steps;
+
+import com.listener.FileSystemListen;
+import com.listener.filesystem.TestFileSystem;
+import com.listener.metrics.MetricsRegistry;
+import com.listener.metrics.MetricsReporter;
+import com.listener.storable.SQLiteStorable;
+import cucumber.api.java.After;
+import cucumber.api.java8.En;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Properties;
+
+public class MetricsStepDefs implements En {
+    private TestFileSystem fileSystem;
+    private FileSystemListen listen;
+    private MetricsReporter metricsReporter;
+    private String metricsText;
+    private Map<String, Number> snapshot;
+
+    @After
+    public void closeListen() throws IOException {
+        if (listen != null)
+            listen.close();
+    }
+
+    public MetricsStepDefs() {
+        Given("^a FileSystem for the bucket \"([^\"]*)\" holding (\\d+) objects listed (\\d+) a page$",
+                (String bucketName, Integer objects, Integer pageSize) -> {
+                    fileSystem = new TestFileSystem();
+                    fileSystem.setPageSize(pageSize);
+                    for (int object = 0; object < objects; object++) {
+                        fileSystem.addFile(bucketName + "/object-" + object);
+                    }
+                    Properties properties = new Properties();
+                    properties.setProperty("bucketName", bucketName);
+                    properties.setProperty("InMemory", "true");
+                    listen = new FileSystemListen(fileSystem, Duration.ofSeconds(20), properties,
+                            new SQLiteStorable(properties),
+                            new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer()));
+                });
+
+        When("^the bucket is polled (\\d+) times$", (Integer polls) -> {
+            for (int poll = 0; poll < polls; poll++) {
+                listen.listen_once();
+            }
+        });
+
+        And("^the metrics are served on any free port$", () -> {
+            Properties properties = new Properties();
+            properties.setProperty("MetricsPort", "0");
+            metricsReporter = new MetricsReporter(MetricsRegistry.getDefault(), properties);
+        });
+
+        And("^the metrics are fetched from the endpoint$", () -> {
+            HttpURLConnection connection = (HttpURLConnection)
+                    new URL("http://localhost:" + metricsReporter.getPort() + "/metrics").openConnection();
+            try (InputStream body = connection.getInputStream()) {
+                Assert.assertEquals(200, connection.getResponseCode());
+                ByteArrayOutputStream read = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int length;
+                while ((length = body.read(buffer)) != -1) {
+                    read.write(buffer, 0, length);
+                }
+                metricsText = new String(read.toByteArray(), StandardCharsets.UTF_8);
+            } finally {
+                connection.disconnect();
+                metricsReporter.close();
+            }
+        });
+
+        Then("^the metrics text should contain the line: (.+)$", (String line) -> {
+            Assert.assertTrue("The metrics didn't contain " + line + ":\n" + metricsText,
+                    metricsText.contains(line + "\n"));
+        });
+
+        Then("^the metric (\\S+) should be (\\d+)$", (String sample, Integer value) -> {
+            snapshot = MetricsRegistry.getDefault().snapshot();
+            Assert.assertNotNull("There is no sample " + sample + " in " + snapshot.keySet(), snapshot.get(sample));
+            Assert.assertEquals("The sample " + sample, value.longValue(), snapshot.get(sample).longValue());
+        });
+    }
+}
@@ -0,0 +1,125 @@
+package steps;
+
+import com.listener.MultiBucketListen;
+import com.listener.storable.SQLiteStorable;
+import cucumber.api.java.After;
+import cucumber.api.java8.En;
+import io.cucumber.datatable.DataTable;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Assert;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+public class MultiBucketStepDefs implements En {
+    private InMemoryS3 inMemoryS3;
+    private MockProducer<String, byte[]> kafkaProducer;
+    private MultiBucketListen multiBucketListen;
+    private Thread backgroundListen;
+    private final Map<String, SQLiteStorable> storables = new HashMap<>();
+    private Properties propertiesUnderTest;
+
+    @After
+    public void closeMultiBucketListen() throws InterruptedException {
+        if (multiBucketListen != null)
+            multiBucketListen.close();
+        if (backgroundListen != null)
+            backgroundListen.join(5000);
+    }
+
+    public MultiBucketStepDefs() {
+        Given("^an in-memory S3 with the buckets \"([^\"]*)\" holding (\\d+) objects each$",
+                (String bucketNames, Integer objects) -> {
+                    inMemoryS3 = new InMemoryS3();
+                    for (String bucketName : bucketNames.split(",")) {
+                        for (int object = 0; object < objects; object++) {
+                            inMemoryS3.putObject(bucketName, "object-" + object, object, "etag-" + object);
+                        }
+                    }
+                });
+
+        And("^a MultiBucketListen over the buckets \"([^\"]*)\" on (\\d+) threads$",
+                (String bucketNames, Integer threads) -> {
+                    kafkaProducer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+                    Properties properties = new Properties();
+                    properties.setProperty("buckets", bucketNames);
+                    properties.setProperty("ListenerThreads", threads.toString());
+                    properties.setProperty("InMemory", "true");
+                    multiBucketListen = new MultiBucketListen(inMemoryS3, kafkaProducer, properties,
+                            Duration.ofMillis(50), (bucketProperties) -> {
+                        SQLiteStorable storable = new SQLiteStorable(bucketProperties);
+                        storables.put(bucketProperties.getProperty("bucketName"), storable);
+                        return storable;
+                    });
+                });
+
+        When("^the MultiBucketListen listens in the background until every bucket has polled (\\d+) times$",
+                (Integer polls) -> {
+                    backgroundListen = new Thread(multiBucketListen::listen_forever, "background-multi-bucket");
+                    backgroundListen.start();
+                    long deadline = System.currentTimeMillis() + 10000;
+                    while (!everyBucketHasPolled(polls) && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(10);
+                    }
+                    multiBucketListen.stop();
+                    backgroundListen.join(5000);
+                    Assert.assertTrue("Not every bucket polled " + polls + " times", everyBucketHasPolled(polls));
+                    Assert.assertFalse("The MultiBucketListen didn't stop listening", backgroundListen.isAlive());
+                });
+
+        Then("^(\\d+) messages should have been sent to the shared KafkaProducer$", (Integer messages) -> {
+            Assert.assertEquals("The wrong number of messages were sent",
+                    messages.intValue(), kafkaProducer.history().size());
+        });
+
+        And("^each bucket's messages should have gone to its own topic$", () -> {
+            Map<String, Integer> messagesPerTopic = new HashMap<>();
+            for (ProducerRecord<String, byte[]> record : kafkaProducer.history()) {
+                messagesPerTopic.merge(record.topic(), 1, Integer::sum);
+            }
+            for (String bucketName : storables.keySet()) {
+                Assert.assertTrue("No messages went to the topic of " + bucketName,
+                        messagesPerTopic.containsKey(bucketName + "ListenTopic"));
+            }
+            Assert.assertEquals("Messages went to unexpected topics: " + messagesPerTopic.keySet(),
+                    storables.size(), messagesPerTopic.size());
+        });
+
+        And("^each bucket's Storable should hold (\\d+) keys$", (Integer keys) -> {
+            multiBucketListen.getListeners().values().forEach((listener) -> listener.flushPendingStorableWrites());
+            storables.forEach((bucketName, storable) ->
+                    Assert.assertEquals("The storable of " + bucketName + " holds the wrong number of keys",
+                            keys.intValue(), storable.count()));
+        });
+
+        Then("^the bucket \"([^\"]*)\" should have the properties:$",
+                (String bucketName, DataTable propertyTable) -> {
+                    Properties bucket = null;
+                    for (Properties bucketProperties : MultiBucketListen.bucketProperties(propertiesUnderTest)) {
+                        if (bucketProperties.getProperty("bucketName").equals(bucketName))
+                            bucket = bucketProperties;
+                    }
+                    Assert.assertNotNull("There are no properties for " + bucketName, bucket);
+                    Map<String, byte[]> expectedProperties = propertyTable.asMap(String.class, String.class);
+                    for (Map.Entry<String, byte[]> expected : expectedProperties.entrySet()) {
+                        Assert.assertEquals("The property " + expected.getKey() + " of " + bucketName,
+                                expected.getValue(), bucket.getProperty(expected.getKey()));
+                    }
+                });
+
+        Given("^the multi-bucket properties:$", (DataTable propertyTable) -> {
+            propertiesUnderTest = new Properties();
+            propertyTable.asMap(String.class, String.class).forEach(propertiesUnderTest::put);
+        });
+    }
+
+    private boolean everyBucketHasPolled(int polls) {
+        return multiBucketListen.getListeners().values().stream().allMatch((listener) ->
+                listener.getPollScheduler() != null && listener.getPollScheduler().getPollsCompleted() >= polls);
+    }
+}
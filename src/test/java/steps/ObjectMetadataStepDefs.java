@@ -0,0 +1,392 @@
+package steps;
+
+import com.amazonaws.AmazonServiceException;
+import com.listener.FileSystemListen;
+import com.listener.filesystem.ObjectPage;
+import com.listener.filesystem.S3FileSystem;
+import com.listener.kafka.BinaryRecordFormat;
+import com.listener.metrics.MetricsRegistry;
+import com.listener.storable.CachingStorable;
+import com.listener.storable.MappedIndexStorable;
+import com.listener.storable.ObjectChange;
+import com.listener.storable.SQLiteStorable;
+import com.listener.storable.Storable;
+import com.listener.storable.StoredObject;
+import cucumber.api.java.After;
+import cucumber.api.java8.En;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+public class ObjectMetadataStepDefs implements En {
+    private InMemoryS3 inMemoryS3;
+    private String bucketName;
+    private File databaseFile;
+    private Storable storable;
+    private MockProducer<String, byte[]> kafkaProducer;
+    private S3FileSystem fileSystem;
+    private FileSystemListen listen;
+    private String storableType;
+    // The events for this key fail to be sent while it is set
+    private volatile String failingKey;
+    private final Properties listenProperties = new Properties();
+
+    @After
+    public void closeListen() throws IOException {
+        if (fileSystem != null)
+            fileSystem.close();
+        // The listener closes its storable
+        if (listen != null)
+            listen.close();
+        else if (storable != null)
+            storable.close();
+    }
+
+    public ObjectMetadataStepDefs() {
+        Given("^an in-memory S3 bucket \"([^\"]*)\" holding (\\d+) objects$", (String bucket, Integer objects) -> {
+            inMemoryS3 = new InMemoryS3();
+            bucketName = bucket;
+            for (int object = 0; object < objects; object++) {
+                inMemoryS3.putObject(bucketName, "object-" + object, object, "etag-" + object);
+            }
+        });
+
+        Given("^an in-memory S3 bucket \"([^\"]*)\" holding (\\d+) objects under each of \"([^\"]*)\"$",
+                (String bucket, Integer objects, String prefixes) -> {
+                    inMemoryS3 = new InMemoryS3();
+                    bucketName = bucket;
+                    for (String prefix : prefixes.split(",")) {
+                        for (int object = 0; object < objects; object++) {
+                            inMemoryS3.putObject(bucketName, prefix + "object-" + object, object, "etag-" + object);
+                        }
+                    }
+                });
+
+        And("^a SQLite database made before metadata was kept holding every key of the in-memory bucket$", () -> {
+            databaseFile = Files.createTempFile("legacy-storable", ".db").toFile();
+            databaseFile.deleteOnExit();
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+                 Statement statement = connection.createStatement();
+                 S3FileSystem legacyListing = new S3FileSystem(inMemoryS3, bucketProperties())) {
+                statement.executeUpdate("CREATE TABLE LISTDATA (FILELOCATION TEXT NOT NULL, " +
+                        "Timestamp DATETIME DEFAULT CURRENT_TIMESTAMP, PRIMARY KEY(FILELOCATION))");
+                for (String key : legacyListing.list()) {
+                    statement.executeUpdate("INSERT INTO LISTDATA(FILELOCATION) VALUES('" + key + "')");
+                }
+            }
+        });
+
+        And("^deletions are detected$", () -> listenProperties.setProperty("DeleteDetection", "true"));
+
+        And("^up to (\\d+) objects wait to be written to the Storable$",
+                (Integer capacity) -> listenProperties.setProperty("StorableWriteQueueCapacity", capacity.toString()));
+
+        And("^the Storable is bootstrapped (\\d+) objects at a time$", (Integer batchSize) -> {
+            listenProperties.setProperty("Bootstrap", "true");
+            listenProperties.setProperty("BootstrapBatchSize", batchSize.toString());
+        });
+
+        And("^the Storable is kept in a database file$", () -> {
+            databaseFile = Files.createTempFile("retention-storable", ".db").toFile();
+            databaseFile.deleteOnExit();
+        });
+
+        And("^objects that (\\d+) complete listings didn't list are pruned$", (Integer listings) -> {
+            listenProperties.setProperty("RetentionUnseenListings", listings.toString());
+            listenProperties.setProperty("RetentionBatchSize", "3");
+            listenProperties.setProperty("RetentionBatchPauseMillis", "0");
+        });
+
+        And("^objects stored for over (\\d+) hours are pruned$", (Integer hours) -> {
+            listenProperties.setProperty("RetentionMaxAgeSeconds", Long.toString(hours * 3600L));
+            listenProperties.setProperty("RetentionBatchSize", "500");
+            listenProperties.setProperty("RetentionBatchPauseMillis", "0");
+        });
+
+        And("^the space freed by pruning is handed back$",
+                () -> listenProperties.setProperty("SQLiteAutoVacuum", "incremental"));
+
+        And("^the bucket is listed incrementally with a full listing every (\\d+) polls$", (Integer polls) -> {
+            listenProperties.setProperty("S3IncrementalListing", "true");
+            listenProperties.setProperty("S3FullListingEvery", polls.toString());
+        });
+
+        And("^sends are made in Kafka transactions of up to (\\d+) records$", (Integer records) -> {
+            listenProperties.setProperty("KafkaTransactional", "true");
+            listenProperties.setProperty("KafkaTransactionMaxRecords", records.toString());
+        });
+
+        And("^the bucket is listed (\\d+) objects a page$",
+                (Integer pageSize) -> listenProperties.setProperty("S3MaxKeysPerList", pageSize.toString()));
+
+        And("^the bucket is listed as the shard prefixes \"([^\"]*)\"$",
+                (String prefixes) -> listenProperties.setProperty("S3ShardPrefixes", prefixes));
+
+        And("^keys listed twice in a poll are dropped$",
+                () -> listenProperties.setProperty("ListingDeduplication", "true"));
+
+        And("^the records are keyed by the first (\\d+) segments of the object key$", (Integer depth) -> {
+            listenProperties.setProperty("RecordKey", "prefix");
+            listenProperties.setProperty("RecordKeyPrefixDepth", depth.toString());
+        });
+
+        And("^the records are sent in the \"(plain|json|binary)\" format$",
+                (String format) -> listenProperties.setProperty("RecordFormat", format));
+
+        And("^up to (\\d+) objects are sent in each record$",
+                (Integer batchSize) -> listenProperties.setProperty("RecordBatchSize", batchSize.toString()));
+
+        And("^a FileSystemListen on the in-memory bucket with a (SQLite|Parallel SQLite|Caching SQLite|Mapped Index) Storable$",
+                this::listenWith);
+
+        And("^a FileSystemListen on the in-memory bucket can't be created with a (SQLite|Mapped Index) Storable$",
+                (String storableType) -> {
+                    try {
+                        listenWith(storableType);
+                        Assert.fail("The FileSystemListen was created");
+                    } catch (IllegalArgumentException exc) {
+                        Assert.assertTrue(exc.getMessage(), exc.getMessage().contains("RecordBatchSize"));
+                    }
+                });
+
+        When("^the FileSystemListen is restarted$", () -> {
+            fileSystem.close();
+            listen.close();
+            listenWith(storableType);
+        });
+
+        When("^the in-memory bucket is polled$", () -> {
+            listen.listen_once();
+            listen.flushPendingStorableWrites();
+        });
+
+        When("^the in-memory bucket is polled, which fails$", () -> {
+            try {
+                listen.listen_once();
+                Assert.fail("The poll didn't fail");
+            } catch (AmazonServiceException exc) {
+                Assert.assertEquals("The in-memory S3 is failing list requests", exc.getErrorMessage());
+            }
+        });
+
+        When("^the in-memory bucket fails list requests after the first (\\d+)$",
+                (Integer requests) -> inMemoryS3.failListRequestsAfter(requests));
+
+        When("^sending the events for \"([^\"]*)\" to Kafka fails$", (String key) -> failingKey = key);
+
+        When("^sending to Kafka succeeds again$", () -> failingKey = null);
+
+        When("^the in-memory bucket answers list requests again$",
+                () -> inMemoryS3.failListRequestsAfter(Integer.MAX_VALUE));
+
+        When("^the object \"([^\"]*)\" is overwritten in the in-memory bucket with the ETag \"([^\"]*)\"$",
+                (String key, String eTag) -> inMemoryS3.putObject(bucketName, key, 1, eTag));
+
+        When("^the object \"([^\"]*)\" is deleted from the in-memory bucket$",
+                (String key) -> inMemoryS3.deleteObject(bucketName, key));
+
+        When("^the first (\\d+) objects are deleted from the in-memory bucket$", (Integer objects) -> {
+            for (int object = 0; object < objects; object++) {
+                inMemoryS3.deleteObject(bucketName, "object-" + object);
+            }
+        });
+
+        When("^the object \"([^\"]*)\" is put back in the in-memory bucket$",
+                (String key) -> inMemoryS3.putObject(bucketName, key, 1, "etag-put-back"));
+
+        Then("^(\\d+) \"(created|modified|deleted)\" events should have been sent$",
+                (Integer events, String eventType) -> {
+                    long sent = kafkaProducer.history().stream()
+                            .filter((record) -> eventType.equals(header(record, "eventType")))
+                            .count();
+                    Assert.assertEquals("The wrong number of " + eventType + " events were sent",
+                            events.longValue(), sent);
+                });
+
+        And("^the \"modified\" event for \"([^\"]*)\" should carry the ETag \"([^\"]*)\"$",
+                (String key, String eTag) -> {
+                    ProducerRecord<String, byte[]> event = kafkaProducer.history().stream()
+                            .filter((record) -> ListenToS3StepDefs.value(record).equals(key))
+                            .filter((record) -> "modified".equals(header(record, "eventType")))
+                            .findFirst()
+                            .orElseThrow(() -> new AssertionError("No modified event was sent for " + key));
+                    Assert.assertEquals(eTag, header(event, "eTag"));
+                });
+
+        And("^the Storable should hold the ETag \"([^\"]*)\" for \"([^\"]*)\"$", (String eTag, String key) -> {
+            ObjectPage page = new ObjectPage(1);
+            page.add(key, ObjectPage.UNKNOWN_SIZE, eTag, ObjectPage.UNKNOWN_LAST_MODIFIED);
+            Assert.assertEquals(ObjectChange.UNCHANGED, storable.classify(page)[0]);
+        });
+
+        And("^the \"deleted\" event for \"([^\"]*)\" should have been sent to \"([^\"]*)\"$",
+                (String key, String topic) -> {
+                    ProducerRecord<String, byte[]> event = kafkaProducer.history().stream()
+                            .filter((record) -> ListenToS3StepDefs.value(record).equals(key))
+                            .filter((record) -> "deleted".equals(header(record, "eventType")))
+                            .findFirst()
+                            .orElseThrow(() -> new AssertionError("No deleted event was sent for " + key));
+                    Assert.assertEquals(topic, event.topic());
+                });
+
+        And("^(\\d+) records should have been sent with the key \"([^\"]*)\"$", (Integer records, String key) ->
+                Assert.assertEquals("The wrong number of records were keyed " + key, records.longValue(),
+                        kafkaProducer.history().stream().filter((record) -> key.equals(record.key())).count()));
+
+        And("^the record for \"([^\"]*)\" should begin with the value:$", (String key, String value) -> {
+            String sent = kafkaProducer.history().stream()
+                    .map(ListenToS3StepDefs::value)
+                    .filter((recordValue) -> recordValue.contains("\"key\":\"" + key + "\""))
+                    .findFirst()
+                    .orElseThrow(() -> new AssertionError("No record was sent for " + key));
+            Assert.assertTrue("The record sent was " + sent, sent.startsWith(value));
+        });
+
+        And("^the binary records should hold (\\d+) different objects with their ETags$", (Integer objects) -> {
+            Set<String> keys = new HashSet<>();
+            for (ProducerRecord<String, byte[]> record : kafkaProducer.history()) {
+                List<StoredObject> batch = BinaryRecordFormat.decode(record.value());
+                Assert.assertEquals(Integer.toString(batch.size()), header(record, "objectCount"));
+                Assert.assertEquals("binary", header(record, "format"));
+                for (StoredObject object : batch) {
+                    Assert.assertEquals("etag-" + object.getKey().substring("object-".length()), object.getETag());
+                    keys.add(object.getKey());
+                }
+            }
+            Assert.assertEquals("The wrong number of objects were sent", objects.intValue(), keys.size());
+        });
+
+        When("^the Kafka producer is fenced by another producer$", () -> kafkaProducer.fenceProducer());
+
+        Then("^(\\d+) Kafka transactions should have been committed$", (Integer transactions) ->
+                Assert.assertEquals("The wrong number of transactions were committed",
+                        transactions.longValue(), kafkaProducer.commitCount()));
+
+        And("^the Storable should not hold \"([^\"]*)\"$", (String key) ->
+                Assert.assertFalse(key + " is still in the Storable", storable.keyAlreadyRead(key)));
+
+        When("^every object in the Storable is backdated by (\\d+) hours$", (Integer hours) -> {
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+                 Statement statement = connection.createStatement()) {
+                statement.executeUpdate("UPDATE LISTDATA SET Timestamp=datetime(Timestamp, '-" + hours + " hours')");
+            }
+        });
+
+        When("^the retention runs$", () -> listen.getRetention().runOnce());
+
+        Then("^the retention should have pruned (\\d+) objects (by age|no longer listed)$",
+                (Integer objects, String reason) -> {
+                    Number pruned = MetricsRegistry.getDefault().snapshot().get("s3listen_storable_pruned_total" +
+                            "{bucket=\"" + bucketName + "\",reason=\"" + (reason.equals("by age") ? "age" : "unseen") + "\"}");
+                    Assert.assertNotNull("Nothing was pruned", pruned);
+                    Assert.assertEquals("The wrong number of objects were pruned", objects.longValue(),
+                            pruned.longValue());
+                });
+
+        And("^the Storable should hold (\\d+) objects$", (Integer objects) -> {
+            Storable backing = storable instanceof CachingStorable ?
+                    ((CachingStorable) storable).getBackingStorable() : storable;
+            Assert.assertEquals("The Storable holds the wrong number of objects", objects.intValue(),
+                    ((SQLiteStorable) backing).count());
+        });
+
+        Then("^the bootstrap should have stored (\\d+) objects$", (Integer objects) -> {
+            Number stored = MetricsRegistry.getDefault().snapshot()
+                    .get("s3listen_bootstrap_keys_total{bucket=\"" + bucketName + "\"}");
+            Assert.assertNotNull("Nothing was bootstrapped", stored);
+            Assert.assertEquals("The bootstrap stored the wrong number of objects", objects.longValue(),
+                    stored.longValue());
+        });
+
+        Then("^the FileSystemListen should (still|no longer) be bootstrapping$", (String still) ->
+                Assert.assertEquals("The FileSystemListen is bootstrapping", still.equals("still"),
+                        listen.isBootstrapPending()));
+
+        And("^the space freed by pruning should have been handed back$", () -> {
+            Map<String, Number> snapshot = MetricsRegistry.getDefault().snapshot();
+            Number reclaimed = snapshot.get("s3listen_storable_reclaimed_bytes_total{bucket=\"" + bucketName + "\"}");
+            Number size = snapshot.get("s3listen_storable_size_bytes{bucket=\"" + bucketName + "\"}");
+            Assert.assertTrue("No space was handed back", reclaimed != null && reclaimed.longValue() > 0);
+            Assert.assertTrue("The size of the Storable wasn't reported", size != null && size.longValue() > 0);
+        });
+    }
+
+    private void listenWith(String storableType) throws IOException {
+        this.storableType = storableType;
+        Properties properties = bucketProperties();
+        properties.putAll(listenProperties);
+        if (storableType.equals("Mapped Index")) {
+            File indexFile = Files.createTempFile("metadata-index", ".idx").toFile();
+            indexFile.delete();
+            indexFile.deleteOnExit();
+            new File(indexFile.getPath() + ".log").deleteOnExit();
+            properties.setProperty("DataBaseLocation", indexFile.getAbsolutePath());
+            properties.setProperty("MappedIndexCompactEvery", "5");
+            storable = new MappedIndexStorable(properties);
+        } else if (storableType.equals("Parallel SQLite")) {
+            File parallelFile = Files.createTempFile("metadata-parallel", ".db").toFile();
+            parallelFile.deleteOnExit();
+            properties.setProperty("DataBaseLocation", parallelFile.getAbsolutePath());
+            properties.setProperty("SQLiteReadConnections", "4");
+            storable = new SQLiteStorable(properties);
+        } else if (databaseFile != null) {
+            properties.setProperty("DataBaseLocation", databaseFile.getAbsolutePath());
+            storable = new SQLiteStorable(properties);
+        } else {
+            properties.setProperty("InMemory", "true");
+            storable = new SQLiteStorable(properties);
+        }
+        if (storableType.equals("Caching SQLite")) {
+            properties.setProperty("CacheExpectedKeys", "100000");
+            properties.setProperty("CacheMaxFingerprints", "100000");
+            storable = new CachingStorable(storable, properties);
+        }
+        kafkaProducer = new MockProducer<String, byte[]>(true, new StringSerializer(), new ByteArraySerializer()) {
+            @Override
+            public synchronized Future<RecordMetadata> send(ProducerRecord<String, byte[]> record, Callback callback) {
+                if (failingKey == null || !new String(record.value(), StandardCharsets.UTF_8).contains(failingKey))
+                    return super.send(record, callback);
+                KafkaException failure = new KafkaException("The in-memory bucket's producer fails " + failingKey);
+                callback.onCompletion(null, failure);
+                CompletableFuture<RecordMetadata> failed = new CompletableFuture<>();
+                failed.completeExceptionally(failure);
+                return failed;
+            }
+        };
+        fileSystem = new S3FileSystem(inMemoryS3, properties, storable);
+        listen = new FileSystemListen(fileSystem, Duration.ofSeconds(20), properties, storable, kafkaProducer);
+    }
+
+    private Properties bucketProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("bucketName", bucketName);
+        return properties;
+    }
+
+    private static String header(ProducerRecord<String, byte[]> record, String name) {
+        Header header = record.headers().lastHeader(name);
+        return header == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+}
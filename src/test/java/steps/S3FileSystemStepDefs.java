@@ -1,14 +1,32 @@
 package steps;
 
+import com.amazonaws.AmazonServiceException;
 import com.listener.filesystem.S3FileSystem;
+import com.listener.storable.SQLiteStorable;
+import cucumber.api.java.After;
 import cucumber.api.java8.En;
+import io.cucumber.datatable.DataTable;
 import org.junit.Assert;
 
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Properties;
 import java.util.Set;
 
 public class S3FileSystemStepDefs implements En {
     private S3FileSystem s3FileSystem;
+    private SQLiteStorable watermarkStorable;
     private Set<String> resultSet;
+    private InMemoryS3 inMemoryS3;
+    private volatile int requestsWhileFirstPageHeld;
+
+    @After
+    public void closeFileSystem() throws IOException {
+        if (s3FileSystem != null)
+            s3FileSystem.close();
+        if (watermarkStorable != null)
+            watermarkStorable.close();
+    }
 
     public S3FileSystemStepDefs() {
         Given("^a S3FileSystem connected to \"([^\"]*)\"$", (String bucketAddress) -> {
@@ -16,6 +34,9 @@ public class S3FileSystemStepDefs implements En {
         });
         When("^the S3FileSystem does a list$", () -> {
             resultSet = s3FileSystem.list();
+            // Saves the watermarks reached as the listener does once the keys listed have been handled
+            if (watermarkStorable != null)
+                s3FileSystem.lastListingWatermarks().forEach(watermarkStorable::putWatermark);
         });
         Then("^the returned result is equal to ([\\d]+)$", (Integer minimum) -> {
             Assert.assertEquals("The expected set length is greater than " + minimum + ", only "
@@ -25,5 +46,87 @@ public class S3FileSystemStepDefs implements En {
                 (String bucketAddress, Integer numberToRetrieveAtATime) -> {
                     s3FileSystem = new S3FileSystem(bucketAddress, numberToRetrieveAtATime);
         });
+
+        Given("^an in-memory S3 bucket \"([^\"]*)\" with (\\d+) objects under each of (\\d+) prefixes and (\\d+) at the root$",
+                (String bucketName, Integer objectsPerPrefix, Integer prefixes, Integer rootObjects) -> {
+                    inMemoryS3 = new InMemoryS3();
+                    for (int prefix = 0; prefix < prefixes; prefix++) {
+                        for (int object = 0; object < objectsPerPrefix; object++) {
+                            inMemoryS3.putObject(bucketName, "prefix-" + prefix + "/day/object-" + object,
+                                    object, "etag-" + object);
+                        }
+                    }
+                    for (int object = 0; object < rootObjects; object++) {
+                        inMemoryS3.putObject(bucketName, "root-object-" + object, object, "etag-" + object);
+                    }
+                });
+        Given("^a S3FileSystem on the in-memory bucket \"([^\"]*)\" with the properties:$",
+                (String bucketName, DataTable propertyTable) -> {
+                    Properties properties = new Properties();
+                    properties.setProperty("bucketName", bucketName);
+                    propertyTable.asMap(String.class, String.class).forEach(properties::put);
+                    s3FileSystem = new S3FileSystem(inMemoryS3, properties);
+                    watermarkStorable = null;
+                });
+        Given("^a S3FileSystem on the in-memory bucket \"([^\"]*)\" keeping watermarks with the properties:$",
+                (String bucketName, DataTable propertyTable) -> {
+                    Properties properties = new Properties();
+                    properties.setProperty("bucketName", bucketName);
+                    properties.setProperty("InMemory", "true");
+                    propertyTable.asMap(String.class, String.class).forEach(properties::put);
+                    watermarkStorable = new SQLiteStorable(properties);
+                    s3FileSystem = new S3FileSystem(inMemoryS3, properties, watermarkStorable);
+                });
+        When("^the object \"([^\"]*)\" is put in the in-memory bucket \"([^\"]*)\"$",
+                (String key, String bucketName) -> {
+                    inMemoryS3.putObject(bucketName, key, 1, "etag");
+                });
+        When("^the S3FileSystem lists in pages, holding the first page for (\\d+) milliseconds$",
+                (Integer millis) -> {
+                    resultSet = new HashSet<>();
+                    requestsWhileFirstPageHeld = -1;
+                    s3FileSystem.listInPages((page) -> {
+                        if (requestsWhileFirstPageHeld < 0) {
+                            try {
+                                Thread.sleep(millis);
+                            } catch (InterruptedException exc) {
+                                Thread.currentThread().interrupt();
+                            }
+                            requestsWhileFirstPageHeld = inMemoryS3.getListRequests();
+                        }
+                        resultSet.addAll(page);
+                    });
+                });
+        When("^the in-memory S3 fails list requests after the first (\\d+)$",
+                (Integer requests) -> inMemoryS3.failListRequestsAfter(requests));
+        When("^the in-memory S3 throws an Error on list requests after the first (\\d+)$",
+                (Integer requests) -> inMemoryS3.failListRequestsWithErrorAfter(requests));
+        Then("^the S3FileSystem list should fail$", () -> {
+            try {
+                s3FileSystem.list();
+                Assert.fail("The listing didn't fail");
+            } catch (AmazonServiceException exc) {
+                Assert.assertEquals("The in-memory S3 is failing list requests", exc.getErrorMessage());
+            }
+        });
+        Then("^the S3FileSystem list should fail with the Error$", () -> {
+            try {
+                s3FileSystem.list();
+                Assert.fail("The listing didn't fail");
+            } catch (IllegalStateException exc) {
+                Assert.assertTrue("The listing didn't fail with the Error: " + exc.getCause(),
+                        exc.getCause() instanceof StackOverflowError);
+            }
+        });
+        Then("^(\\d+) list requests should have been made while the first page was held$", (Integer requests) ->
+                Assert.assertEquals("The pages weren't listed ahead of the one held",
+                        requests.intValue(), requestsWhileFirstPageHeld));
+        Then("^the in-memory S3 was not listed by the thread listing$", () ->
+                Assert.assertFalse("The pages were requested by the thread listing: " + inMemoryS3.getListingThreads(),
+                        inMemoryS3.getListingThreads().contains(Thread.currentThread().getName())));
+        Then("^the in-memory S3 was listed by (\\d+) threads$", (Integer threads) -> {
+            Assert.assertEquals("The listing didn't use the expected number of threads: "
+                    + inMemoryS3.getListingThreads(), threads.intValue(), inMemoryS3.getListingThreads().size());
+        });
     }
 }
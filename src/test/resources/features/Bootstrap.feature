@@ -0,0 +1,43 @@
+Feature: A bucket already holding objects is bootstrapped into the Storable without sending them
+
+  Scenario Outline: The bootstrap stores every object listed without sending an event for any of them
+    Given an in-memory S3 bucket "<bucket>" holding 2500 objects
+    And the Storable is bootstrapped 1000 objects at a time
+    And a FileSystemListen on the in-memory bucket with a <storable> Storable
+    When the in-memory bucket is polled
+    Then 0 "created" events should have been sent
+    And the bootstrap should have stored 2500 objects
+    And the FileSystemListen should no longer be bootstrapping
+    When the object "object-3" is overwritten in the in-memory bucket with the ETag "etag-rewritten"
+    And the object "object-new" is put back in the in-memory bucket
+    And the in-memory bucket is polled
+    Then 1 "created" events should have been sent
+    And 1 "modified" events should have been sent
+
+    Examples:
+      | storable       | bucket                   |
+      | SQLite         | bootstrap-bucket         |
+      | Caching SQLite | caching-bootstrap-bucket |
+
+  Scenario: An interrupted bootstrap resumes without storing the objects already stored again
+    Given an in-memory S3 bucket "resumed-bootstrap-bucket" holding 2500 objects
+    And the Storable is kept in a database file
+    And the bucket is listed 500 objects a page
+    And the Storable is bootstrapped 1000 objects at a time
+    And a FileSystemListen on the in-memory bucket with a SQLite Storable
+    When the in-memory bucket fails list requests after the first 3
+    And the in-memory bucket is polled, which fails
+    Then the Storable should hold 1000 objects
+    And the FileSystemListen should still be bootstrapping
+    When the in-memory bucket answers list requests again
+    And the FileSystemListen is restarted
+    Then the FileSystemListen should still be bootstrapping
+    When the in-memory bucket is polled
+    Then 0 "created" events should have been sent
+    And the Storable should hold 2500 objects
+    And the bootstrap should have stored 2500 objects
+    When the FileSystemListen is restarted
+    Then the FileSystemListen should no longer be bootstrapping
+    When the object "object-new" is put back in the in-memory bucket
+    And the in-memory bucket is polled
+    Then 1 "created" events should have been sent
@@ -0,0 +1,47 @@
+Feature: The cache is loaded from a snapshot at startup rather than from every key stored
+
+  Scenario: A cache closed cleanly is loaded from the snapshot written as it closed
+    Given a Caching SQLite Storable on disk that snapshots its cache
+    When 1000 objects are written to the Caching Storable
+    And every object stored is backdated by 1 hours
+    And the Caching Storable is closed
+    And the Caching Storable is reopened
+    Then the Caching Storable should have been warmed from its snapshot
+    And 0 keys stored after the snapshot should have been read
+    And every object written should be unchanged without asking the backing Storable
+    And 200 objects never written should be new without asking the backing Storable
+    And the reopened Caching Storable is closed
+
+  Scenario: Keys stored after the last snapshot are read again after a crash
+    Given a Caching SQLite Storable on disk that snapshots its cache
+    When 1000 objects are written to the Caching Storable
+    And every object stored is backdated by 1 hours
+    And the Caching Storable writes a snapshot
+    And 50 objects are written to the Caching Storable
+    And the process stops without closing the Caching Storable
+    And the Caching Storable is reopened
+    Then the Caching Storable should have been warmed from its snapshot
+    And 50 keys stored after the snapshot should have been read
+    And every object written should be unchanged without asking the backing Storable
+    And the reopened Caching Storable is closed
+
+  Scenario: A snapshot taken before objects were removed isn't used
+    Given a Caching SQLite Storable on disk that snapshots its cache
+    When 100 objects are written to the Caching Storable
+    And the Caching Storable writes a snapshot
+    And the object "object-3" is removed from the Caching Storable
+    And the process stops without closing the Caching Storable
+    And the Caching Storable is reopened
+    Then the Caching Storable should not have been warmed from its snapshot
+    And the Caching Storable should not hold "object-3"
+    And the reopened Caching Storable is closed
+
+  Scenario: A corrupt snapshot is ignored
+    Given a Caching SQLite Storable on disk that snapshots its cache
+    When 100 objects are written to the Caching Storable
+    And the Caching Storable is closed
+    And the snapshot file is corrupted
+    And the Caching Storable is reopened
+    Then the Caching Storable should not have been warmed from its snapshot
+    And every object written should be unchanged without asking the backing Storable
+    And the reopened Caching Storable is closed
@@ -0,0 +1,40 @@
+Feature: Listener instances split the buckets between them through leases
+
+  Scenario: Two instances split the buckets and a bucket is only sent once
+    Given an in-memory S3 shared by the instances with the buckets "bucket-a,bucket-b,bucket-c,bucket-d" holding 50 objects each
+    And a listener instance "instance-1" over the buckets "bucket-a,bucket-b,bucket-c,bucket-d" with leases of 60000 milliseconds
+    And a listener instance "instance-2" over the buckets "bucket-a,bucket-b,bucket-c,bucket-d" with leases of 60000 milliseconds
+    When the instance "instance-1" polls every bucket
+    And the instance "instance-2" polls every bucket
+    Then the instance "instance-1" should hold the leases of 4 buckets
+    And the instance "instance-2" should hold the leases of 0 buckets
+    When the instance "instance-1" polls every bucket
+    And the instance "instance-2" polls every bucket
+    Then the instance "instance-1" should hold the leases of 2 buckets
+    And the instance "instance-2" should hold the leases of 2 buckets
+    And the instance "instance-1" should have sent 200 messages
+    And the instance "instance-2" should have sent 0 messages
+
+  Scenario: A bucket fails over once its owner stops renewing the lease
+    Given an in-memory S3 shared by the instances with the buckets "bucket-a" holding 50 objects each
+    And a listener instance "instance-1" over the buckets "bucket-a" with leases of 500 milliseconds
+    And a listener instance "instance-2" over the buckets "bucket-a" with leases of 500 milliseconds
+    When the instance "instance-1" polls every bucket
+    And the instance "instance-2" polls every bucket
+    Then the instance "instance-2" should hold the leases of 0 buckets
+    When 800 milliseconds have passed
+    And the object "object-new" is put in the shared bucket "bucket-a"
+    And the instance "instance-2" polls every bucket
+    Then the lease of "bucket-a" should be held by "instance-2"
+    And the instance "instance-1" should have sent 50 messages
+    And the instance "instance-2" should have sent 1 messages
+
+  Scenario: A stopped instance hands its buckets over straight away
+    Given an in-memory S3 shared by the instances with the buckets "bucket-a,bucket-b" holding 10 objects each
+    And a listener instance "instance-1" over the buckets "bucket-a,bucket-b" with leases of 60000 milliseconds
+    And a listener instance "instance-2" over the buckets "bucket-a,bucket-b" with leases of 60000 milliseconds
+    When the instance "instance-1" polls every bucket
+    And the instance "instance-1" is stopped
+    And the instance "instance-2" polls every bucket
+    Then the instance "instance-2" should hold the leases of 2 buckets
+    And the instance "instance-2" should have sent 0 messages
@@ -0,0 +1,39 @@
+Feature: Objects deleted from the bucket are sent as deleted
+
+  Scenario Outline: An object that is no longer listed is sent to the delete topic and removed from the Storable
+    Given an in-memory S3 bucket "deleting-bucket" holding 10 objects
+    And deletions are detected
+    And a FileSystemListen on the in-memory bucket with a <storable> Storable
+    When the in-memory bucket is polled
+    Then 10 "created" events should have been sent
+    And 0 "deleted" events should have been sent
+    When the object "object-2" is deleted from the in-memory bucket
+    And the object "object-7" is deleted from the in-memory bucket
+    And the in-memory bucket is polled
+    And the in-memory bucket is polled
+    Then 2 "deleted" events should have been sent
+    And the "deleted" event for "object-7" should have been sent to "deleting-bucketDeleteTopic"
+    And the Storable should not hold "object-2"
+    When the object "object-2" is put back in the in-memory bucket
+    And the in-memory bucket is polled
+    Then 11 "created" events should have been sent
+    And 2 "deleted" events should have been sent
+
+    Examples:
+      | storable       |
+      | SQLite         |
+      | Caching SQLite |
+
+  Scenario: Deletions are only swept after a full listing
+    Given an in-memory S3 bucket "incremental-deleting-bucket" holding 10 objects
+    And deletions are detected
+    And the bucket is listed incrementally with a full listing every 3 polls
+    And a FileSystemListen on the in-memory bucket with a SQLite Storable
+    When the in-memory bucket is polled
+    And the object "object-4" is deleted from the in-memory bucket
+    And the in-memory bucket is polled
+    And the in-memory bucket is polled
+    Then 0 "deleted" events should have been sent
+    When the in-memory bucket is polled
+    Then 1 "deleted" events should have been sent
+    And the Storable should not hold "object-4"
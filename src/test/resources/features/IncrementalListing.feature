@@ -0,0 +1,47 @@
+Feature: The S3FileSystem can list only the keys after the last listing
+
+  Scenario: Only new keys are listed between full listings
+    Given an in-memory S3 bucket "incremental-bucket" with 100 objects under each of 4 prefixes and 0 at the root
+    And a S3FileSystem on the in-memory bucket "incremental-bucket" keeping watermarks with the properties:
+      | S3MaxKeysPerList     | 30   |
+      | S3IncrementalListing | true |
+      | S3FullListingEvery   | 3    |
+    When the S3FileSystem does a list
+    Then the returned result is equal to 400
+    When the object "prefix-9/day/object-0" is put in the in-memory bucket "incremental-bucket"
+    And the object "prefix-0/late/object-0" is put in the in-memory bucket "incremental-bucket"
+    And the S3FileSystem does a list
+    Then the returned result is equal to 1
+    When the S3FileSystem does a list
+    Then the returned result is equal to 0
+    When the S3FileSystem does a list
+    Then the returned result is equal to 402
+
+  Scenario: Each discovered prefix keeps its own watermark
+    Given an in-memory S3 bucket "incremental-bucket" with 100 objects under each of 4 prefixes and 0 at the root
+    And a S3FileSystem on the in-memory bucket "incremental-bucket" keeping watermarks with the properties:
+      | S3MaxKeysPerList     | 30   |
+      | S3ShardDelimiter     | /    |
+      | S3ListingParallelism | 2    |
+      | S3IncrementalListing | true |
+    When the S3FileSystem does a list
+    Then the returned result is equal to 400
+    When the object "prefix-0/day/zz-object" is put in the in-memory bucket "incremental-bucket"
+    And the object "prefix-2/day/zz-object" is put in the in-memory bucket "incremental-bucket"
+    And the S3FileSystem does a list
+    Then the returned result is equal to 2
+
+  Scenario: The watermarks aren't moved past objects whose events failed to be sent
+    Given an in-memory S3 bucket "undelivered-incremental-bucket" holding 10 objects
+    And the bucket is listed incrementally with a full listing every 30 polls
+    And a FileSystemListen on the in-memory bucket with a SQLite Storable
+    When the in-memory bucket is polled
+    Then 10 "created" events should have been sent
+    When the object "object-new" is put back in the in-memory bucket
+    And sending the events for "object-new" to Kafka fails
+    And the in-memory bucket is polled
+    Then 10 "created" events should have been sent
+    When sending to Kafka succeeds again
+    And the in-memory bucket is polled
+    Then 11 "created" events should have been sent
+    And the Storable should hold the ETag "etag-put-back" for "object-new"
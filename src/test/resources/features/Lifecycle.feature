@@ -0,0 +1,23 @@
+Feature: The listeners are started and shut down by a lifecycle with a single shutdown hook
+
+  Scenario: A shutdown drains the records in flight into the storable before closing
+    Given a lifecycle managing a FileSystemListen on a bucket of 300 objects that doesn't flush each poll
+    When the lifecycle is started and has polled once
+    Then 300 records should have been sent without being acknowledged
+    And the database should hold 0 keys once it is reopened
+    When the lifecycle is shut down
+    Then the Kafka producer should have been closed
+    And the listing threads of the bucket should have stopped
+    And the database should hold 300 keys once it is reopened
+    And the lifecycle should have reported how long the startup took
+    And the lifecycle should have reported how long the drain took
+    And the lifecycle should have reported how long the shutdown took
+
+  Scenario: Polls don't add shutdown hooks and the lifecycle adds one
+    Given a lifecycle managing a FileSystemListen on a bucket of 10 objects that doesn't flush each poll
+    When the FileSystemListen polls 5 more times
+    Then 0 shutdown hooks should have been added
+    When the lifecycle's shutdown hook is installed 3 times
+    Then 1 shutdown hooks should have been added
+    When the lifecycle is shut down
+    Then 0 shutdown hooks should have been added
@@ -1,17 +1,22 @@
 Feature: Listen to a file system and store changes in KafkaProducer
 
-  Scenario: S3 has no files on it
+  Scenario Outline: S3 has no files on it
     Given a FileSystem with a list ability
-    And a SQLite Storable
+    And a <storable> Storable
     And a Mock KafkaProducer
     And a FileSystemListen
     When the FileSystem is empty
     And the FileSystemListen listens to the bucket
     Then the KafkaProducer should have had 0 messages sent to it.
 
+    Examples:
+      | storable     |
+      | SQLite       |
+      | Mapped Index |
+
   Scenario Outline: S3 has just gotten objects put in it
     Given a FileSystem with a list ability
-    And a SQLite Storable
+    And a <storable> Storable
     And a Mock KafkaProducer
     And a FileSystemListen
     When the FileSystem has just had <number_of_objects> objects put in it
@@ -21,10 +26,102 @@ Feature: Listen to a file system and store changes in KafkaProducer
     But the Storable should have had <output> messages written to it
 
     Examples:
-      | number_of_objects | output | successfully_or_not | all_or_not |
-      | 1                 | 1      | successfully        | all        |
-      | 2                 | 2      | successfully        | all        |
-      | 20                | 14     | successfully        | 70 percent |
-      | 1000              | 0      | unsuccessfully      | all        |
-      | 100000            | 30000  | unsuccessfully      | 70 percent |
-      | 100000            | 100000 | successfully        | all        |
+      | storable        | number_of_objects | output | successfully_or_not | all_or_not |
+      | SQLite          | 1                 | 1      | successfully        | all        |
+      | SQLite          | 2                 | 2      | successfully        | all        |
+      | SQLite          | 20                | 14     | successfully        | 70 percent |
+      | SQLite          | 1000              | 0      | unsuccessfully      | all        |
+      | SQLite          | 100000            | 30000  | unsuccessfully      | 70 percent |
+      | SQLite          | 100000            | 100000 | successfully        | all        |
+      | Parallel SQLite | 20                | 14     | successfully        | 70 percent |
+      | Parallel SQLite | 100000            | 30000  | unsuccessfully      | 70 percent |
+      | Parallel SQLite | 100000            | 100000 | successfully        | all        |
+      | Mapped Index    | 1                 | 1      | successfully        | all        |
+      | Mapped Index    | 2                 | 2      | successfully        | all        |
+      | Mapped Index    | 20                | 14     | successfully        | 70 percent |
+      | Mapped Index    | 1000              | 0      | unsuccessfully      | all        |
+      | Mapped Index    | 100000            | 30000  | unsuccessfully      | 70 percent |
+      | Mapped Index    | 100000            | 100000 | successfully        | all        |
+
+  Scenario Outline: Objects already in the Storable are not sent again
+    Given a FileSystem with a list ability
+    And a <storable> Storable
+    And a Mock KafkaProducer
+    And a FileSystemListen
+    When the FileSystem has just had 1200 objects put in it
+    And the FileSystemListen listens to the bucket
+    And the KafkaProducer successfully sent all of the messages
+    And the FileSystemListen listens to the bucket
+    Then the KafkaProducer should have had 1200 messages sent to it.
+    But the Storable should have had 1200 messages written to it
+
+    Examples:
+      | storable        |
+      | SQLite          |
+      | Parallel SQLite |
+      | Mapped Index    |
+
+  Scenario: A caching Storable answers repeated polls from memory
+    Given a FileSystem with a list ability
+    And a Caching SQLite Storable
+    And a Mock KafkaProducer
+    And a FileSystemListen
+    When the FileSystem has just had 1200 objects put in it
+    And the FileSystemListen listens to the bucket
+    And the KafkaProducer successfully sent all of the messages
+    And the FileSystemListen listens to the bucket
+    Then the KafkaProducer should have had 1200 messages sent to it.
+    But the Storable should have had 1200 messages written to it
+    And the cache should have answered 2400 lookups without the backing Storable
+
+  Scenario Outline: A FileSystem listed in pages is compared and sent a page at a time
+    Given a FileSystem with a list ability that lists 100 objects a page
+    And a <storable> Storable
+    And a Mock KafkaProducer
+    And a FileSystemListen
+    When the FileSystem has just had 1050 objects put in it
+    And the FileSystemListen listens to the bucket
+    And the KafkaProducer successfully sent 70 percent of the messages
+    And the FileSystemListen listens to the bucket
+    Then the KafkaProducer should have had 1365 messages sent to it.
+    But the Storable should have had 735 messages written to it
+
+    Examples:
+      | storable        |
+      | SQLite          |
+      | Parallel SQLite |
+      | Mapped Index    |
+
+  Scenario Outline: Sends wait for room in the in flight window
+    Given a FileSystem with a list ability
+    And a <storable> Storable
+    And a Mock KafkaProducer
+    And a FileSystemListen with an in flight window of 25
+    When the FileSystem has just had 500 objects put in it
+    And the FileSystemListen listens to the bucket in the background
+    Then the KafkaProducer should be holding 25 unacknowledged messages
+    When the KafkaProducer acknowledges messages until the background listen has finished
+    Then the KafkaProducer should have had 500 messages sent to it.
+    But the Storable should have had 500 messages written to it
+
+    Examples:
+      | storable     |
+      | SQLite       |
+      | Mapped Index |
+
+  Scenario Outline: The FileSystemListen polls on a schedule until it is stopped
+    Given a FileSystem with a list ability
+    And a <storable> Storable
+    And a Mock KafkaProducer that acknowledges every message
+    And a FileSystemListen polling every 50 milliseconds
+    When the FileSystem has just had 300 objects put in it
+    And the FileSystemListen listens forever in the background
+    And the FileSystemListen has polled 3 times
+    And the FileSystemListen is stopped
+    Then the KafkaProducer should have had 300 messages sent to it.
+    But the Storable should have had 300 messages written to it
+
+    Examples:
+      | storable     |
+      | SQLite       |
+      | Mapped Index |
@@ -0,0 +1,19 @@
+Feature: Keys listed twice in one poll are only sent once
+
+  Scenario Outline: Overlapping shard prefixes list some keys twice
+    Given an in-memory S3 bucket "<bucket>" holding 4 objects under each of "logs/2025/,logs/2026/,images/"
+    And the bucket is listed as the shard prefixes "logs/,logs/2025/,images/"
+    And keys listed twice in a poll are dropped
+    And a FileSystemListen on the in-memory bucket with a <storable> Storable
+    When the in-memory bucket is polled
+    Then <events> "created" events should have been sent
+    And the metric s3listen_files_listed_total{bucket="<bucket>"} should be 16
+    And the metric s3listen_files_listed_twice_total{bucket="<bucket>"} should be <listed_twice>
+    When the in-memory bucket is polled
+    Then <events> "created" events should have been sent
+
+    Examples:
+      | bucket          | storable       | events | listed_twice |
+      | overlap-sqlite  | SQLite         | 12     | 4            |
+      | overlap-mapped  | Mapped Index   | 12     | 4            |
+      | overlap-caching | Caching SQLite | 12     | 4            |
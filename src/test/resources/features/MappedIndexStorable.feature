@@ -0,0 +1,23 @@
+Feature: The mapped index Storable keeps its keys without a database
+
+  Scenario: The log is replayed after a crash
+    Given a Mapped Index Storable compacting every 100 objects
+    When 250 objects are written to the Mapped Index Storable one at a time
+    And the Mapped Index Storable crashes part way through writing a record
+    And the Mapped Index Storable is reopened
+    Then the Mapped Index Storable should hold 250 keys
+    And the Mapped Index Storable should have replayed 50 objects from its log
+    And every object written should be in the Mapped Index Storable
+    When 10 objects are written to the Mapped Index Storable one at a time
+    Then the Mapped Index Storable should hold 260 keys
+
+  Scenario: Compaction keeps the metadata of each object and the order they were written in
+    Given a Mapped Index Storable compacting every 100 objects
+    When 150 objects are written to the Mapped Index Storable one at a time
+    And the object "object-7" is written to the Mapped Index Storable with the ETag "etag-rewritten"
+    And the Mapped Index Storable is closed and reopened
+    Then the Mapped Index Storable should have replayed 0 objects from its log
+    And the Mapped Index Storable should hold 150 keys
+    And the object "object-7" with the ETag "etag-rewritten" should be unchanged in the Mapped Index Storable
+    And the object "object-8" with the ETag "etag-rewritten" should be modified in the Mapped Index Storable
+    And the Mapped Index Storable should list the keys in the order they were written
@@ -0,0 +1,24 @@
+Feature: The listener records metrics about each poll
+
+  Scenario: Each phase of a poll is timed and the files are counted
+    Given a FileSystem for the bucket "metrics-bucket" holding 250 objects listed 100 a page
+    When the bucket is polled 3 times
+    Then the metric s3listen_poll_seconds_count{bucket="metrics-bucket"} should be 3
+    And the metric s3listen_poll_phase_seconds_count{bucket="metrics-bucket",phase="list"} should be 3
+    And the metric s3listen_poll_phase_seconds_count{bucket="metrics-bucket",phase="diff"} should be 3
+    And the metric s3listen_poll_phase_seconds_count{bucket="metrics-bucket",phase="send"} should be 3
+    And the metric s3listen_poll_phase_seconds_count{bucket="metrics-bucket",phase="store"} should be 3
+    And the metric s3listen_files_listed_total{bucket="metrics-bucket"} should be 750
+    And the metric s3listen_files_not_in_storable_total{bucket="metrics-bucket"} should be 250
+    And the metric s3listen_kafka_acknowledged_total{bucket="metrics-bucket"} should be 250
+    And the metric s3listen_kafka_send_failures_total{bucket="metrics-bucket"} should be 0
+    And the metric s3listen_storable_lookup_seconds_count{bucket="metrics-bucket",storable="sqlite",lookup="chunk"} should be 9
+
+  Scenario: The metrics are served in the Prometheus text format
+    Given a FileSystem for the bucket "served-bucket" holding 10 objects listed 100 a page
+    When the bucket is polled 1 times
+    And the metrics are served on any free port
+    And the metrics are fetched from the endpoint
+    Then the metrics text should contain the line: # TYPE s3listen_poll_phase_seconds histogram
+    And the metrics text should contain the line: s3listen_files_listed_total{bucket="served-bucket"} 10
+    And the metrics text should contain the line: s3listen_poll_seconds_count{bucket="served-bucket"} 1
@@ -0,0 +1,24 @@
+Feature: Listen to many buckets from one process
+
+  Scenario: Each bucket is polled on the shared threads and keeps its own storable
+    Given an in-memory S3 with the buckets "bucket-a,bucket-b,bucket-c" holding 200 objects each
+    And a MultiBucketListen over the buckets "bucket-a,bucket-b,bucket-c" on 2 threads
+    When the MultiBucketListen listens in the background until every bucket has polled 2 times
+    Then 600 messages should have been sent to the shared KafkaProducer
+    And each bucket's messages should have gone to its own topic
+    And each bucket's Storable should hold 200 keys
+
+  Scenario: Each bucket gets its own database and its own overrides
+    Given the multi-bucket properties:
+      | buckets                           | bucket-a, bucket-b |
+      | DataBaseLocation                  | /data/listen.db    |
+      | S3MaxKeysPerList                  | 1000               |
+      | bucket.bucket-b.S3MaxKeysPerList  | 50                 |
+    Then the bucket "bucket-a" should have the properties:
+      | bucketName       | bucket-a                 |
+      | DataBaseLocation | /data/listen-bucket-a.db |
+      | S3MaxKeysPerList | 1000                     |
+    And the bucket "bucket-b" should have the properties:
+      | bucketName       | bucket-b                 |
+      | DataBaseLocation | /data/listen-bucket-b.db |
+      | S3MaxKeysPerList | 50                       |
@@ -0,0 +1,71 @@
+Feature: Objects overwritten in place are sent as modified
+
+  Scenario Outline: An object with a new ETag is sent again as modified
+    Given an in-memory S3 bucket "metadata-bucket" holding 20 objects
+    And a FileSystemListen on the in-memory bucket with a <storable> Storable
+    When the in-memory bucket is polled
+    Then 20 "created" events should have been sent
+    When the object "object-3" is overwritten in the in-memory bucket with the ETag "etag-rewritten"
+    And the in-memory bucket is polled
+    And the in-memory bucket is polled
+    Then 20 "created" events should have been sent
+    And 1 "modified" events should have been sent
+    And the "modified" event for "object-3" should carry the ETag "etag-rewritten"
+    And the Storable should hold the ETag "etag-rewritten" for "object-3"
+
+    Examples:
+      | storable       |
+      | SQLite         |
+      | Caching SQLite |
+      | Mapped Index   |
+
+  Scenario Outline: An object overwritten back to an earlier ETag is sent as modified again
+    Given an in-memory S3 bucket "<bucket>" holding 20 objects
+    And a FileSystemListen on the in-memory bucket with a <storable> Storable
+    When the in-memory bucket is polled
+    And the object "object-3" is overwritten in the in-memory bucket with the ETag "etag-rewritten"
+    And the in-memory bucket is polled
+    And the object "object-3" is overwritten in the in-memory bucket with the ETag "etag-3"
+    And the in-memory bucket is polled
+    And the in-memory bucket is polled
+    Then 20 "created" events should have been sent
+    And 2 "modified" events should have been sent
+    And the Storable should hold the ETag "etag-3" for "object-3"
+
+    Examples:
+      | storable       | bucket                   |
+      | SQLite         | reverted-bucket          |
+      | Caching SQLite | reverted-caching-bucket  |
+
+  Scenario: Objects overwritten in a page of many chunks are found by the parallel diff
+    Given an in-memory S3 bucket "parallel-bucket" holding 2600 objects
+    And a FileSystemListen on the in-memory bucket with a Parallel SQLite Storable
+    When the in-memory bucket is polled
+    Then 2600 "created" events should have been sent
+    When the object "object-3" is overwritten in the in-memory bucket with the ETag "etag-rewritten"
+    And the object "object-2599" is overwritten in the in-memory bucket with the ETag "etag-rewritten"
+    And the in-memory bucket is polled
+    Then 2600 "created" events should have been sent
+    And 2 "modified" events should have been sent
+    And the Storable should hold the ETag "etag-rewritten" for "object-2599"
+
+  Scenario: A poll of more objects than can wait to be written holds back its sends until they are stored
+    Given an in-memory S3 bucket "write-queue-bucket" holding 2500 objects
+    And up to 100 objects wait to be written to the Storable
+    And a FileSystemListen on the in-memory bucket with a SQLite Storable
+    When the in-memory bucket is polled
+    Then 2500 "created" events should have been sent
+    And the Storable should hold 2500 objects
+    When the in-memory bucket is polled
+    Then 2500 "created" events should have been sent
+
+  Scenario: Keys stored before metadata was kept are migrated without being sent again
+    Given an in-memory S3 bucket "legacy-bucket" holding 10 objects
+    And a SQLite database made before metadata was kept holding every key of the in-memory bucket
+    And a FileSystemListen on the in-memory bucket with a SQLite Storable
+    When the in-memory bucket is polled
+    Then 0 "created" events should have been sent
+    And the Storable should hold the ETag "etag-4" for "object-4"
+    When the object "object-4" is overwritten in the in-memory bucket with the ETag "etag-rewritten"
+    And the in-memory bucket is polled
+    Then 1 "modified" events should have been sent
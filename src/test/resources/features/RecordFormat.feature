@@ -0,0 +1,45 @@
+Feature: The records events are sent in are keyed, encoded and batched as configured
+
+  Scenario: Records are keyed by the prefix of their object
+    Given an in-memory S3 bucket "prefix-bucket" holding 4 objects under each of "logs/2025/,logs/2026/,images/"
+    And the records are keyed by the first 1 segments of the object key
+    And a FileSystemListen on the in-memory bucket with a SQLite Storable
+    When the in-memory bucket is polled
+    Then 12 "created" events should have been sent
+    And 8 records should have been sent with the key "logs"
+    And 4 records should have been sent with the key "images"
+
+  Scenario: Events are sent as compact JSON
+    Given an in-memory S3 bucket "json-bucket" holding 5 objects
+    And the records are sent in the "json" format
+    And a FileSystemListen on the in-memory bucket with a SQLite Storable
+    When the in-memory bucket is polled
+    Then 5 "created" events should have been sent
+    And the record for "object-3" should begin with the value:
+      """
+      {"eventType":"created","key":"object-3","eTag":"etag-3","size":3,"lastModified":
+      """
+
+  Scenario Outline: Many objects are batched into each binary record
+    Given an in-memory S3 bucket "batch-bucket" holding 20 objects
+    And the records are sent in the "binary" format
+    And up to 8 objects are sent in each record
+    And a FileSystemListen on the in-memory bucket with a <storable> Storable
+    When the in-memory bucket is polled
+    Then 3 "created" events should have been sent
+    And the binary records should hold 20 different objects with their ETags
+    And the Storable should hold the ETag "etag-17" for "object-17"
+    When the object "object-9" is overwritten in the in-memory bucket with the ETag "etag-rewritten"
+    And the in-memory bucket is polled
+    Then 1 "modified" events should have been sent
+
+    Examples:
+      | storable     |
+      | SQLite       |
+      | Mapped Index |
+
+  Scenario: Plain records aren't batched since the keys they'd be joined with can hold any character
+    Given an in-memory S3 bucket "plain-batch-bucket" holding 20 objects
+    And the records are sent in the "plain" format
+    And up to 8 objects are sent in each record
+    Then a FileSystemListen on the in-memory bucket can't be created with a SQLite Storable
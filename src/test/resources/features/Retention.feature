@@ -0,0 +1,43 @@
+Feature: The Storable is pruned so it doesn't grow for as long as the bucket is listened to
+
+  Scenario Outline: Objects no longer listed are pruned without being sent as deleted
+    Given an in-memory S3 bucket "<bucket>" holding 10 objects
+    And objects that 2 complete listings didn't list are pruned
+    And a FileSystemListen on the in-memory bucket with a <storable> Storable
+    When the in-memory bucket is polled
+    And the object "object-2" is deleted from the in-memory bucket
+    And the in-memory bucket is polled
+    And the retention runs
+    Then the Storable should hold 10 objects
+    When the in-memory bucket is polled
+    And the retention runs
+    Then the retention should have pruned 1 objects no longer listed
+    And the Storable should hold 9 objects
+    And the Storable should not hold "object-2"
+    And 0 "deleted" events should have been sent
+    When the object "object-2" is put back in the in-memory bucket
+    And the in-memory bucket is polled
+    Then 11 "created" events should have been sent
+
+    Examples:
+      | storable       | bucket                          |
+      | SQLite         | unseen-retention-bucket         |
+      | Caching SQLite | unseen-caching-retention-bucket |
+
+  Scenario: Objects stored for longer than the retention that are no longer listed are pruned and their space handed back
+    Given an in-memory S3 bucket "aged-retention-bucket" holding 2000 objects
+    And the Storable is kept in a database file
+    And objects stored for over 24 hours are pruned
+    And the space freed by pruning is handed back
+    And a FileSystemListen on the in-memory bucket with a SQLite Storable
+    When the in-memory bucket is polled
+    And every object in the Storable is backdated by 48 hours
+    And the first 1000 objects are deleted from the in-memory bucket
+    And the object "object-new" is put back in the in-memory bucket
+    And the in-memory bucket is polled
+    And the retention runs
+    Then the retention should have pruned 1000 objects by age
+    And the Storable should hold 1001 objects
+    And the space freed by pruning should have been handed back
+    When the in-memory bucket is polled
+    Then 2001 "created" events should have been sent
@@ -0,0 +1,69 @@
+Feature: The S3FileSystem can list a bucket as prefixes in parallel
+
+  Scenario: The S3FileSystem lists the whole bucket on one thread
+    Given an in-memory S3 bucket "shard-bucket" with 250 objects under each of 8 prefixes and 3 at the root
+    And a S3FileSystem on the in-memory bucket "shard-bucket" with the properties:
+      | S3MaxKeysPerList | 100 |
+    When the S3FileSystem does a list
+    Then the returned result is equal to 2003
+    And the in-memory S3 was listed by 1 threads
+
+  Scenario: The S3FileSystem discovers prefixes with a delimiter and lists them in parallel
+    Given an in-memory S3 bucket "shard-bucket" with 250 objects under each of 8 prefixes and 3 at the root
+    And a S3FileSystem on the in-memory bucket "shard-bucket" with the properties:
+      | S3MaxKeysPerList     | 100 |
+      | S3ShardDelimiter     | /   |
+      | S3ListingParallelism | 4   |
+    When the S3FileSystem does a list
+    Then the returned result is equal to 2003
+    And the in-memory S3 was listed by 5 threads
+
+  Scenario: The S3FileSystem only lists the configured prefixes
+    Given an in-memory S3 bucket "shard-bucket" with 250 objects under each of 8 prefixes and 3 at the root
+    And a S3FileSystem on the in-memory bucket "shard-bucket" with the properties:
+      | S3MaxKeysPerList     | 100                         |
+      | S3ShardPrefixes      | prefix-1/,prefix-2/,prefix-5/ |
+      | S3ListingParallelism | 3                           |
+    When the S3FileSystem does a list
+    Then the returned result is equal to 750
+
+  Scenario: The pages listed are counted in the metrics
+    Given an in-memory S3 bucket "metered-bucket" with 250 objects under each of 2 prefixes and 0 at the root
+    And a S3FileSystem on the in-memory bucket "metered-bucket" with the properties:
+      | S3MaxKeysPerList | 100 |
+    When the S3FileSystem does a list
+    Then the returned result is equal to 500
+    And the metric s3listen_list_pages_total{bucket="metered-bucket"} should be 5
+
+  Scenario: The S3FileSystem requests the next pages while a page is passed on
+    Given an in-memory S3 bucket "prefetch-bucket" with 250 objects under each of 4 prefixes and 0 at the root
+    And a S3FileSystem on the in-memory bucket "prefetch-bucket" with the properties:
+      | S3MaxKeysPerList       | 100 |
+      | S3ListingPrefetchPages | 2   |
+    When the S3FileSystem lists in pages, holding the first page for 300 milliseconds
+    Then the returned result is equal to 1000
+    And 4 list requests should have been made while the first page was held
+    And the in-memory S3 was not listed by the thread listing
+
+  Scenario: The S3FileSystem requests each page after the last is passed on when prefetching is off
+    Given an in-memory S3 bucket "sequential-bucket" with 250 objects under each of 4 prefixes and 0 at the root
+    And a S3FileSystem on the in-memory bucket "sequential-bucket" with the properties:
+      | S3MaxKeysPerList       | 100 |
+      | S3ListingPrefetchPages | 0   |
+    When the S3FileSystem lists in pages, holding the first page for 100 milliseconds
+    Then the returned result is equal to 1000
+    And 1 list requests should have been made while the first page was held
+
+  Scenario: A failed page request fails the prefetched listing
+    Given an in-memory S3 bucket "failing-bucket" with 250 objects under each of 4 prefixes and 0 at the root
+    And a S3FileSystem on the in-memory bucket "failing-bucket" with the properties:
+      | S3MaxKeysPerList | 100 |
+    When the in-memory S3 fails list requests after the first 3
+    Then the S3FileSystem list should fail
+
+  Scenario: An Error thrown by a page request fails the prefetched listing instead of hanging it
+    Given an in-memory S3 bucket "erring-bucket" with 250 objects under each of 4 prefixes and 0 at the root
+    And a S3FileSystem on the in-memory bucket "erring-bucket" with the properties:
+      | S3MaxKeysPerList | 100 |
+    When the in-memory S3 throws an Error on list requests after the first 3
+    Then the S3FileSystem list should fail with the Error
@@ -0,0 +1,38 @@
+Feature: Each poll can be sent in Kafka transactions that the Storable is committed after
+
+  Scenario: A poll is committed in transactions of a bounded size
+    Given an in-memory S3 bucket "transactional-bucket" holding 25 objects
+    And sends are made in Kafka transactions of up to 10 records
+    And the bucket is listed 10 objects a page
+    And a FileSystemListen on the in-memory bucket with a SQLite Storable
+    When the in-memory bucket is polled
+    Then 25 "created" events should have been sent
+    And 3 Kafka transactions should have been committed
+    When the in-memory bucket is polled
+    Then 25 "created" events should have been sent
+    And 4 Kafka transactions should have been committed
+
+  Scenario: Nothing is written to the Storable once the producer has been fenced
+    Given an in-memory S3 bucket "fenced-bucket" holding 10 objects
+    And sends are made in Kafka transactions of up to 100 records
+    And a FileSystemListen on the in-memory bucket with a SQLite Storable
+    When the in-memory bucket is polled
+    Then 10 "created" events should have been sent
+    When the object "object-12" is put back in the in-memory bucket
+    And the Kafka producer is fenced by another producer
+    And the in-memory bucket is polled
+    Then 10 "created" events should have been sent
+    And 1 Kafka transactions should have been committed
+    And the Storable should not hold "object-12"
+
+  Scenario: Deletions are removed from the Storable once their transaction commits
+    Given an in-memory S3 bucket "transactional-deleting-bucket" holding 10 objects
+    And deletions are detected
+    And sends are made in Kafka transactions of up to 100 records
+    And a FileSystemListen on the in-memory bucket with a SQLite Storable
+    When the in-memory bucket is polled
+    And the object "object-2" is deleted from the in-memory bucket
+    And the in-memory bucket is polled
+    Then 1 "deleted" events should have been sent
+    And 3 Kafka transactions should have been committed
+    And the Storable should not hold "object-2"